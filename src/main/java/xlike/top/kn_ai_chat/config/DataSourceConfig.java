@@ -0,0 +1,70 @@
+package xlike.top.kn_ai_chat.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+
+/**
+ * 读写分离数据源配置
+ * <p>
+ * 仅在配置了 spring.datasource.replica.url 时生效（见 application-postgresql.yml）。
+ * 对外暴露的 DataSource 是一个延迟获取连接的代理：{@code @Transactional(readOnly = true)} 的事务
+ * 会把连接标记为只读，此时从只读副本的连接池取连接，其余情况（包括 Flyway 迁移）都走主库。
+ * 未配置副本时沿用 Spring Boot 默认的单数据源。
+ * @author xlike
+ */
+@Configuration
+@ConditionalOnExpression("!'${spring.datasource.replica.url:}'.isEmpty()")
+public class DataSourceConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(DataSourceConfig.class);
+
+    /**
+     * 主库连接池，连接参数来自 spring.datasource.*，连接池参数来自 spring.datasource.hikari.*
+     */
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+
+    /**
+     * 只读副本连接池，连接池参数来自 spring.datasource.replica.hikari.*
+     */
+    @Bean
+    @ConfigurationProperties("spring.datasource.replica.hikari")
+    public HikariDataSource replicaDataSource(DataSourceProperties properties,
+                                              @Value("${spring.datasource.replica.url}") String url,
+                                              @Value("${spring.datasource.replica.username:${spring.datasource.username:}}") String username,
+                                              @Value("${spring.datasource.replica.password:${spring.datasource.password:}}") String password) {
+        return DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .driverClassName(properties.determineDriverClassName())
+                .url(url)
+                .username(username)
+                .password(password)
+                .build();
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("primaryDataSource") DataSource primaryDataSource,
+                                 @Qualifier("replicaDataSource") DataSource replicaDataSource) {
+        LazyConnectionDataSourceProxy proxy = new LazyConnectionDataSourceProxy(primaryDataSource);
+        proxy.setReadOnlyDataSource(replicaDataSource);
+        logger.info("已启用读写分离数据源：只读事务走副本，其余走主库。");
+        return proxy;
+    }
+}
@@ -27,8 +27,8 @@ public class FlywayConfig{
     @Autowired
     private DataSource dataSource;
 
-    @Value("${flyway.locations:classpath:db/migration}")
-    private String flywayLocations;
+    @Value("${flyway.locations:classpath:db/migration-common,classpath:db/migration}")
+    private String[] flywayLocations;
 
     /**
      * 创建Flyway实例
@@ -39,7 +39,7 @@ public class FlywayConfig{
     public Flyway flyway(){
         logger.info("Initializing Flyway...");
 
-        logger.info("Using Flyway locations: {}", flywayLocations);
+        logger.info("Using Flyway locations: {}", String.join(",", flywayLocations));
 
         Flyway flyway=Flyway.configure()
                 .dataSource(dataSource)
@@ -50,7 +50,7 @@ public class FlywayConfig{
                 .encoding("UTF-8")
                 .load();
 
-        logger.info("Flyway configured successfully with locations: {}", flywayLocations);
+        logger.info("Flyway configured successfully with locations: {}", String.join(",", flywayLocations));
         return flyway;
     }
 
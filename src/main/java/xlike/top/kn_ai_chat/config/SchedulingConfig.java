@@ -0,0 +1,38 @@
+package xlike.top.kn_ai_chat.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.task.ThreadPoolTaskSchedulerBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+/**
+ * 定时任务线程池
+ * <p>
+ * 默认的 taskScheduler 只运行本地的轻量任务（缓存清理、会话检查等）；
+ * 需要访问网络或磁盘、可能阻塞数十秒的任务（MCP 健康检查、IMAP 保活、批量获取用户信息、日志分段维护等）
+ * 通过 {@code @Scheduled(scheduler = BLOCKING_SCHEDULER)} 放到单独的线程池，不会拖住其他定时任务。
+ * @author xlike
+ */
+@Configuration
+public class SchedulingConfig {
+
+    public static final String BLOCKING_SCHEDULER = "blockingTaskScheduler";
+
+    /**
+     * 默认调度器，线程数由 spring.task.scheduling.pool.size 决定
+     */
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler(ThreadPoolTaskSchedulerBuilder builder) {
+        return builder.build();
+    }
+
+    @Bean(BLOCKING_SCHEDULER)
+    public ThreadPoolTaskScheduler blockingTaskScheduler(@Value("${scheduling.blocking.pool-size:4}") int poolSize) {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(poolSize);
+        scheduler.setThreadNamePrefix("scheduling-io-");
+        scheduler.setWaitForTasksToCompleteOnShutdown(false);
+        return scheduler;
+    }
+}
@@ -3,9 +3,11 @@ package xlike.top.kn_ai_chat.config;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
 import org.springframework.http.converter.StringHttpMessageConverter;
 import org.springframework.web.client.RestTemplate;
 
+import java.net.http.HttpClient;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 
@@ -15,15 +17,31 @@ import java.time.Duration;
 @Configuration
 public class WeChatConfig {
 
+    /**
+     * 全局共享的 HTTP 客户端：企微接口、联网搜索等所有经 RestTemplate 发出的请求
+     * 共用同一个 JDK HttpClient 的 keep-alive 连接池，不再每次请求新建连接
+     */
+    @Bean(destroyMethod = "close")
+    public HttpClient sharedHttpClient() {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(60))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
     @Bean
-    public RestTemplate restTemplate(RestTemplateBuilder builder) {
+    public RestTemplate restTemplate(RestTemplateBuilder builder, HttpClient sharedHttpClient) {
         RestTemplate restTemplate = builder
-                .connectTimeout(Duration.ofSeconds(60))
-                .readTimeout(Duration.ofSeconds(60))
+                .requestFactory(() -> {
+                    JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(sharedHttpClient);
+                    requestFactory.setReadTimeout(Duration.ofSeconds(60));
+                    return requestFactory;
+                })
                 .build();
 
         restTemplate.getMessageConverters().set(1, new StringHttpMessageConverter(StandardCharsets.UTF_8));
 
         return restTemplate;
     }
-}
\ No newline at end of file
+}
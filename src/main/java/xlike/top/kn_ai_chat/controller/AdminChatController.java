@@ -5,10 +5,10 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
-import xlike.top.kn_ai_chat.domain.ChatMessage;
 import xlike.top.kn_ai_chat.domain.ManualTransferRequest;
-import xlike.top.kn_ai_chat.repository.ChatMessageRepository;
+import xlike.top.kn_ai_chat.dto.ChatHistoryPage;
 import xlike.top.kn_ai_chat.repository.ManualTransferRepository;
+import xlike.top.kn_ai_chat.service.ChatHistoryService;
 import xlike.top.kn_ai_chat.service.WeChatKfAccountService;
 import xlike.top.kn_ai_chat.service.WeChatService;
 
@@ -23,21 +23,21 @@ import java.util.Optional;
 public class AdminChatController {
 
     private final ManualTransferRepository requestRepository;
-    private final ChatMessageRepository chatMessageRepository;
     private final WeChatService weChatService;
     private final StringRedisTemplate redisTemplate;
     private final WeChatKfAccountService weChatKfAccountService;
+    private final ChatHistoryService chatHistoryService;
 
     public AdminChatController(ManualTransferRepository requestRepository,
-                               ChatMessageRepository chatMessageRepository,
                                StringRedisTemplate redisTemplate,
                                WeChatService weChatService,
-                               WeChatKfAccountService weChatKfAccountService) {
+                               WeChatKfAccountService weChatKfAccountService,
+                               ChatHistoryService chatHistoryService) {
         this.requestRepository = requestRepository;
-        this.chatMessageRepository = chatMessageRepository;
         this.redisTemplate = redisTemplate;
         this.weChatService = weChatService;
         this.weChatKfAccountService = weChatKfAccountService;
+        this.chatHistoryService = chatHistoryService;
     }
 
     private boolean isAdmin(HttpSession session) {
@@ -53,13 +53,24 @@ public class AdminChatController {
         return ResponseEntity.ok(requestRepository.findByResolvedFalseOrderByRequestTimeDesc());
     }
 
+    /**
+     * 游标分页查询聊天记录。不带游标时返回最新一页；before 加载更早的消息，after 加载更新的消息。
+     */
     @GetMapping("/api/chat/history/{userId}")
     @ResponseBody
-    public ResponseEntity<List<ChatMessage>> getChatHistory(@PathVariable String userId, HttpSession session) {
+    public ResponseEntity<ChatHistoryPage> getChatHistory(@PathVariable String userId,
+                                                          @RequestParam(required = false) String before,
+                                                          @RequestParam(required = false) String after,
+                                                          @RequestParam(required = false) Integer size,
+                                                          HttpSession session) {
         if (!isAdmin(session)) {
             return ResponseEntity.status(401).build();
         }
-        return ResponseEntity.ok(chatMessageRepository.findByExternalUserIdOrderByTimestampAsc(userId));
+        try {
+            return ResponseEntity.ok(chatHistoryService.loadPage(userId, before, after, size));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
     }
 
 
@@ -7,6 +7,11 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.web.PagedModel;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.transaction.annotation.Transactional;
@@ -14,13 +19,18 @@ import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
 import xlike.top.kn_ai_chat.domain.WeChatUser;
 import xlike.top.kn_ai_chat.repository.*;
+import xlike.top.kn_ai_chat.service.ConversationWindowCache;
 import xlike.top.kn_ai_chat.service.KnowledgeBaseService;
+import xlike.top.kn_ai_chat.service.McpPermissionMatrix;
+import xlike.top.kn_ai_chat.service.MessageWriteBuffer;
 import xlike.top.kn_ai_chat.service.SystemService;
 import xlike.top.kn_ai_chat.service.UserConfigService;
+import xlike.top.kn_ai_chat.service.UserPurgeService;
+import xlike.top.kn_ai_chat.service.WeChatUserRegistry;
+import xlike.top.kn_ai_chat.store.MessageLogStore;
 
 import java.time.LocalDateTime;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 /**
  * @author xlike
@@ -30,6 +40,7 @@ import java.util.stream.Collectors;
 public class AdminController {
     
     private static final Logger logger = LoggerFactory.getLogger(AdminController.class);
+    private static final Set<String> USER_SORT_PROPERTIES = Set.of("lastUpdated", "questionCount", "nickname");
 
     @Value("${admin.password}")
     private String adminPassword;
@@ -38,15 +49,20 @@ public class AdminController {
     private final WeChatUserRepository userRepository;
     private final SystemService systemService;
     private final KnowledgeBaseService knowledgeBaseService;
-    private final MessageLogRepository messageLogRepository;
+    private final MessageLogStore messageLogStore;
     private final AiConfigRepository aiConfigRepository;
     private final KeywordConfigRepository keywordConfigRepository;
     private final CustomReplyRepository customReplyRepository;
     private final McpConfigRepository mcpConfigRepository;
     private final McpAiConfigRepository mcpAiConfigRepository;
     private final UserMcpPermissionRepository userMcpPermissionRepository;
+    private final McpPermissionMatrix mcpPermissionMatrix;
     private final StringRedisTemplate stringRedisTemplate;
     private final UserConfigService userConfigService;
+    private final WeChatUserRegistry userRegistry;
+    private final ConversationWindowCache conversationWindowCache;
+    private final MessageWriteBuffer messageWriteBuffer;
+    private final UserPurgeService userPurgeService;
 
     @Data
     @AllArgsConstructor
@@ -63,7 +79,7 @@ public class AdminController {
     public AdminController(WeChatUserRepository userRepository,
                            SystemService systemService, 
                            KnowledgeBaseService knowledgeBaseService, 
-                           MessageLogRepository messageLogRepository, 
+                           MessageLogStore messageLogStore, 
                            AiConfigRepository aiConfigRepository, 
                            KeywordConfigRepository keywordConfigRepository, 
                            StringRedisTemplate stringRedisTemplate, 
@@ -71,11 +87,16 @@ public class AdminController {
                            CustomReplyRepository customReplyRepository,
                            McpConfigRepository mcpConfigRepository,
                            McpAiConfigRepository mcpAiConfigRepository,
-                           UserMcpPermissionRepository userMcpPermissionRepository) {
+                           UserMcpPermissionRepository userMcpPermissionRepository,
+                           McpPermissionMatrix mcpPermissionMatrix,
+                           WeChatUserRegistry userRegistry,
+                           ConversationWindowCache conversationWindowCache,
+                           MessageWriteBuffer messageWriteBuffer,
+                           UserPurgeService userPurgeService) {
         this.userRepository = userRepository;
         this.systemService = systemService;
         this.knowledgeBaseService = knowledgeBaseService;
-        this.messageLogRepository = messageLogRepository;
+        this.messageLogStore = messageLogStore;
         this.aiConfigRepository = aiConfigRepository;
         this.keywordConfigRepository = keywordConfigRepository;
         this.stringRedisTemplate = stringRedisTemplate;
@@ -84,6 +105,11 @@ public class AdminController {
         this.mcpConfigRepository = mcpConfigRepository;
         this.mcpAiConfigRepository = mcpAiConfigRepository;
         this.userMcpPermissionRepository = userMcpPermissionRepository;
+        this.mcpPermissionMatrix = mcpPermissionMatrix;
+        this.userRegistry = userRegistry;
+        this.conversationWindowCache = conversationWindowCache;
+        this.messageWriteBuffer = messageWriteBuffer;
+        this.userPurgeService = userPurgeService;
     }
 
 
@@ -107,6 +133,7 @@ public class AdminController {
         logger.error("【！！！高危操作警告！！！】密码校验通过，开始执行清空所有表和Redis的请求！");
 
         // --- ★ 步骤1: 批量清空所有相关表（已补全） ---
+        messageWriteBuffer.flush();
         logger.warn("正在清空 UserMcpPermission 表...");
         userMcpPermissionRepository.deleteAllInBatch();
         logger.warn("正在清空 CustomReply 表...");
@@ -118,13 +145,16 @@ public class AdminController {
         logger.warn("正在清空 KnowledgeBase 表...");
         knowledgeBaseService.deleteAllKnowledgeData();
         logger.warn("正在清空 MessageLog 表...");
-        messageLogRepository.deleteAllInBatch();
+        messageLogStore.deleteAll();
+        conversationWindowCache.clear();
         logger.warn("正在清空 AiConfig 表...");
         aiConfigRepository.deleteAllInBatch();
         logger.warn("正在清空 KeywordConfig 表...");
         keywordConfigRepository.deleteAllInBatch();
         logger.warn("正在清空 WeChatUser 表...");
         userRepository.deleteAllInBatch();
+        userRegistry.reload();
+        mcpPermissionMatrix.reload();
         
         logger.warn("所有数据库表已清空。");
         
@@ -181,20 +211,34 @@ public class AdminController {
         return "custom-replies";
     }
     
+    /**
+     * 分页查询用户及其提问次数。提问次数直接取用户表上增量维护的计数器，不再逐个用户 COUNT。
+     * @param nickname 昵称关键字，可选
+     * @param blocked 拉黑状态过滤，可选
+     * @param sort 排序字段：lastUpdated / questionCount / nickname
+     * @param direction 排序方向：asc / desc
+     */
     @GetMapping("/api/users")
     @ResponseBody
-    public ResponseEntity<List<UserStatsDto>> getAllUsers(HttpSession session) {
+    public ResponseEntity<PagedModel<UserStatsDto>> getAllUsers(@RequestParam(defaultValue = "0") int page,
+                                                                @RequestParam(defaultValue = "20") int size,
+                                                                @RequestParam(required = false) String nickname,
+                                                                @RequestParam(required = false) Boolean blocked,
+                                                                @RequestParam(defaultValue = "lastUpdated") String sort,
+                                                                @RequestParam(defaultValue = "desc") String direction,
+                                                                HttpSession session) {
         if (!Boolean.TRUE.equals(session.getAttribute("isAdmin"))) {
             return ResponseEntity.status(401).build();
         }
-        List<WeChatUser> users = userRepository.findAll();
-        List<UserStatsDto> userStats = users.stream()
-                .map(user -> new UserStatsDto(
-                        user,
-                        systemService.countQuestionsFromUser(user.getExternalUserId())
-                ))
-                .collect(Collectors.toList());
-        return ResponseEntity.ok(userStats);
+        String sortProperty = USER_SORT_PROPERTIES.contains(sort) ? sort : "lastUpdated";
+        Sort.Direction sortDirection = "asc".equalsIgnoreCase(direction) ? Sort.Direction.ASC : Sort.Direction.DESC;
+        Pageable pageable = PageRequest.of(Math.max(page, 0), Math.min(Math.max(size, 1), 200),
+                Sort.by(sortDirection, sortProperty).and(Sort.by("externalUserId")));
+        String keyword = (nickname == null || nickname.isBlank()) ? null : nickname.trim();
+
+        Page<UserStatsDto> userStats = userRepository.search(keyword, blocked, pageable)
+                .map(user -> new UserStatsDto(user, user.getQuestionCount()));
+        return ResponseEntity.ok(new PagedModel<>(userStats));
     }
 
     @PostMapping("/api/users/{userId}/clear-history")
@@ -207,23 +251,29 @@ public class AdminController {
         return ResponseEntity.ok().build();
     }
     
+    /**
+     * 删除用户及其所有关联数据。数据量可能很大，因此以后台任务方式执行，
+     * 立即返回 202 和任务信息，前端通过 /api/users/purge-jobs/{jobId} 轮询进度。
+     */
     @DeleteMapping("/api/users/{userId}")
     @ResponseBody
-    @Transactional
-    public ResponseEntity<Void> deleteUser(@PathVariable String userId, HttpSession session) {
+    public ResponseEntity<UserPurgeService.PurgeJob> deleteUser(@PathVariable String userId, HttpSession session) {
         if (!Boolean.TRUE.equals(session.getAttribute("isAdmin"))) {
             return ResponseEntity.status(401).build();
         }
         logger.warn("接收到删除用户 [{}] 的高危操作请求", userId);
+        return ResponseEntity.accepted().body(userPurgeService.submitUserPurge(userId));
+    }
 
-        messageLogRepository.deleteByFromUserOrToUser(userId, userId);
-        knowledgeBaseService.deleteKnowledgeByUserId(userId);
-        aiConfigRepository.deleteByExternalUserId(userId);
-        userRepository.deleteById(userId);
-        
-        logger.warn("已彻底删除用户 [{}] 及其所有关联数据。", userId);
-
-        return ResponseEntity.ok().build();
+    @GetMapping("/api/users/purge-jobs/{jobId}")
+    @ResponseBody
+    public ResponseEntity<UserPurgeService.PurgeJob> getPurgeJob(@PathVariable String jobId, HttpSession session) {
+        if (!Boolean.TRUE.equals(session.getAttribute("isAdmin"))) {
+            return ResponseEntity.status(401).build();
+        }
+        return userPurgeService.getJob(jobId)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
     }
 
 
@@ -248,6 +298,7 @@ public class AdminController {
                     user.setBlocked(blocked);
                     user.setLastUpdated(LocalDateTime.now());
                     userRepository.save(user);
+                    userRegistry.updateBlocked(userId, blocked);
                     return ResponseEntity.ok().<Void>build();
                 })
                 .orElse(ResponseEntity.notFound().build());
@@ -1,7 +1,9 @@
 package xlike.top.kn_ai_chat.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
 import lombok.Data;
+import org.springframework.data.domain.Persistable;
 
 import java.time.LocalDateTime;
 
@@ -11,10 +13,10 @@ import java.time.LocalDateTime;
 @Data
 @Entity
 @Table(name = "chat_message")
-public class ChatMessage {
+public class ChatMessage implements Persistable<Long> {
 
+    // 入队写缓冲时由 ChatMessageIdAllocator 从 chat_message_seq 分配
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
     public enum SenderType { ADMIN, USER }
@@ -44,4 +46,20 @@ public class ChatMessage {
 
     @Column(name = "timestamp", nullable = false)
     private LocalDateTime timestamp;
-}
\ No newline at end of file
+
+    // 是否已落库；主键是预先分配的，据此让保存时直接 INSERT，而不是先查询再合并
+    @JsonIgnore
+    private transient boolean persisted;
+
+    @Override
+    @JsonIgnore
+    public boolean isNew() {
+        return !persisted;
+    }
+
+    @PostPersist
+    @PostLoad
+    void markPersisted() {
+        this.persisted = true;
+    }
+}
@@ -14,7 +14,8 @@ import java.time.LocalDateTime;
 public class MessageLog {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "message_log_seq")
+    @SequenceGenerator(name = "message_log_seq", sequenceName = "message_log_seq", allocationSize = 50)
     private Long id;
 
     /**
@@ -23,6 +24,12 @@ public class MessageLog {
     @Column(name = "msg_id", unique = true, nullable = true)
     private String msgId;
 
+    /**
+     * 会话ID，即该条消息所属对话中的外部用户ID，用于按会话读取历史记录
+     */
+    @Column(name = "conversation_id")
+    private String conversationId;
+
     @Column(name = "from_user")
     private String fromUser;
 
@@ -37,4 +37,8 @@ public class WeChatUser {
 
     @Column(name = "last_updated")
     private LocalDateTime lastUpdated;
+
+    // 累计提问次数，只通过 WeChatUserRepository 的增量更新语句维护，实体保存时不会覆盖
+    @Column(name = "question_count", insertable = false, updatable = false)
+    private long questionCount;
 }
\ No newline at end of file
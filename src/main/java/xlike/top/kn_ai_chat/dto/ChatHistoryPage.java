@@ -0,0 +1,44 @@
+package xlike.top.kn_ai_chat.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import xlike.top.kn_ai_chat.domain.ChatMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * 聊天记录的一页数据，messages 按时间正序排列。
+ * olderCursor / newerCursor 分别用于继续向前、向后翻页，为 null 表示该方向没有更多数据。
+ * @author xlike
+ */
+@Data
+@AllArgsConstructor
+public class ChatHistoryPage {
+    private List<ChatMessage> messages;
+    private String olderCursor;
+    private String newerCursor;
+
+    /**
+     * 游标由消息的 (timestamp, id) 编码而成，对前端是不透明字符串
+     */
+    public static String encodeCursor(ChatMessage message) {
+        String raw = message.getTimestamp() + "|" + message.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static Cursor decodeCursor(String cursor) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = raw.lastIndexOf('|');
+            return new Cursor(LocalDateTime.parse(raw.substring(0, separator)), Long.parseLong(raw.substring(separator + 1)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("无效的分页游标: " + cursor, e);
+        }
+    }
+
+    public record Cursor(LocalDateTime timestamp, Long id) {
+    }
+}
@@ -0,0 +1,50 @@
+package xlike.top.kn_ai_chat.enums;
+
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * 音频格式枚举
+ * <p>
+ * 记录每种格式的扩展名、转码为该格式时的 ffmpeg 输出参数，以及相对的编码开销（越小越便宜），
+ * 供编解码协商时选择代价最低的转码路径。
+ * @author xlike
+ */
+@Getter
+public enum AudioFormat {
+    /**
+     * 16kHz 单声道 PCM WAV，无需压缩编码，转码开销最低
+     */
+    WAV("wav", List.of("-ac", "1", "-ar", "16000", "-c:a", "pcm_s16le", "-f", "wav"), 1),
+
+    /**
+     * 微信语音要求的 AMR-NB：单声道、8kHz、12.2kbps
+     */
+    AMR("amr", List.of("-ac", "1", "-ar", "8000", "-c:a", "libopencore_amrnb", "-b:a", "12.2k", "-f", "amr"), 2),
+
+    /**
+     * 单声道、16kHz、128kbps 的 MP3
+     */
+    MP3("mp3", List.of("-ac", "1", "-ar", "16000", "-c:a", "libmp3lame", "-b:a", "128k", "-f", "mp3"), 3);
+
+    private final String extension;
+    private final List<String> ffmpegOutputArgs;
+    private final int encodeCost;
+
+    AudioFormat(String extension, List<String> ffmpegOutputArgs, int encodeCost) {
+        this.extension = extension;
+        this.ffmpegOutputArgs = ffmpegOutputArgs;
+        this.encodeCost = encodeCost;
+    }
+
+    public static Optional<AudioFormat> fromExtension(String extension) {
+        for (AudioFormat format : values()) {
+            if (format.extension.equalsIgnoreCase(extension)) {
+                return Optional.of(format);
+            }
+        }
+        return Optional.empty();
+    }
+}
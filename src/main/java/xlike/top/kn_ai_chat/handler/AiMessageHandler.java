@@ -3,13 +3,11 @@ package xlike.top.kn_ai_chat.handler;
 import org.springframework.core.Ordered;
 import org.springframework.stereotype.Component;
 import xlike.top.kn_ai_chat.domain.MessageLog;
-import xlike.top.kn_ai_chat.enums.MediaType;
 import xlike.top.kn_ai_chat.reply.Reply;
 import xlike.top.kn_ai_chat.reply.TextReply;
 import xlike.top.kn_ai_chat.reply.VoiceReply;
 import xlike.top.kn_ai_chat.service.*;
 
-import java.io.File;
 import java.util.List;
 import java.util.Optional;
 
@@ -21,16 +19,12 @@ public class AiMessageHandler implements MessageHandler {
 
     private final AiService aiService;
     private final SemanticService semanticService;
-    private final SiliconFlowService siliconFlowService;
-    private final MediaService mediaService;
-    private final FormatFileService formatFileService;
+    private final VoiceReplyService voiceReplyService;
 
-    public AiMessageHandler(AiService aiService, SemanticService semanticService, SiliconFlowService siliconFlowService, MediaService mediaService, FormatFileService formatFileService) {
+    public AiMessageHandler(AiService aiService, SemanticService semanticService, VoiceReplyService voiceReplyService) {
         this.aiService = aiService;
         this.semanticService = semanticService;
-        this.siliconFlowService = siliconFlowService;
-        this.mediaService = mediaService;
-        this.formatFileService = formatFileService;
+        this.voiceReplyService = voiceReplyService;
     }
 
     /**
@@ -50,22 +44,12 @@ public class AiMessageHandler implements MessageHandler {
         }
 
         if (semanticService.getBooleanJudgement(content, externalUserId)) {
-            Optional<File> mp3FileOpt = siliconFlowService.generateSpeech(textReply, externalUserId);
-            
-            if (mp3FileOpt.isPresent()) {
-                Optional<File> amrFileOpt = formatFileService.convertToAmr(mp3FileOpt.get());
-                mp3FileOpt.get().delete();
-
-                if (amrFileOpt.isPresent()) {
-                    Optional<String> mediaIdOpt = mediaService.uploadTemporaryMedia(amrFileOpt.get(), MediaType.VOICE);
-                    amrFileOpt.get().delete(); // 确保 amr 文件也被删除
-                    if (mediaIdOpt.isPresent()) {
-                        return Optional.of(new VoiceReply(mediaIdOpt.get()));
-                    }
-                }
+            Optional<String> mediaId = voiceReplyService.synthesize(externalUserId, textReply);
+            if (mediaId.isPresent()) {
+                return Optional.of(new VoiceReply(mediaId.get()));
             }
         }
-        
+
         return Optional.of(new TextReply(textReply));
     }
 
@@ -5,15 +5,17 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 import xlike.top.kn_ai_chat.domain.MessageLog;
 import xlike.top.kn_ai_chat.enums.MediaType;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
 import xlike.top.kn_ai_chat.reply.ImageReply;
 import xlike.top.kn_ai_chat.reply.Reply;
 import xlike.top.kn_ai_chat.reply.TextReply;
 import xlike.top.kn_ai_chat.service.DrawingService;
+import xlike.top.kn_ai_chat.service.JobService;
+import xlike.top.kn_ai_chat.service.JobService.ReplyJob;
 import xlike.top.kn_ai_chat.service.MediaService;
 import xlike.top.kn_ai_chat.service.UserConfigService;
 import xlike.top.kn_ai_chat.utils.ImageCompressionUtil;
 
-import java.io.File;
 import java.util.List;
 import java.util.Optional;
 
@@ -30,12 +32,14 @@ public class DrawingHandler implements MessageHandler {
     private final MediaService mediaService;
     private final ImageCompressionUtil imageCompressionUtil;
     private final UserConfigService userConfigService;
+    private final JobService jobService;
 
-    public DrawingHandler(DrawingService drawingService, MediaService mediaService, ImageCompressionUtil imageCompressionUtil, UserConfigService userConfigService) {
+    public DrawingHandler(DrawingService drawingService, MediaService mediaService, ImageCompressionUtil imageCompressionUtil, UserConfigService userConfigService, JobService jobService) {
         this.drawingService = drawingService;
         this.mediaService = mediaService;
         this.imageCompressionUtil = imageCompressionUtil;
         this.userConfigService = userConfigService;
+        this.jobService = jobService;
     }
 
 
@@ -61,29 +65,45 @@ public class DrawingHandler implements MessageHandler {
 
         logger.info("接收到绘画指令，提示词: {}", prompt);
 
-        File originalImageFile = drawingService.generateImage(prompt, externalUserId);
-        if (originalImageFile == null) {
-            return Optional.of(new TextReply("抱歉，绘画失败了，请稍后再试。"));
-        }
+        String finalPrompt = prompt;
+        return Optional.of(jobService.submit(externalUserId, openKfid, "drawing", "🎨 正在为你绘制，请稍候…",
+                job -> draw(job, finalPrompt, externalUserId)));
+    }
 
-        Optional<File> finalImageFileOpt = imageCompressionUtil.compressImageIfNecessary(originalImageFile, WECHAT_IMAGE_SIZE_LIMIT);
+    /**
+     * 生成、压缩并上传图片，在长耗时任务线程池中执行
+     */
+    private Optional<Reply> draw(ReplyJob job, String prompt, String externalUserId) {
+        job.progress("生成图片");
+        try (MediaBuffer originalImage = drawingService.generateImage(prompt, externalUserId)) {
+            if (originalImage == null) {
+                return Optional.of(new TextReply("抱歉，绘画失败了，请稍后再试。"));
+            }
+            if (job.isCancelled()) {
+                return Optional.empty();
+            }
 
-        if (finalImageFileOpt.isEmpty()) {
-            originalImageFile.delete();
-            return Optional.of(new TextReply("图片生成成功，但压缩至2MB以下失败了，无法发送给您。"));
-        }
-        
-        File finalImageFile = finalImageFileOpt.get();
+            job.progress("压缩图片");
+            Optional<MediaBuffer> finalImageOpt = imageCompressionUtil.compressImageIfNecessary(originalImage, WECHAT_IMAGE_SIZE_LIMIT);
 
-        Optional<String> mediaIdOpt = mediaService.uploadTemporaryMedia(finalImageFile, MediaType.IMAGE);
+            if (finalImageOpt.isEmpty()) {
+                return Optional.of(new TextReply("图片生成成功，但压缩至2MB以下失败了，无法发送给您。"));
+            }
 
-        if (!originalImageFile.equals(finalImageFile)) {
-            originalImageFile.delete();
-        }
-        finalImageFile.delete();
+            MediaBuffer finalImage = finalImageOpt.get();
+            Optional<String> mediaIdOpt = Optional.empty();
+            if (!job.isCancelled()) {
+                job.progress("上传图片");
+                mediaIdOpt = mediaService.uploadTemporaryMedia(finalImage, MediaType.IMAGE);
+            }
 
-        return mediaIdOpt.<Reply>map(ImageReply::new)
-                .or(() -> Optional.of(new TextReply("图片上传失败，无法发送给您。")));
+            if (finalImage != originalImage) {
+                finalImage.close();
+            }
+
+            return mediaIdOpt.<Reply>map(ImageReply::new)
+                    .or(() -> Optional.of(new TextReply("图片上传失败，无法发送给您。")));
+        }
     }
 
     @Override
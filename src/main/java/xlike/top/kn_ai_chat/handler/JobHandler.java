@@ -0,0 +1,81 @@
+package xlike.top.kn_ai_chat.handler;
+
+import org.springframework.stereotype.Component;
+import xlike.top.kn_ai_chat.domain.MessageLog;
+import xlike.top.kn_ai_chat.reply.Reply;
+import xlike.top.kn_ai_chat.reply.TextReply;
+import xlike.top.kn_ai_chat.service.JobService;
+import xlike.top.kn_ai_chat.service.JobService.ReplyJob;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * 后台任务指令处理器
+ * <p>
+ * 查询或取消用户自己的长耗时任务（绘画、MCP、工具调用）。
+ * 优先级高于管理员指令处理器，管理员同样可以使用。
+ * @author xlike
+ */
+@Component
+public class JobHandler implements MessageHandler {
+
+    private static final Set<String> STATUS_COMMANDS = Set.of("#任务", "/jobs");
+    private static final Set<String> CANCEL_COMMANDS = Set.of("#取消", "/cancel");
+
+    private final JobService jobService;
+
+    public JobHandler(JobService jobService) {
+        this.jobService = jobService;
+    }
+
+    @Override
+    public boolean canHandle(String content, String externalUserId) {
+        if (content == null) {
+            return false;
+        }
+        String trimmedContent = content.trim();
+        return STATUS_COMMANDS.contains(trimmedContent) || CANCEL_COMMANDS.contains(trimmedContent);
+    }
+
+    @Override
+    public Optional<Reply> handle(String externalUserId, String openKfid, String content, List<MessageLog> history) {
+        if (CANCEL_COMMANDS.contains(content.trim())) {
+            int cancelled = jobService.cancelUserJobs(externalUserId);
+            return Optional.of(new TextReply(cancelled > 0
+                    ? "已取消 " + cancelled + " 个正在处理的任务。"
+                    : "你当前没有正在处理的任务。"));
+        }
+
+        List<ReplyJob> jobs = jobService.getUserJobs(externalUserId);
+        if (jobs.isEmpty()) {
+            return Optional.of(new TextReply("你最近没有后台任务。"));
+        }
+        StringBuilder replyText = new StringBuilder("你最近的后台任务:\n");
+        for (ReplyJob job : jobs) {
+            replyText.append(String.format("• %s：%s", job.getKind(), describe(job)));
+            if (job.getStatus() == JobService.JobStatus.QUEUED || job.getStatus() == JobService.JobStatus.RUNNING) {
+                replyText.append(String.format("（%s，已用时 %d 秒）", job.getProgress(), job.elapsed().toSeconds()));
+            }
+            replyText.append("\n");
+        }
+        replyText.append("\n发送 \"#取消\" 可取消正在处理的任务。");
+        return Optional.of(new TextReply(replyText.toString()));
+    }
+
+    private String describe(ReplyJob job) {
+        return switch (job.getStatus()) {
+            case QUEUED -> "排队中";
+            case RUNNING -> "处理中";
+            case COMPLETED -> "已完成";
+            case FAILED -> "失败";
+            case CANCELLED -> "已取消";
+        };
+    }
+
+    @Override
+    public int getOrder() {
+        return -1;
+    }
+}
@@ -5,18 +5,17 @@ import com.fasterxml.jackson.databind.SerializationFeature; // 导入新模块
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 import xlike.top.kn_ai_chat.domain.ChatMessage;
 import xlike.top.kn_ai_chat.domain.ManualTransferRequest;
 import xlike.top.kn_ai_chat.domain.MessageLog;
-import xlike.top.kn_ai_chat.handler.websocket.AdminWebSocketHandler;
-import xlike.top.kn_ai_chat.repository.ChatMessageRepository;
+import xlike.top.kn_ai_chat.handler.websocket.AdminBroadcastBus;
 import xlike.top.kn_ai_chat.repository.ManualTransferRepository;
 import xlike.top.kn_ai_chat.reply.Reply;
 import xlike.top.kn_ai_chat.reply.TextReply;
 import xlike.top.kn_ai_chat.service.EmailService;
+import xlike.top.kn_ai_chat.service.MessageWriteBuffer;
 import xlike.top.kn_ai_chat.service.UserConfigService;
 
 import java.time.LocalDateTime;
@@ -35,24 +34,24 @@ public class ManualChatHandler implements MessageHandler {
     private static final long MANUAL_MODE_TIMEOUT_MINUTES = 30;
 
     private final StringRedisTemplate redisTemplate;
-    private final ChatMessageRepository chatMessageRepository;
+    private final MessageWriteBuffer messageWriteBuffer;
     private final ManualTransferRepository requestRepository;
     private final EmailService emailService;
-    private final AdminWebSocketHandler adminWebSocketHandler;
+    private final AdminBroadcastBus adminBroadcastBus;
     private final ObjectMapper objectMapper;
     private final UserConfigService userConfigService; // 新增
 
     public ManualChatHandler(StringRedisTemplate redisTemplate,
-                             ChatMessageRepository chatMessageRepository,
+                             MessageWriteBuffer messageWriteBuffer,
                              ManualTransferRepository requestRepository,
                              EmailService emailService,
-                             @Lazy AdminWebSocketHandler adminWebSocketHandler,
+                             AdminBroadcastBus adminBroadcastBus,
                              UserConfigService userConfigService) { // 新增
         this.redisTemplate = redisTemplate;
-        this.chatMessageRepository = chatMessageRepository;
+        this.messageWriteBuffer = messageWriteBuffer;
         this.requestRepository = requestRepository;
         this.emailService = emailService;
-        this.adminWebSocketHandler = adminWebSocketHandler;
+        this.adminBroadcastBus = adminBroadcastBus;
         this.userConfigService = userConfigService; // 新增
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new JavaTimeModule());
@@ -113,7 +112,8 @@ public class ManualChatHandler implements MessageHandler {
             
             try {
                 String jsonMessage = objectMapper.writeValueAsString(chatMessage);
-                adminWebSocketHandler.sendMessageToAdmins(jsonMessage);
+                // 推送给本节点的管理员，并经 Redis 广播给其他节点上的管理员
+                adminBroadcastBus.publish(jsonMessage);
                 logger.info("已将用户 [{}] 的消息推送给所有在线管理员。", externalUserId);
             } catch (Exception e) {
                 logger.error("序列化或推送用户消息到管理员时出错", e);
@@ -153,6 +153,7 @@ public class ManualChatHandler implements MessageHandler {
         chatMessage.setMessageType(ChatMessage.MessageType.TEXT);
         chatMessage.setContent(content);
         chatMessage.setTimestamp(LocalDateTime.now());
-        return chatMessageRepository.save(chatMessage);
+        messageWriteBuffer.enqueue(chatMessage);
+        return chatMessage;
     }
 }
\ No newline at end of file
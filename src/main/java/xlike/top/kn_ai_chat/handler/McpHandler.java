@@ -7,6 +7,7 @@ import xlike.top.kn_ai_chat.domain.MessageLog;
 import xlike.top.kn_ai_chat.domain.McpConfig;
 import xlike.top.kn_ai_chat.reply.Reply;
 import xlike.top.kn_ai_chat.reply.TextReply;
+import xlike.top.kn_ai_chat.service.JobService;
 import xlike.top.kn_ai_chat.service.McpService;
 
 import java.util.List;
@@ -24,9 +25,11 @@ public class McpHandler implements MessageHandler {
     // 匹配 #mcp-序号 [问题]
     private static final Pattern MCP_EXEC_PATTERN = Pattern.compile("^#mcp-(\\d+)\\s+(.*)", Pattern.DOTALL);
     private final McpService mcpService;
+    private final JobService jobService;
 
-    public McpHandler(McpService mcpService) {
+    public McpHandler(McpService mcpService, JobService jobService) {
         this.mcpService = mcpService;
+        this.jobService = jobService;
     }
 
     @Override
@@ -40,7 +43,7 @@ public class McpHandler implements MessageHandler {
         // 场景一: 用户输入 #mcp-序号 执行指令
         Matcher execMatcher = MCP_EXEC_PATTERN.matcher(trimmedContent);
         if (execMatcher.matches()) {
-            return handleMcpExecution(externalUserId, execMatcher);
+            return handleMcpExecution(externalUserId, openKfid, execMatcher);
         }
         // 场景二: 用户输入 #mcp 列出可用服务
         if (trimmedContent.equals("#mcp")) {
@@ -71,7 +74,7 @@ public class McpHandler implements MessageHandler {
     /**
      * 处理执行 MCP 服务的请求
      */
-    private Optional<Reply> handleMcpExecution(String externalUserId, Matcher matcher) {
+    private Optional<Reply> handleMcpExecution(String externalUserId, String openKfid, Matcher matcher) {
         try {
             int index = Integer.parseInt(matcher.group(1));
             String prompt = matcher.group(2);
@@ -80,8 +83,13 @@ public class McpHandler implements MessageHandler {
                 return Optional.of(new TextReply("❌ 无效的序号或会话已过期。\n请先发送 `#mcp` 获取最新的服务列表。"));
             }
             McpConfig config = mcpConfigOpt.get();
-            String response = mcpService.executeMcpRequest(externalUserId, config.getName(), prompt);
-            return Optional.of(new TextReply(response));
+            // MCP 调用可能需要数十秒（含超时重试），放到后台执行，完成后推送结果
+            return Optional.of(jobService.submit(externalUserId, openKfid, "mcp",
+                    "⏳ 正在调用 MCP 服务「" + config.getName() + "」，请稍候…",
+                    job -> {
+                        job.progress("调用 " + config.getName());
+                        return Optional.of(new TextReply(mcpService.executeMcpRequest(externalUserId, config.getName(), prompt)));
+                    }));
         } catch (NumberFormatException e) {
             // 这通常不会发生，因为正则表达式保证了是数字，但作为安全措施
             return Optional.of(new TextReply(getHelpText()));
@@ -52,6 +52,7 @@ public class MenuHandler implements MessageHandler {
                 • 语音回复: 在你的问题后加上 "语音回答"，我将用声音答复你。
                 • 历史记录: 发送 "我问过的问题" 或 "清空历史对话"。
                 • 统计信息: 发送 "对话统计" 或 "我的id"。
+                • 任务管理: 绘画等耗时操作会在后台处理，发送 "#任务" 查看进度，"#取消" 取消。
                                 
                 直接向我提问，或使用以上指令与我互动吧！
                 """;
@@ -5,6 +5,7 @@ import xlike.top.kn_ai_chat.domain.MessageLog;
 import xlike.top.kn_ai_chat.reply.Reply;
 import xlike.top.kn_ai_chat.reply.TextReply;
 import xlike.top.kn_ai_chat.service.AdminService;
+import xlike.top.kn_ai_chat.service.JobService;
 
 import java.util.List;
 import java.util.Optional;
@@ -24,9 +25,11 @@ public class UnifiedAdminHandler implements MessageHandler {
     private static final String FORCE_COMMAND = "#";
 
     private final AdminService adminService;
+    private final JobService jobService;
 
-    public UnifiedAdminHandler(AdminService adminService) {
+    public UnifiedAdminHandler(AdminService adminService, JobService jobService) {
         this.adminService = adminService;
+        this.jobService = jobService;
     }
 
     @Override
@@ -71,11 +74,11 @@ public class UnifiedAdminHandler implements MessageHandler {
 
         // 强制指令
         if (trimmedContent.startsWith(FORCE_COMMAND)) {
-            return handleToolExecution(externalUserId,trimmedContent);
+            return handleToolExecution(externalUserId, openKfid, trimmedContent);
         }
 
         // 如果不是以上特定指令，则视为通用的工具调用
-        return handleToolExecution(externalUserId, trimmedContent);
+        return handleToolExecution(externalUserId, openKfid, trimmedContent);
     }
 
     private Optional<Reply> handleAuthCommand(String externalUserId, String content) {
@@ -97,7 +100,12 @@ public class UnifiedAdminHandler implements MessageHandler {
         return Optional.of(adminService.updateConfig(key, value));
     }
 
-    private Optional<Reply> handleToolExecution(String externalUserId, String content) {
-        return Optional.of(adminService.executeTool(externalUserId, content));
+    private Optional<Reply> handleToolExecution(String externalUserId, String openKfid, String content) {
+        // 工具调用可能涉及搜索、邮件等多次外部请求，放到后台执行，完成后推送结果
+        return Optional.of(jobService.submit(externalUserId, openKfid, "tool", "⏳ 正在处理，请稍候…",
+                job -> {
+                    job.progress("调用工具");
+                    return Optional.of(adminService.executeTool(externalUserId, content));
+                }));
     }
 }
\ No newline at end of file
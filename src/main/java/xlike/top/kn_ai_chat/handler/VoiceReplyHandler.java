@@ -4,13 +4,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 import xlike.top.kn_ai_chat.domain.MessageLog;
-import xlike.top.kn_ai_chat.enums.MediaType;
 import xlike.top.kn_ai_chat.reply.Reply;
 import xlike.top.kn_ai_chat.reply.TextReply;
 import xlike.top.kn_ai_chat.reply.VoiceReply;
 import xlike.top.kn_ai_chat.service.*;
 
-import java.io.File;
 import java.util.List;
 import java.util.Optional;
 
@@ -23,16 +21,12 @@ public class VoiceReplyHandler implements MessageHandler {
     private static final Logger logger = LoggerFactory.getLogger(VoiceReplyHandler.class);
 
     private final AiService aiService;
-    private final SiliconFlowService siliconFlowService;
-    private final MediaService mediaService;
-    private final FormatFileService formatFileService;
+    private final VoiceReplyService voiceReplyService;
     private final UserConfigService userConfigService;
 
-    public VoiceReplyHandler(AiService aiService, SiliconFlowService siliconFlowService, MediaService mediaService, FormatFileService formatFileService, UserConfigService userConfigService) {
+    public VoiceReplyHandler(AiService aiService, VoiceReplyService voiceReplyService, UserConfigService userConfigService) {
         this.aiService = aiService;
-        this.siliconFlowService = siliconFlowService;
-        this.mediaService = mediaService;
-        this.formatFileService = formatFileService;
+        this.voiceReplyService = voiceReplyService;
         this.userConfigService = userConfigService;
     }
 
@@ -77,25 +71,9 @@ public class VoiceReplyHandler implements MessageHandler {
             return Optional.of(new TextReply("抱歉，我暂时无法回答这个问题。"));
         }
 
-        Optional<File> mp3FileOpt = siliconFlowService.generateSpeech(textReply, externalUserId);
-        if (mp3FileOpt.isEmpty()) {
-            return Optional.of(new TextReply("抱歉，语音文件生成失败。给您文字版回复：\n\n" + textReply));
-        }
-
-        File mp3File = mp3FileOpt.get();
-        Optional<File> amrFileOpt = formatFileService.convertToAmr(mp3File);
-        mp3File.delete();
-
-        if (amrFileOpt.isEmpty()) {
-            return Optional.of(new TextReply("抱歉，语音格式转换失败。给您文字版回复：\n\n" + textReply));
-        }
-        
-        Optional<String> mediaIdOpt = mediaService.uploadTemporaryMedia(amrFileOpt.get(), MediaType.VOICE);
-        
-        amrFileOpt.ifPresent(File::delete);
-
-        return mediaIdOpt.<Reply>map(VoiceReply::new)
-                .or(() -> Optional.of(new TextReply("语音文件上传失败，无法发送给您。")));
+        return voiceReplyService.synthesize(externalUserId, textReply)
+                .<Reply>map(VoiceReply::new)
+                .or(() -> Optional.of(new TextReply("抱歉，语音回复生成失败。给您文字版回复：\n\n" + textReply)));
     }
 
     @Override
@@ -0,0 +1,170 @@
+package xlike.top.kn_ai_chat.handler.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 管理员消息跨节点广播总线
+ * <p>
+ * 管理员的 WebSocket 会话只存在于其连接的节点上。需要推送给管理员的消息先投递给本节点的会话，
+ * 再发布到 Redis 频道，其他节点收到后投递给各自的会话，多节点部署无需会话粘滞。
+ * <p>
+ * 发布在单独的线程中进行：空闲时消息立即发布，同一发布窗口（publish-window-ms）内的后续消息合并为一批发布，
+ * 流量大时 Redis 发布次数不随消息数线性增长。
+ * @author xlike
+ */
+@Component
+public class AdminBroadcastBus implements MessageListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdminBroadcastBus.class);
+    private static final String BROADCAST_CHANNEL = "kn_ai_chat:admin_broadcast";
+
+    private final AdminSessionBroadcaster broadcaster;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary batchSize;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "admin-broadcast-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long lastPublishAt;
+
+    // 用于识别并忽略本节点自己发出的广播
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Value("${admin.websocket.bus.enabled:true}")
+    private boolean enabled;
+
+    @Value("${admin.websocket.bus.publish-window-ms:50}")
+    private long publishWindowMs;
+
+    @Value("${admin.websocket.bus.max-batch:100}")
+    private int maxBatch;
+
+    /**
+     * 发布到 Redis 的一批消息
+     */
+    private record Batch(String node, List<String> messages) {}
+
+    public AdminBroadcastBus(AdminSessionBroadcaster broadcaster,
+                             StringRedisTemplate redisTemplate,
+                             RedisMessageListenerContainer listenerContainer,
+                             MeterRegistry meterRegistry) {
+        this.broadcaster = broadcaster;
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+        this.batchSize = DistributionSummary.builder("admin.ws.bus.batch")
+                .description("每次发布到 Redis 的消息条数")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            listenerContainer.addMessageListener(this, new ChannelTopic(BROADCAST_CHANNEL));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        publisher.shutdown();
+        try {
+            // 尽量把尚未发布的消息发出去
+            publisher.awaitTermination(publishWindowMs * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 向所有节点上的管理员广播消息，不阻塞调用线程
+     */
+    public void publish(String messageJson) {
+        broadcaster.broadcast(messageJson);
+        if (!enabled) {
+            return;
+        }
+        pending.add(messageJson);
+        if (flushScheduled.compareAndSet(false, true)) {
+            long delay = Math.max(0, lastPublishAt + publishWindowMs - System.currentTimeMillis());
+            try {
+                publisher.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                flushScheduled.set(false);
+                logger.warn("调度管理员消息发布失败，消息只推送给本节点的管理员: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            Batch batch = objectMapper.readValue(message.getBody(), Batch.class);
+            if (nodeId.equals(batch.node())) {
+                return;
+            }
+            batch.messages().forEach(broadcaster::broadcast);
+            meterRegistry.counter("admin.ws.bus", "direction", "received").increment(batch.messages().size());
+        } catch (Exception e) {
+            logger.error("处理跨节点管理员广播失败", e);
+        }
+    }
+
+    private void flush() {
+        // 先清除标记再取消息，之后入队的消息会调度下一次发布，不会遗漏
+        flushScheduled.set(false);
+        List<String> messages = new ArrayList<>();
+        String next;
+        while ((next = pending.poll()) != null) {
+            messages.add(next);
+            if (messages.size() >= maxBatch) {
+                send(messages);
+                messages = new ArrayList<>();
+            }
+        }
+        if (!messages.isEmpty()) {
+            send(messages);
+        }
+    }
+
+    private void send(List<String> messages) {
+        try {
+            redisTemplate.convertAndSend(BROADCAST_CHANNEL, objectMapper.writeValueAsString(new Batch(nodeId, messages)));
+            batchSize.record(messages.size());
+            meterRegistry.counter("admin.ws.bus", "direction", "published").increment(messages.size());
+        } catch (Exception e) {
+            logger.error("发布 {} 条管理员消息到 Redis 失败，其他节点的管理员将收不到这些消息", messages.size(), e);
+        } finally {
+            lastPublishAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package xlike.top.kn_ai_chat.handler.websocket;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator.OverflowStrategy;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 管理员 WebSocket 消息广播器
+ * <p>
+ * 用户消息处理线程只把消息放入每个管理员会话自己的有界队列后立即返回，由独立的发送线程逐个会话发送，
+ * 某个管理员浏览器卡顿不会拖慢消息链路，也不会影响其他管理员：
+ * <ul>
+ *     <li>会话用 {@link ConcurrentWebSocketSessionDecorator} 包装，限制单次发送时长和缓冲区大小，超限即断开；</li>
+ *     <li>队列已满时丢弃最旧的消息（降级），管理员刷新页面即可重新加载历史记录；</li>
+ *     <li>单次发送卡住超过 send-time-limit-ms 的会话由定时检查主动断开。</li>
+ * </ul>
+ * 同一会话任何时刻只有一个线程在发送，消息按入队顺序送达。
+ * @author xlike
+ */
+@Component
+public class AdminSessionBroadcaster {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdminSessionBroadcaster.class);
+
+    /**
+     * Tomcat 阻塞发送的超时时间（毫秒），让卡住的发送线程能按时返回
+     */
+    private static final String TOMCAT_BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+    private final MeterRegistry meterRegistry;
+    private final Timer sendLagTimer;
+    private final Map<String, AdminSession> sessions = new ConcurrentHashMap<>();
+
+    @Value("${admin.websocket.send-time-limit-ms:10000}")
+    private int sendTimeLimitMs;
+
+    @Value("${admin.websocket.buffer-size-limit:524288}")
+    private int bufferSizeLimit;
+
+    @Value("${admin.websocket.queue-capacity:200}")
+    private int queueCapacity;
+
+    @Value("${admin.websocket.workers:4}")
+    private int workers;
+
+    private ThreadPoolExecutor executor;
+
+    private record Outbound(TextMessage message, long enqueuedAt) {}
+
+    /**
+     * 一个管理员会话及其待发送队列
+     */
+    private static final class AdminSession {
+        private final ConcurrentWebSocketSessionDecorator session;
+        private final BlockingQueue<Outbound> queue;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final AtomicInteger dropped = new AtomicInteger();
+
+        AdminSession(ConcurrentWebSocketSessionDecorator session, int queueCapacity) {
+            this.session = session;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+    }
+
+    public AdminSessionBroadcaster(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.sendLagTimer = Timer.builder("admin.ws.send.lag")
+                .description("消息从入队到发送完成的耗时")
+                .register(meterRegistry);
+        meterRegistry.gauge("admin.ws.sessions", sessions, Map::size);
+        meterRegistry.gauge("admin.ws.queued", sessions,
+                map -> map.values().stream().mapToInt(s -> s.queue.size()).sum());
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        // 每个会话同时最多只有一个发送任务，任务数不会超过会话数
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "admin-ws-send-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 注册新建立的管理员会话
+     */
+    public void register(WebSocketSession session) {
+        applyContainerSendTimeout(session);
+        ConcurrentWebSocketSessionDecorator decorated = new ConcurrentWebSocketSessionDecorator(
+                session, sendTimeLimitMs, bufferSizeLimit, OverflowStrategy.TERMINATE);
+        sessions.put(session.getId(), new AdminSession(decorated, queueCapacity));
+    }
+
+    public void unregister(WebSocketSession session) {
+        AdminSession removed = sessions.remove(session.getId());
+        if (removed != null) {
+            removed.queue.clear();
+        }
+    }
+
+    /**
+     * 向所有管理员会话广播消息，只入队不等待发送
+     */
+    public void broadcast(String messageJson) {
+        TextMessage message = new TextMessage(messageJson);
+        long now = System.nanoTime();
+        sessions.values().forEach(adminSession -> enqueue(adminSession, new Outbound(message, now)));
+    }
+
+    /**
+     * 向单个管理员会话发送消息（例如请求的响应），与广播消息共用发送队列，保证同一会话不会并发发送
+     */
+    public void send(WebSocketSession session, String messageJson) {
+        AdminSession adminSession = sessions.get(session.getId());
+        if (adminSession != null) {
+            enqueue(adminSession, new Outbound(new TextMessage(messageJson), System.nanoTime()));
+        }
+    }
+
+    /**
+     * 断开单次发送卡住超过时限的会话，释放发送线程
+     */
+    @Scheduled(fixedDelayString = "${admin.websocket.check-interval-ms:5000}")
+    public void closeStalledSessions() {
+        sessions.values().forEach(adminSession -> {
+            long sendingFor = adminSession.session.getTimeSinceSendStarted();
+            if (sendingFor > sendTimeLimitMs) {
+                logger.warn("管理员 session [{}] 单次发送已卡住 {} 毫秒，断开连接。", adminSession.session.getId(), sendingFor);
+                record("stalled");
+                close(adminSession, CloseStatus.SESSION_NOT_RELIABLE);
+            }
+        });
+    }
+
+    private void enqueue(AdminSession adminSession, Outbound outbound) {
+        while (!adminSession.queue.offer(outbound)) {
+            // 队列已满说明该管理员接收过慢，丢弃最旧的消息
+            if (adminSession.queue.poll() != null) {
+                record("dropped");
+                if (adminSession.dropped.getAndIncrement() % queueCapacity == 0) {
+                    logger.warn("管理员 session [{}] 接收过慢，已累计丢弃 {} 条消息。",
+                            adminSession.session.getId(), adminSession.dropped.get());
+                }
+            }
+        }
+        scheduleDrain(adminSession);
+    }
+
+    private void scheduleDrain(AdminSession adminSession) {
+        if (!adminSession.draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> drain(adminSession));
+        } catch (RejectedExecutionException e) {
+            adminSession.draining.set(false);
+        }
+    }
+
+    private void drain(AdminSession adminSession) {
+        try {
+            Outbound outbound;
+            while ((outbound = adminSession.queue.poll()) != null) {
+                if (!adminSession.session.isOpen()) {
+                    adminSession.queue.clear();
+                    return;
+                }
+                try {
+                    adminSession.session.sendMessage(outbound.message());
+                    sendLagTimer.record(System.nanoTime() - outbound.enqueuedAt(), TimeUnit.NANOSECONDS);
+                    record("sent");
+                } catch (SessionLimitExceededException e) {
+                    logger.warn("管理员 session [{}] 超出发送限制（{}），断开连接。", adminSession.session.getId(), e.getMessage());
+                    record("terminated");
+                    close(adminSession, e.getStatus());
+                    return;
+                } catch (IOException e) {
+                    logger.error("向管理员 session [{}] 发送消息失败", adminSession.session.getId(), e);
+                    record("failed");
+                }
+            }
+        } finally {
+            adminSession.draining.set(false);
+            // 释放标记与新消息入队之间存在竞争，重新检查一次
+            if (!adminSession.queue.isEmpty() && adminSession.session.isOpen()) {
+                scheduleDrain(adminSession);
+            }
+        }
+    }
+
+    private void close(AdminSession adminSession, CloseStatus status) {
+        sessions.remove(adminSession.session.getId(), adminSession);
+        adminSession.queue.clear();
+        try {
+            adminSession.session.close(status);
+        } catch (IOException e) {
+            logger.debug("关闭管理员 session [{}] 时出错", adminSession.session.getId(), e);
+        }
+    }
+
+    private void applyContainerSendTimeout(WebSocketSession session) {
+        if (session instanceof NativeWebSocketSession nativeSession) {
+            jakarta.websocket.Session container = nativeSession.getNativeSession(jakarta.websocket.Session.class);
+            if (container != null) {
+                container.getUserProperties().put(TOMCAT_BLOCKING_SEND_TIMEOUT, (long) sendTimeLimitMs);
+            }
+        }
+    }
+
+    private void record(String result) {
+        meterRegistry.counter("admin.ws.messages", "result", result).increment();
+    }
+}
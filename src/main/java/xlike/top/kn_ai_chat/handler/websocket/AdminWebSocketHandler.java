@@ -2,6 +2,8 @@ package xlike.top.kn_ai_chat.handler.websocket;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -11,14 +13,16 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 import xlike.top.kn_ai_chat.domain.ChatMessage;
-import xlike.top.kn_ai_chat.repository.ChatMessageRepository;
+import xlike.top.kn_ai_chat.dto.ChatHistoryPage;
+import xlike.top.kn_ai_chat.service.ChatHistoryService;
+import xlike.top.kn_ai_chat.service.MessageWriteBuffer;
 import xlike.top.kn_ai_chat.service.WeChatKfAccountService;
 import xlike.top.kn_ai_chat.service.WeChatService;
 
 import java.io.IOException;
 import java.time.LocalDateTime;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -28,48 +32,52 @@ import java.util.concurrent.TimeUnit;
 public class AdminWebSocketHandler extends TextWebSocketHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(AdminWebSocketHandler.class);
-    private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    private final ChatMessageRepository chatMessageRepository;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    private final MessageWriteBuffer messageWriteBuffer;
     private final WeChatService weChatService;
     private final StringRedisTemplate redisTemplate;
     private final WeChatKfAccountService weChatKfAccountService;
+    private final ChatHistoryService chatHistoryService;
+    private final AdminSessionBroadcaster broadcaster;
 
-    public AdminWebSocketHandler(ChatMessageRepository chatMessageRepository,
+    public AdminWebSocketHandler(MessageWriteBuffer messageWriteBuffer,
                                  WeChatService weChatService,
                                  StringRedisTemplate redisTemplate,
-                                 WeChatKfAccountService weChatKfAccountService) {
-        this.chatMessageRepository = chatMessageRepository;
+                                 WeChatKfAccountService weChatKfAccountService,
+                                 ChatHistoryService chatHistoryService,
+                                 AdminSessionBroadcaster broadcaster) {
+        this.messageWriteBuffer = messageWriteBuffer;
         this.weChatService = weChatService;
         this.redisTemplate = redisTemplate;
         this.weChatKfAccountService = weChatKfAccountService;
+        this.chatHistoryService = chatHistoryService;
+        this.broadcaster = broadcaster;
     }
 
-
     /**
-     * 向所有已连接的管理员客户端广播消息。
-     *
-     * @param messageJson 要发送的JSON格式的消息字符串。
+     * 管理员滚动到顶部时通过 WebSocket 请求更早的一页聊天记录
+     * 请求格式: {"action":"history","userId":"...","before":"游标","size":50}
      */
-    public void sendMessageToAdmins(String messageJson) {
-        TextMessage message = new TextMessage(messageJson);
-        // 遍历所有会话并发送消息
-        sessions.values().forEach(session -> {
-            try {
-                if (session.isOpen()) {
-                    session.sendMessage(message);
-                }
-            } catch (IOException e) {
-                logger.error("向管理员 session [{}] 发送消息失败", session.getId(), e);
-            }
-        });
+    private void sendHistoryPage(WebSocketSession session, Map<String, Object> request) throws IOException {
+        String userId = (String) request.get("userId");
+        String before = (String) request.get("before");
+        Integer size = request.get("size") instanceof Number number ? number.intValue() : null;
+        ChatHistoryPage page = chatHistoryService.loadPage(userId, before, null, size);
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("type", "history");
+        response.put("userId", userId);
+        response.put("messages", page.getMessages());
+        response.put("olderCursor", page.getOlderCursor());
+        broadcaster.send(session, objectMapper.writeValueAsString(response));
     }
 
-
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
         String adminId = "admin_" + session.getId();
-        sessions.put(adminId, session);
+        broadcaster.register(session);
         logger.info("管理员 WebSocket 连接建立: {}", adminId);
     }
 
@@ -81,6 +89,10 @@ public class AdminWebSocketHandler extends TextWebSocketHandler {
         try {
             Map<String, Object> msgData = objectMapper.readValue(payload, new TypeReference<>() {
             });
+            if ("history".equals(msgData.get("action"))) {
+                sendHistoryPage(session, msgData);
+                return;
+            }
             String recipientId = (String) msgData.get("recipientId");
             String typeStr = (String) msgData.get("type");
             String content = (String) msgData.get("content");
@@ -100,7 +112,7 @@ public class AdminWebSocketHandler extends TextWebSocketHandler {
             if (msgData.containsKey("meta")) {
                 chatMessage.setMeta(objectMapper.writeValueAsString(msgData.get("meta")));
             }
-            chatMessageRepository.save(chatMessage);
+            messageWriteBuffer.enqueue(chatMessage);
             String openKfid = weChatKfAccountService.getOpenKfid();
             switch (messageType) {
                 case TEXT:
@@ -116,14 +128,14 @@ public class AdminWebSocketHandler extends TextWebSocketHandler {
 
         } catch (Exception e) {
             logger.error("处理或发送管理员消息失败: {}", payload, e);
-            session.sendMessage(new TextMessage("{\"error\":\"发送失败: " + e.getMessage() + "\"}"));
+            broadcaster.send(session, "{\"error\":\"发送失败: " + e.getMessage() + "\"}");
         }
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
         String adminId = "admin_" + session.getId();
-        sessions.remove(adminId);
+        broadcaster.unregister(session);
         logger.info("管理员 WebSocket 连接关闭: {}, 原因: {}", adminId, status);
     }
 }
\ No newline at end of file
@@ -0,0 +1,125 @@
+package xlike.top.kn_ai_chat.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 媒体数据缓冲
+ * <p>
+ * 在各个媒体处理环节（下载、转码、压缩、上传）之间传递数据。小文件直接保存在内存中，
+ * 超过阈值或者下游库必须读取文件时，才会落到 {@link MediaTempArena} 管理的临时目录里。
+ * 使用完毕后必须 close()，关闭时会删除对应的临时文件。
+ * @author xlike
+ */
+public final class MediaBuffer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaBuffer.class);
+
+    private final MediaTempArena arena;
+    private final String filename;
+    private byte[] bytes;
+    private Path path;
+
+    MediaBuffer(MediaTempArena arena, String filename, byte[] bytes, Path path) {
+        this.arena = arena;
+        this.filename = filename;
+        this.bytes = bytes;
+        this.path = path;
+    }
+
+    /**
+     * @return 原始文件名，例如从 Content-Disposition 中解析出的名字
+     */
+    public String filename() {
+        return filename;
+    }
+
+    /**
+     * @return 不带点的扩展名，没有扩展名时返回空字符串
+     */
+    public String extension() {
+        return MediaTempArena.extensionOf(filename);
+    }
+
+    public long size() throws IOException {
+        return bytes != null ? bytes.length : Files.size(path);
+    }
+
+    /**
+     * @return 数据是否只存在于内存中（尚未落盘）
+     */
+    public boolean inMemory() {
+        return path == null;
+    }
+
+    public InputStream openStream() throws IOException {
+        return bytes != null ? new ByteArrayInputStream(bytes) : Files.newInputStream(path);
+    }
+
+    /**
+     * 读取全部内容。对已落盘的大文件会整体读入内存，只应在确实需要完整字节时调用。
+     */
+    public byte[] toByteArray() throws IOException {
+        return bytes != null ? bytes : Files.readAllBytes(path);
+    }
+
+    /**
+     * 获取文件路径，供只能读取文件的库（JAVE、PDFBox、POI 等）使用。
+     * 数据仍在内存中时会先写入临时目录，文件随本缓冲一起删除。
+     */
+    public Path toPath() throws IOException {
+        if (path == null) {
+            Path spilled = arena.newFile(filename);
+            Files.write(spilled, bytes);
+            path = spilled;
+            bytes = null;
+        }
+        return path;
+    }
+
+    /**
+     * 作为 multipart 上传的文件部分，保留原始文件名
+     */
+    public Resource asResource() {
+        if (path != null) {
+            return new FileSystemResource(path) {
+                @Override
+                public String getFilename() {
+                    return filename;
+                }
+            };
+        }
+        return new ByteArrayResource(bytes) {
+            @Override
+            public String getFilename() {
+                return filename;
+            }
+        };
+    }
+
+    /**
+     * 释放内存并删除临时文件，可以重复调用
+     */
+    @Override
+    public void close() {
+        bytes = null;
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.warn("删除媒体临时文件 {} 失败，将由定时清理任务处理。", path, e);
+            }
+            path = null;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package xlike.top.kn_ai_chat.media;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 媒体临时文件区
+ * <p>
+ * 所有媒体临时文件都集中放在一个受管理的目录中，不再使用 File.createTempFile + deleteOnExit
+ * （deleteOnExit 会把路径永久登记在 JVM 的关闭钩子里，长期运行会持续占用内存）。
+ * 数据默认放在内存中，只有超过 spill-threshold-bytes 才写入该目录；
+ * MediaBuffer 关闭时删除自己的文件，定时任务兜底清理超过 max-age-minutes 的遗留文件。
+ * @author xlike
+ */
+@Component
+public class MediaTempArena {
+
+    private static final Logger logger = LoggerFactory.getLogger(MediaTempArena.class);
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    @Value("${media.temp.dir:${java.io.tmpdir}/kn_ai_chat-media}")
+    private String tempDir;
+
+    @Value("${media.temp.spill-threshold-bytes:4194304}")
+    private int spillThresholdBytes;
+
+    @Value("${media.temp.max-age-minutes:30}")
+    private long maxAgeMinutes;
+
+    private Path root;
+
+    @PostConstruct
+    public void init() throws IOException {
+        root = Paths.get(tempDir).toAbsolutePath();
+        Files.createDirectories(root);
+        // 上次运行遗留的文件都已无人引用，启动时全部清理
+        int removed = deleteFiles(Instant.MAX);
+        logger.info("媒体临时目录: {}，内存阈值: {}KB，清理遗留文件 {} 个。", root, spillThresholdBytes / 1024, removed);
+    }
+
+    /**
+     * 从输入流读取媒体数据。数据量不超过阈值时只占用内存，超过时边读边写入临时文件。
+     * 不会关闭传入的输入流。
+     * @param in 输入流，例如 HTTP 响应体
+     * @param filename 原始文件名，用于确定扩展名
+     */
+    public MediaBuffer read(InputStream in, String filename) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        byte[] chunk = new byte[COPY_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            memory.write(chunk, 0, n);
+            if (memory.size() > spillThresholdBytes) {
+                Path file = newFile(filename);
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    memory.writeTo(out);
+                    in.transferTo(out);
+                } catch (IOException e) {
+                    Files.deleteIfExists(file);
+                    throw e;
+                }
+                return new MediaBuffer(this, filename, null, file);
+            }
+        }
+        return new MediaBuffer(this, filename, memory.toByteArray(), null);
+    }
+
+    /**
+     * 包装已经在内存中的数据
+     */
+    public MediaBuffer wrap(byte[] bytes, String filename) {
+        return new MediaBuffer(this, filename, bytes, null);
+    }
+
+    /**
+     * 接管一个由 {@link #newFile(String)} 创建的文件，文件随返回的缓冲一起删除
+     */
+    public MediaBuffer adopt(Path file, String filename) {
+        if (!file.toAbsolutePath().startsWith(root)) {
+            throw new IllegalArgumentException("文件不在媒体临时目录中: " + file);
+        }
+        return new MediaBuffer(this, filename, null, file);
+    }
+
+    /**
+     * 在临时目录中创建一个新文件，扩展名与给定文件名一致
+     * @param filename 文件名或扩展名（如 "a.mp3" / ".mp3"）
+     */
+    public Path newFile(String filename) throws IOException {
+        String extension = extensionOf(filename);
+        return Files.createTempFile(root, "media-", extension.isEmpty() ? ".tmp" : "." + extension);
+    }
+
+    /**
+     * 定时清理超过最大存活时间的遗留文件（正常情况下文件在 MediaBuffer 关闭时就已删除）
+     */
+    @Scheduled(fixedDelayString = "${media.temp.sweep-interval-ms:300000}")
+    public void sweep() {
+        int removed = deleteFiles(Instant.now().minus(Duration.ofMinutes(maxAgeMinutes)));
+        if (removed > 0) {
+            logger.warn("清理了 {} 个未被及时删除的媒体临时文件。", removed);
+        }
+    }
+
+    static String extensionOf(String filename) {
+        if (filename == null) {
+            return "";
+        }
+        int lastIndex = filename.lastIndexOf('.');
+        if (lastIndex == -1 || lastIndex == filename.length() - 1) {
+            return "";
+        }
+        return filename.substring(lastIndex + 1);
+    }
+
+    private int deleteFiles(Instant modifiedBefore) {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(root)) {
+            files = stream.filter(Files::isRegularFile).toList();
+        } catch (IOException e) {
+            logger.error("列出媒体临时目录 {} 失败", root, e);
+            return 0;
+        }
+        int removed = 0;
+        for (Path file : files) {
+            try {
+                if (Files.getLastModifiedTime(file).toInstant().isBefore(modifiedBefore) && Files.deleteIfExists(file)) {
+                    removed++;
+                }
+            } catch (IOException e) {
+                logger.warn("删除媒体临时文件 {} 失败", file, e);
+            }
+        }
+        return removed;
+    }
+}
@@ -1,8 +1,13 @@
 package xlike.top.kn_ai_chat.repository;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 import xlike.top.kn_ai_chat.domain.ChatMessage;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 /**
@@ -14,4 +19,30 @@ public interface ChatMessageRepository extends JpaRepository<ChatMessage, Long>
      * 查找两个用户之间的所有聊天记录
      */
     List<ChatMessage> findByExternalUserIdOrderByTimestampAsc(String userId);
-}
\ No newline at end of file
+
+    /**
+     * 查询某个用户最新的一页聊天记录（倒序）
+     */
+    @Transactional(readOnly = true)
+    List<ChatMessage> findByExternalUserIdOrderByTimestampDescIdDesc(String userId, Pageable pageable);
+
+    /**
+     * 游标分页：查询早于 (timestamp, id) 的聊天记录（倒序），走 (external_user_id, timestamp, id) 复合索引
+     */
+    @Transactional(readOnly = true)
+    @Query("select c from ChatMessage c where c.externalUserId = :userId " +
+            "and (c.timestamp < :timestamp or (c.timestamp = :timestamp and c.id < :id)) " +
+            "order by c.timestamp desc, c.id desc")
+    List<ChatMessage> findOlder(@Param("userId") String userId, @Param("timestamp") LocalDateTime timestamp,
+                                @Param("id") Long id, Pageable pageable);
+
+    /**
+     * 游标分页：查询晚于 (timestamp, id) 的聊天记录（正序）
+     */
+    @Transactional(readOnly = true)
+    @Query("select c from ChatMessage c where c.externalUserId = :userId " +
+            "and (c.timestamp > :timestamp or (c.timestamp = :timestamp and c.id > :id)) " +
+            "order by c.timestamp asc, c.id asc")
+    List<ChatMessage> findNewer(@Param("userId") String userId, @Param("timestamp") LocalDateTime timestamp,
+                                @Param("id") Long id, Pageable pageable);
+}
@@ -1,6 +1,9 @@
 package xlike.top.kn_ai_chat.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional; // 导入 @Transactional
 import xlike.top.kn_ai_chat.domain.Knowledge;
 
@@ -18,8 +21,11 @@ public interface KnowledgeBaseRepository extends JpaRepository<Knowledge, Long>
 
     /**
      * 根据用户ID删除其所有知识库条目
+     * 直接执行一条批量 DELETE 语句，不再逐条加载实体
      * @param externalUserId 用户的 external_userid
      */
     @Transactional
-    void deleteByExternalUserId(String externalUserId);
+    @Modifying
+    @Query("delete from Knowledge k where k.externalUserId = :externalUserId")
+    int deleteByExternalUserId(@Param("externalUserId") String externalUserId);
 }
\ No newline at end of file
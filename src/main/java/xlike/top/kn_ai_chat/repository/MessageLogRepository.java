@@ -2,6 +2,9 @@ package xlike.top.kn_ai_chat.repository;
 
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 import xlike.top.kn_ai_chat.domain.MessageLog;
 
@@ -12,27 +15,44 @@ import java.util.List;
  */
 public interface MessageLogRepository extends JpaRepository<MessageLog, Long> {
 
-    List<MessageLog> findByFromUserOrToUserOrderByTimestampDesc(String userId1, String userId2, Pageable pageable);
+    /**
+     * 按会话ID倒序查询历史消息，走 (conversation_id, timestamp DESC) 复合索引
+     * @param conversationId 会话ID (externalUserId)
+     * @param pageable 分页参数，用于限制查询数量
+     * @return 消息记录列表
+     */
+    List<MessageLog> findByConversationIdOrderByTimestampDesc(String conversationId, Pageable pageable);
 
     boolean existsByMsgId(String msgId);
-    
+
+    /**
+     * 分块删除某个会话的消息，每次最多删除 limit 行，调用方循环直到返回值小于 limit。
+     * 每块一个短事务，避免大用户长时间持有锁。
+     * @param conversationId 会话ID (externalUserId)
+     * @param limit 每块最多删除的行数
+     * @return 本块删除的行数
+     */
     @Transactional
-    void deleteByFromUserOrToUser(String fromUser, String toUser);
+    @Modifying
+    @Query(value = "DELETE FROM message_log WHERE id IN (SELECT id FROM message_log WHERE conversation_id = :conversationId LIMIT :limit)", nativeQuery = true)
+    int deleteChunkByConversationId(@Param("conversationId") String conversationId, @Param("limit") int limit);
 
-    long countByFromUserOrToUser(String fromUser, String toUser);
+    long countByConversationId(String conversationId);
 
     /**
-     * 根据发送者ID统计其发送的消息总数
-     * @param fromUser 发送者ID (externalUserId)
+     * 统计某个会话中由指定用户发送的消息总数
+     * @param conversationId 会话ID (externalUserId)
+     * @param fromUser 发送者ID
      * @return 消息总数
      */
-    long countByFromUser(String fromUser);
+    long countByConversationIdAndFromUser(String conversationId, String fromUser);
 
     /**
-     * 根据发送者ID，按时间倒序查询其发送的消息（分页）
+     * 按时间倒序查询某个会话中由指定用户发送的消息（分页）
+     * @param conversationId 会话ID (externalUserId)
      * @param fromUser 发送者ID
      * @param pageable 分页参数，用于限制查询数量
      * @return 消息记录列表
      */
-    List<MessageLog> findByFromUserOrderByTimestampDesc(String fromUser, Pageable pageable);
+    List<MessageLog> findByConversationIdAndFromUserOrderByTimestampDesc(String conversationId, String fromUser, Pageable pageable);
 }
\ No newline at end of file
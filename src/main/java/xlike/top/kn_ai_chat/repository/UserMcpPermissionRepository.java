@@ -1,33 +1,53 @@
 package xlike.top.kn_ai_chat.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 import xlike.top.kn_ai_chat.domain.UserMcpPermission;
 import java.util.List;
-import java.util.Optional;
 
 /**
  * @author xlike
  */
 public interface UserMcpPermissionRepository extends JpaRepository<UserMcpPermission, Long> {
 
-    // 检查特定用户对特定MCP连接的权限
-    boolean existsByExternalUserIdAndMcpConfigName(String externalUserId, String mcpConfigName);
+    /**
+     * 只查询 (用户ID, MCP 配置ID) 对，用于加载内存中的权限矩阵
+     */
+    @Query("select p.externalUserId, p.mcpConfig.id from UserMcpPermission p")
+    List<Object[]> findAllUserConfigPairs();
 
-    // 查找用户的全部权限
-    List<UserMcpPermission> findByExternalUserId(String externalUserId);
+    /**
+     * 只查询拥有某个 MCP 配置权限的用户ID
+     */
+    @Query("select p.externalUserId from UserMcpPermission p where p.mcpConfig.id = :mcpConfigId")
+    List<String> findExternalUserIdsByMcpConfigId(@Param("mcpConfigId") Long mcpConfigId);
+
+    boolean existsByExternalUserIdAndMcpConfigId(String externalUserId, Long mcpConfigId);
 
-    // 查找特定权限记录，用于撤销
-    Optional<UserMcpPermission> findByExternalUserIdAndMcpConfigId(String externalUserId, Long mcpConfigId);
-    
     // 根据用户和配置ID删除权限
     @Transactional
-    void deleteByExternalUserIdAndMcpConfigId(String externalUserId, Long mcpConfigId);
-
-    // 根据 MCP 配置 ID 查找所有权限记录
-    List<UserMcpPermission> findByMcpConfigId(Long mcpConfigId);
+    @Modifying
+    @Query("delete from UserMcpPermission p where p.externalUserId = :externalUserId and p.mcpConfig.id = :mcpConfigId")
+    int deleteByExternalUserIdAndMcpConfigId(@Param("externalUserId") String externalUserId, @Param("mcpConfigId") Long mcpConfigId);
 
     // 根据 MCP 配置 ID 批量删除权限记录，并返回删除的数量
     @Transactional
-    long deleteByMcpConfigId(Long mcpConfigId);
-}
\ No newline at end of file
+    @Modifying
+    @Query("delete from UserMcpPermission p where p.mcpConfig.id = :mcpConfigId")
+    int deleteByMcpConfigId(@Param("mcpConfigId") Long mcpConfigId);
+
+    /**
+     * 为所有尚无权限的用户授予某个 MCP 配置的权限，在数据库中一条语句完成
+     * @return 新增的权限记录数
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO user_mcp_permission (external_user_id, mcp_config_id) " +
+            "SELECT u.external_user_id, :mcpConfigId FROM we_chat_user u " +
+            "WHERE NOT EXISTS (SELECT 1 FROM user_mcp_permission p " +
+            "WHERE p.external_user_id = u.external_user_id AND p.mcp_config_id = :mcpConfigId)", nativeQuery = true)
+    int grantToAllUsers(@Param("mcpConfigId") Long mcpConfigId);
+}
@@ -1,10 +1,65 @@
 package xlike.top.kn_ai_chat.repository;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 import xlike.top.kn_ai_chat.domain.WeChatUser;
 
+import java.util.List;
+
 /**
  * @author xlike
  */
 public interface WeChatUserRepository extends JpaRepository<WeChatUser, String> {
-}
\ No newline at end of file
+
+    /**
+     * 只查询所有用户的ID，用于加载内存中的用户注册表
+     */
+    @Query("select u.externalUserId from WeChatUser u")
+    List<String> findAllExternalUserIds();
+
+    /**
+     * 只查询被拉黑用户的ID
+     */
+    @Query("select u.externalUserId from WeChatUser u where u.blocked = true")
+    List<String> findBlockedExternalUserIds();
+
+    /**
+     * 分页查询用户，支持按昵称模糊匹配和拉黑状态过滤，参数为 null 时不过滤。
+     * 只读事务，启用读写分离时走只读副本
+     */
+    @Transactional(readOnly = true)
+    @Query("select u from WeChatUser u " +
+            "where (:nickname is null or lower(u.nickname) like lower(concat('%', :nickname, '%'))) " +
+            "and (:blocked is null or u.blocked = :blocked)")
+    Page<WeChatUser> search(@Param("nickname") String nickname, @Param("blocked") Boolean blocked, Pageable pageable);
+
+    /**
+     * 增量更新用户的提问次数
+     * @return 受影响的行数，用户尚未入库时为 0
+     */
+    @Transactional
+    @Modifying
+    @Query("update WeChatUser u set u.questionCount = u.questionCount + :delta where u.externalUserId = :externalUserId")
+    int addQuestionCount(@Param("externalUserId") String externalUserId, @Param("delta") long delta);
+
+    /**
+     * 直接设置用户的提问次数，用于新用户入库时按已落库的消息初始化
+     */
+    @Transactional
+    @Modifying
+    @Query("update WeChatUser u set u.questionCount = :count where u.externalUserId = :externalUserId")
+    int setQuestionCount(@Param("externalUserId") String externalUserId, @Param("count") long count);
+
+    /**
+     * 清空历史记录后将提问次数归零
+     */
+    @Transactional
+    @Modifying
+    @Query("update WeChatUser u set u.questionCount = 0 where u.externalUserId = :externalUserId")
+    int resetQuestionCount(@Param("externalUserId") String externalUserId);
+}
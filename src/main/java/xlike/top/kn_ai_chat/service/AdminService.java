@@ -1,7 +1,6 @@
 package xlike.top.kn_ai_chat.service;
 
 import dev.langchain4j.memory.ChatMemory;
-import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.openai.OpenAiChatModel;
 import dev.langchain4j.service.AiServices;
 import org.slf4j.Logger;
@@ -18,8 +17,6 @@ import xlike.top.kn_ai_chat.tools.tool.EmailTool;
 import xlike.top.kn_ai_chat.tools.tool.GoogleSearchTool;
 import xlike.top.kn_ai_chat.tools.tool.NotionTool;
 import xlike.top.kn_ai_chat.utils.MarkdownCleanerUtil;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -32,8 +29,6 @@ public class AdminService {
     private static final long ADMIN_SESSION_TIMEOUT_DAYS = 7; 
     private static final Logger log = LoggerFactory.getLogger(AdminService.class);
 
-    private final Map<String, ChatMemory> userChatMemories = new ConcurrentHashMap<>();
-
     private final StringRedisTemplate redisTemplate;
     private final UserConfigService userConfigService;
     private final BraveSearchTool braveSearchTool;
@@ -41,6 +36,7 @@ public class AdminService {
     private final String adminPassword;
     private final GoogleSearchTool googleSearchTool;
     private final NotionTool notionTool;
+    private final PersistentChatMemoryStore chatMemoryStore;
 
     public AdminService(StringRedisTemplate redisTemplate,
                         UserConfigService userConfigService,
@@ -48,6 +44,7 @@ public class AdminService {
                         EmailTool emailTool,
                         GoogleSearchTool googleSearchTool,
                         NotionTool notionTool,
+                        PersistentChatMemoryStore chatMemoryStore,
                         @Value("${admin.password}") String adminPassword) {
         this.redisTemplate = redisTemplate;
         this.userConfigService = userConfigService;
@@ -55,6 +52,7 @@ public class AdminService {
         this.emailTool = emailTool;
         this.googleSearchTool = googleSearchTool;
         this.notionTool = notionTool;
+        this.chatMemoryStore = chatMemoryStore;
         this.adminPassword = adminPassword;
     }
 
@@ -62,7 +60,7 @@ public class AdminService {
         if (adminPassword.equals(password)) {
             String redisKey = ADMIN_SESSION_KEY_PREFIX + externalUserId;
             redisTemplate.opsForValue().set(redisKey, "true", ADMIN_SESSION_TIMEOUT_DAYS, TimeUnit.DAYS);
-            userChatMemories.remove(externalUserId);
+            chatMemoryStore.deleteMessages(PersistentChatMemoryStore.ADMIN_MEMORY_PREFIX + externalUserId);
             return new TextReply("✅ 认证成功！获得管理员权限" + ADMIN_SESSION_TIMEOUT_DAYS + "天。");
         } else {
             return new TextReply("❌ 认证失败：密码错误。");
@@ -78,7 +76,7 @@ public class AdminService {
         String redisKey = ADMIN_SESSION_KEY_PREFIX + externalUserId;
         Boolean deleted = redisTemplate.delete(redisKey);
         if (Boolean.TRUE.equals(deleted)) {
-            userChatMemories.remove(externalUserId);
+            chatMemoryStore.deleteMessages(PersistentChatMemoryStore.ADMIN_MEMORY_PREFIX + externalUserId);
             log.info("管理员 [{}] 已退出登录。", externalUserId);
             return new TextReply("✅ 您已成功退出管理员模式。");
         } else {
@@ -133,10 +131,8 @@ public class AdminService {
                 .logResponses(true)
                 .build();
                 
-        ChatMemory chatMemory = userChatMemories.computeIfAbsent(
-                externalUserId,
-                id -> MessageWindowChatMemory.withMaxMessages(10)
-        );
+        // 对话记忆持久化在 Redis 中，内存只保留最近活跃的会话
+        ChatMemory chatMemory = chatMemoryStore.chatMemory(PersistentChatMemoryStore.ADMIN_MEMORY_PREFIX + externalUserId);
         Bot bot = AiServices.builder(Bot.class)
                 .chatModel(openAiChatModel)
                 .tools(googleSearchTool, braveSearchTool, emailTool, notionTool)
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.splitter.DocumentSplitters;
 import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.memory.ChatMemory;
 import dev.langchain4j.memory.chat.MessageWindowChatMemory;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
@@ -46,6 +47,7 @@ public class AiService {
     private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final UserConfigService userConfigService;
+    private final PersistentChatMemoryStore chatMemoryStore;
 
     /**
      * 固定的JSON指令
@@ -53,9 +55,10 @@ public class AiService {
     private static final String JSON_STRUCTURE_PROMPT = " 你会用json回答用户的问题，回答的文本中，不要出现(描述)等特殊描述符号，和颜文字！并且json中只有一个reply_text，最好不要出现换行,例如[{\"answer\":{\"reply_text:'你好啊'}}],严格使用我的json结构。";
 
 
-    public AiService(RestTemplate restTemplate, UserConfigService userConfigService) {
+    public AiService(RestTemplate restTemplate, UserConfigService userConfigService, PersistentChatMemoryStore chatMemoryStore) {
         this.restTemplate = restTemplate;
         this.userConfigService = userConfigService;
+        this.chatMemoryStore = chatMemoryStore;
     }
 
     /**
@@ -120,7 +123,7 @@ public class AiService {
         if (aiConfig.isRagEnabled()) {
             // RAG 模式
             logger.info("用户 [{}] 启用RAG模式进行知识库问答", externalUserId);
-            return executeRagAssistant(userQuestion, context, aiConfig);
+            return executeRagAssistant(PersistentChatMemoryStore.RAG_MEMORY_PREFIX + externalUserId, userQuestion, context, aiConfig);
         } else {
             // 传统上下文模式
             logger.info("用户 [{}] 使用传统上下文模式进行知识库问答", externalUserId);
@@ -130,9 +133,18 @@ public class AiService {
 
 
     /**
-     * RAG模式：使用Langchain4j构建AI助手
+     * RAG模式：使用Langchain4j构建AI助手，不保留对话记忆
      */
     public String executeRagAssistant(String userQuestion, String knowledgeBase, AiConfig aiConfig) {
+        return executeRagAssistant(null, userQuestion, knowledgeBase, aiConfig);
+    }
+
+    /**
+     * RAG模式：使用Langchain4j构建AI助手
+     *
+     * @param memoryId 对话记忆ID，同一ID的多轮问答共享持久化的对话记忆；为 null 时只使用本次调用的临时记忆
+     */
+    public String executeRagAssistant(String memoryId, String userQuestion, String knowledgeBase, AiConfig aiConfig) {
         try {
             // 创建文档
             Document document = Document.from(knowledgeBase);
@@ -178,11 +190,14 @@ public class AiService {
                     .logResponses(true)
                     .build();
 
+            ChatMemory chatMemory = memoryId != null
+                    ? chatMemoryStore.ragChatMemory(memoryId, userQuestion)
+                    : MessageWindowChatMemory.withMaxMessages(10);
             // 使用AiServices将所有组件组合成一个AI助手
             Bot bot = AiServices.builder(Bot.class)
                     .chatModel(chatModel)
                     .contentRetriever(contentRetriever)
-                    .chatMemory(MessageWindowChatMemory.withMaxMessages(10))
+                    .chatMemory(chatMemory)
                     .build();
 
             String response = bot.chat(userQuestion);
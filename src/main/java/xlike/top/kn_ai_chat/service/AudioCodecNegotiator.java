@@ -0,0 +1,148 @@
+package xlike.top.kn_ai_chat.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import xlike.top.kn_ai_chat.enums.AudioFormat;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 音频编解码协商
+ * <p>
+ * 根据语音识别（STT）接口支持的输入格式、语音合成（TTS）接口可输出的格式以及微信语音要求的 AMR 格式，
+ * 只在格式不匹配时才转码，并且总是选择编码开销最低的目标格式：
+ * <ul>
+ *     <li>用户语音（AMR）如果 STT 不支持，转成 16kHz 单声道 WAV，而不是再做一次 MP3 编码；</li>
+ *     <li>TTS 直接输出最便宜的中间格式（默认 8kHz WAV），转 AMR 时无需先解码 MP3 或重采样。</li>
+ * </ul>
+ * @author xlike
+ */
+@Service
+public class AudioCodecNegotiator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AudioCodecNegotiator.class);
+
+    private static final String PATH_STT = "stt";
+    private static final String PATH_WECHAT_VOICE = "wechat_voice";
+
+    private final FormatFileService formatFileService;
+    private final MeterRegistry meterRegistry;
+
+    private final Set<String> sttAcceptedExtensions;
+    private final AudioFormat sttTargetFormat;
+    private final AudioFormat ttsOutputFormat;
+    private final Integer ttsSampleRate;
+
+    public AudioCodecNegotiator(FormatFileService formatFileService,
+                                MeterRegistry meterRegistry,
+                                @Value("${audio.codec.stt-accepts:wav,mp3,pcm,opus,webm}") List<String> sttAccepts,
+                                @Value("${audio.codec.tts-produces:wav,mp3,pcm,opus}") List<String> ttsProduces,
+                                @Value("${audio.codec.tts-sample-rate:8000}") Integer ttsSampleRate) {
+        this.formatFileService = formatFileService;
+        this.meterRegistry = meterRegistry;
+        this.sttAcceptedExtensions = normalize(sttAccepts);
+        this.sttTargetFormat = cheapestOf(sttAcceptedExtensions).orElse(AudioFormat.WAV);
+        Set<String> ttsExtensions = normalize(ttsProduces);
+        // TTS 能直接输出 AMR 时完全不需要转码，否则选择转 AMR 代价最低的格式
+        this.ttsOutputFormat = ttsExtensions.contains(AudioFormat.AMR.getExtension())
+                ? AudioFormat.AMR
+                : cheapestOf(ttsExtensions).orElse(AudioFormat.MP3);
+        this.ttsSampleRate = ttsOutputFormat == AudioFormat.WAV ? ttsSampleRate : null;
+        logger.info("音频格式协商：STT 接收 {}，需要时转为 {}；TTS 输出 {}{}。",
+                sttAcceptedExtensions, sttTargetFormat, ttsOutputFormat,
+                this.ttsSampleRate != null ? "（" + this.ttsSampleRate + "Hz）" : "");
+    }
+
+    /**
+     * @return 请求 TTS 时使用的输出格式
+     */
+    public AudioFormat ttsOutputFormat() {
+        return ttsOutputFormat;
+    }
+
+    /**
+     * @return 请求 TTS 时指定的采样率，为 null 时使用接口默认值
+     */
+    public Integer ttsSampleRate() {
+        return ttsSampleRate;
+    }
+
+    /**
+     * 准备语音识别的输入。格式已被 STT 支持时直接返回传入的对象，否则转码。
+     * @return 可提交给 STT 的音频；如果是新对象，由调用方负责关闭
+     */
+    public Optional<MediaBuffer> forSpeechRecognition(MediaBuffer source) {
+        return negotiate(source, sttAcceptedExtensions, sttTargetFormat, PATH_STT);
+    }
+
+    /**
+     * 准备微信语音消息的上传内容（AMR）。已经是 AMR 时直接返回传入的对象，否则转码。
+     * @return AMR 音频；如果是新对象，由调用方负责关闭
+     */
+    public Optional<MediaBuffer> forWeChatVoice(MediaBuffer source) {
+        return negotiate(source, Set.of(AudioFormat.AMR.getExtension()), AudioFormat.AMR, PATH_WECHAT_VOICE);
+    }
+
+    private Optional<MediaBuffer> negotiate(MediaBuffer source, Set<String> accepted, AudioFormat target, String path) {
+        Timer transcodeTimer = Timer.builder("media.codec.transcode")
+                .description("协商后实际发生的转码耗时")
+                .tag("path", path)
+                .register(meterRegistry);
+
+        if (accepted.contains(source.extension().toLowerCase())) {
+            counter(path, "passthrough").increment();
+            // 以同一路径上实际转码的平均耗时估算本次节省的时间
+            if (transcodeTimer.count() > 0) {
+                Timer.builder("media.codec.saved")
+                        .description("跳过转码估算节省的时间")
+                        .tag("path", path)
+                        .register(meterRegistry)
+                        .record((long) transcodeTimer.mean(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            }
+            logger.debug("音频 {} 格式已满足 {} 的要求，跳过转码。", source.filename(), path);
+            return Optional.of(source);
+        }
+
+        counter(path, "transcode").increment();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Optional<MediaBuffer> result = formatFileService.convert(source, target);
+        if (result.isPresent()) {
+            sample.stop(transcodeTimer);
+        }
+        return result;
+    }
+
+    private Counter counter(String path, String action) {
+        return Counter.builder("media.codec.negotiation")
+                .description("音频格式协商结果")
+                .tag("path", path)
+                .tag("action", action)
+                .register(meterRegistry);
+    }
+
+    private static Set<String> normalize(List<String> extensions) {
+        return extensions.stream()
+                .map(String::trim)
+                .map(String::toLowerCase)
+                .filter(extension -> !extension.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    private static Optional<AudioFormat> cheapestOf(Set<String> extensions) {
+        return extensions.stream()
+                .map(AudioFormat::fromExtension)
+                .flatMap(Optional::stream)
+                .min(Comparator.comparingInt(AudioFormat::getEncodeCost));
+    }
+}
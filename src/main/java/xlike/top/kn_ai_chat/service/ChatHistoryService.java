@@ -0,0 +1,90 @@
+package xlike.top.kn_ai_chat.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import xlike.top.kn_ai_chat.domain.ChatMessage;
+import xlike.top.kn_ai_chat.dto.ChatHistoryPage;
+import xlike.top.kn_ai_chat.dto.ChatHistoryPage.Cursor;
+import xlike.top.kn_ai_chat.repository.ChatMessageRepository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 人工客服聊天记录的游标分页查询
+ * <p>
+ * 查询前会先把写缓冲刷入主库，刚刷入的消息在只读副本上可能还不可见，
+ * 因此分页查询放在读写事务中执行，始终从主库读取。
+ * @author xlike
+ */
+@Service
+public class ChatHistoryService {
+
+    private static final int MAX_PAGE_SIZE = 200;
+
+    private final ChatMessageRepository chatMessageRepository;
+    private final MessageWriteBuffer messageWriteBuffer;
+    private final TransactionTemplate primaryRead;
+
+    @Value("${chat.history.page-size:50}")
+    private int defaultPageSize;
+
+    public ChatHistoryService(ChatMessageRepository chatMessageRepository, MessageWriteBuffer messageWriteBuffer,
+                              PlatformTransactionManager transactionManager) {
+        this.chatMessageRepository = chatMessageRepository;
+        this.messageWriteBuffer = messageWriteBuffer;
+        // 非只读事务：仓库方法上的 readOnly 加入该事务后不再把连接切到副本
+        this.primaryRead = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * 查询一页聊天记录
+     * @param userId 用户ID
+     * @param before 向前翻页的游标（加载更早的消息），可选
+     * @param after 向后翻页的游标（加载更新的消息），可选
+     * @param size 每页条数，为 null 时使用默认值
+     * @return 一页聊天记录；两个游标都为空时返回最新的一页
+     */
+    public ChatHistoryPage loadPage(String userId, String before, String after, Integer size) {
+        int pageSize = size == null ? defaultPageSize : Math.min(Math.max(size, 1), MAX_PAGE_SIZE);
+        // 多查一条用来判断是否还有下一页
+        PageRequest limit = PageRequest.of(0, pageSize + 1);
+        messageWriteBuffer.flush();
+        return primaryRead.execute(status -> query(userId, before, after, pageSize, limit));
+    }
+
+    private ChatHistoryPage query(String userId, String before, String after, int pageSize, PageRequest limit) {
+        if (after != null && !after.isBlank()) {
+            Cursor cursor = ChatHistoryPage.decodeCursor(after);
+            List<ChatMessage> newer = new ArrayList<>(chatMessageRepository.findNewer(userId, cursor.timestamp(), cursor.id(), limit));
+            boolean hasMore = newer.size() > pageSize;
+            if (hasMore) {
+                newer.remove(newer.size() - 1);
+            }
+            String olderCursor = newer.isEmpty() ? after : ChatHistoryPage.encodeCursor(newer.get(0));
+            String newerCursor = hasMore ? ChatHistoryPage.encodeCursor(newer.get(newer.size() - 1)) : null;
+            return new ChatHistoryPage(newer, olderCursor, newerCursor);
+        }
+
+        List<ChatMessage> older;
+        if (before != null && !before.isBlank()) {
+            Cursor cursor = ChatHistoryPage.decodeCursor(before);
+            older = new ArrayList<>(chatMessageRepository.findOlder(userId, cursor.timestamp(), cursor.id(), limit));
+        } else {
+            older = new ArrayList<>(chatMessageRepository.findByExternalUserIdOrderByTimestampDescIdDesc(userId, limit));
+        }
+        boolean hasMore = older.size() > pageSize;
+        if (hasMore) {
+            older.remove(older.size() - 1);
+        }
+        Collections.reverse(older);
+        String olderCursor = hasMore ? ChatHistoryPage.encodeCursor(older.get(0)) : null;
+        String newerCursor = before == null || before.isBlank() || older.isEmpty()
+                ? null : ChatHistoryPage.encodeCursor(older.get(older.size() - 1));
+        return new ChatHistoryPage(older, olderCursor, newerCursor);
+    }
+}
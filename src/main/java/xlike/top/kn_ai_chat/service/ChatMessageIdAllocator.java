@@ -0,0 +1,58 @@
+package xlike.top.kn_ai_chat.service;
+
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.jdbc.support.incrementer.DataFieldMaxValueIncrementer;
+import org.springframework.jdbc.support.incrementer.H2SequenceMaxValueIncrementer;
+import org.springframework.jdbc.support.incrementer.PostgresSequenceMaxValueIncrementer;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.DatabaseMetaData;
+
+/**
+ * ChatMessage 主键分配器
+ * <p>
+ * ChatMessage 经写缓冲异步落库，但在入队时就要推送给管理员、参与分页游标，因此主键在入队时立即分配。
+ * 每次从 chat_message_seq 取一个值 V，本节点独占 [V, V + 50) 这一段，用完再取下一段，
+ * 步长与 V3 迁移中序列的 INCREMENT BY 一致，多个节点之间不会重复。
+ * @author xlike
+ */
+@Component
+public class ChatMessageIdAllocator {
+
+    private static final String SEQUENCE = "chat_message_seq";
+    private static final int BLOCK_SIZE = 50;
+
+    private final DataSource dataSource;
+    private DataFieldMaxValueIncrementer incrementer;
+    private long next;
+    private long limit;
+
+    public ChatMessageIdAllocator(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public synchronized long nextId() {
+        if (next >= limit) {
+            next = incrementer().nextLongValue();
+            limit = next + BLOCK_SIZE;
+        }
+        return next++;
+    }
+
+    private DataFieldMaxValueIncrementer incrementer() {
+        if (incrementer == null) {
+            String product;
+            try {
+                product = JdbcUtils.extractDatabaseMetaData(dataSource, DatabaseMetaData::getDatabaseProductName);
+            } catch (MetaDataAccessException e) {
+                throw new IllegalStateException("无法识别数据库类型，不能分配 ChatMessage 主键", e);
+            }
+            incrementer = "PostgreSQL".equalsIgnoreCase(product)
+                    ? new PostgresSequenceMaxValueIncrementer(dataSource, SEQUENCE)
+                    : new H2SequenceMaxValueIncrementer(dataSource, SEQUENCE);
+        }
+        return incrementer;
+    }
+}
@@ -0,0 +1,270 @@
+package xlike.top.kn_ai_chat.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import xlike.top.kn_ai_chat.domain.MessageLog;
+import xlike.top.kn_ai_chat.store.MessageLogStore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 会话热窗口缓存
+ * <p>
+ * 为每个活跃用户在内存中保留最近 N 条对话记录，写消息时同步追加，
+ * 处理文本/语音消息时直接读取，只有冷启动（缓存中没有该用户）时才查询数据库。
+ * 空闲超时的会话会被定时清理，并限制最多缓存的会话数量，保证内存有界。
+ * <p>
+ * 清空历史、删除用户时除了清除本节点的缓存，还通过 Redis 频道通知其他节点清除，避免其他节点继续使用旧的对话窗口。
+ * 被清除的窗口会标记为失效，仍持有其引用的并发读写发现后改用新窗口，不会把消息追加到已清除的窗口里。
+ * @author xlike
+ */
+@Service
+public class ConversationWindowCache implements MessageListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversationWindowCache.class);
+    private static final String EVICT_CHANNEL = "kn_ai_chat:conversation_window_evict";
+    private static final String SEPARATOR = "|";
+    private static final String ALL = "*";
+
+    private final MessageLogStore messageLogStore;
+    private final MessageWriteBuffer messageWriteBuffer;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    // 用于识别并忽略本节点自己发出的广播
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Value("${history.window.size:10}")
+    private int windowSize;
+
+    @Value("${history.window.idle-minutes:30}")
+    private long idleMinutes;
+
+    @Value("${history.window.max-conversations:10000}")
+    private int maxConversations;
+
+    public ConversationWindowCache(MessageLogStore messageLogStore, MessageWriteBuffer messageWriteBuffer,
+                                   StringRedisTemplate redisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.messageLogStore = messageLogStore;
+        this.messageWriteBuffer = messageWriteBuffer;
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(EVICT_CHANNEL));
+    }
+
+    /**
+     * 获取某个会话最近的对话记录（按时间正序）
+     * 返回的是副本，调用方可以随意修改而不会污染缓存
+     * @param conversationId 会话ID (externalUserId)
+     * @return 最近的对话记录
+     */
+    public List<MessageLog> getRecent(String conversationId) {
+        while (true) {
+            Window window = windows.computeIfAbsent(conversationId, k -> new Window());
+            synchronized (window) {
+                if (window.evicted) {
+                    continue;
+                }
+                ensureLoaded(conversationId, window);
+                window.lastAccess = System.currentTimeMillis();
+                List<MessageLog> result = new ArrayList<>(window.messages.size());
+                window.messages.forEach(m -> result.add(copyOf(m)));
+                return result;
+            }
+        }
+    }
+
+    /**
+     * 追加一条新写入的消息（写穿透）
+     * @param log 新消息
+     */
+    public void append(MessageLog log) {
+        String conversationId = log.getConversationId();
+        if (conversationId == null) {
+            return;
+        }
+        while (true) {
+            Window window = windows.computeIfAbsent(conversationId, k -> new Window());
+            synchronized (window) {
+                if (window.evicted) {
+                    // 取到窗口后它被清除了，换新窗口（重新从存储加载）再追加
+                    continue;
+                }
+                ensureLoaded(conversationId, window);
+                window.messages.addLast(copyOf(log));
+                while (window.messages.size() > windowSize) {
+                    window.messages.removeFirst();
+                }
+                window.lastAccess = System.currentTimeMillis();
+                break;
+            }
+        }
+        if (windows.size() > maxConversations) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    /**
+     * 清除某个会话的缓存并通知其他节点，在清空历史记录或删除用户时调用
+     */
+    public void evict(String conversationId) {
+        evictLocally(conversationId);
+        publishEvict(conversationId);
+    }
+
+    /**
+     * 清除全部缓存并通知其他节点
+     */
+    public void clear() {
+        new ArrayList<>(windows.keySet()).forEach(this::evictLocally);
+        publishEvict(ALL);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String[] parts = body.split("\\" + SEPARATOR, 2);
+        if (parts.length != 2 || nodeId.equals(parts[0])) {
+            return;
+        }
+        if (ALL.equals(parts[1])) {
+            new ArrayList<>(windows.keySet()).forEach(this::evictLocally);
+        } else {
+            evictLocally(parts[1]);
+        }
+    }
+
+    private void evictLocally(String conversationId) {
+        Window window = windows.remove(conversationId);
+        if (window != null) {
+            retire(window);
+        }
+    }
+
+    /**
+     * 标记已移出缓存的窗口，等正在进行的加载或追加结束后生效，之后拿到旧引用的调用会改用新窗口
+     */
+    private static void retire(Window window) {
+        synchronized (window) {
+            window.evicted = true;
+        }
+    }
+
+    private void publishEvict(String conversationId) {
+        try {
+            redisTemplate.convertAndSend(EVICT_CHANNEL, nodeId + SEPARATOR + conversationId);
+        } catch (Exception e) {
+            logger.error("广播清除会话 [{}] 的窗口缓存失败", conversationId, e);
+        }
+    }
+
+    /**
+     * 定时清理长时间没有消息往来的会话
+     */
+    @Scheduled(fixedDelayString = "${history.window.sweep-interval-ms:60000}")
+    public void evictIdleConversations() {
+        long deadline = System.currentTimeMillis() - idleMinutes * 60_000;
+        int before = windows.size();
+        windows.forEach((conversationId, window) -> {
+            if (window.lastAccess < deadline && windows.remove(conversationId, window)) {
+                retire(window);
+            }
+        });
+        int removed = before - windows.size();
+        if (removed > 0) {
+            logger.debug("清理了 {} 个空闲会话窗口，当前缓存 {} 个。", removed, windows.size());
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        int overflow = windows.size() - maxConversations;
+        if (overflow <= 0) {
+            return;
+        }
+        windows.entrySet().stream()
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().lastAccess))
+                .limit(overflow)
+                .toList()
+                .forEach(entry -> {
+                    if (windows.remove(entry.getKey(), entry.getValue())) {
+                        retire(entry.getValue());
+                    }
+                });
+    }
+
+    private void ensureLoaded(String conversationId, Window window) {
+        if (window.loaded) {
+            return;
+        }
+        // 写缓冲中尚未落库的消息直接合并进来，不在请求线程上同步刷新。
+        // 先取缓冲区快照再查存储，期间刚落库的消息两边都会出现，按主键或消息ID去重
+        List<MessageLog> pending = messageWriteBuffer.pendingMessageLogs(conversationId);
+        List<MessageLog> recent = new ArrayList<>(messageLogStore.findLatest(conversationId, windowSize));
+        Collections.reverse(recent);
+        Set<Long> storedIds = new HashSet<>();
+        Set<String> storedMsgIds = new HashSet<>();
+        recent.forEach(log -> {
+            storedIds.add(log.getId());
+            storedMsgIds.add(log.getMsgId());
+        });
+        for (MessageLog log : pending) {
+            MessageLog copy = copyOf(log);
+            boolean stored = (copy.getId() != null && storedIds.contains(copy.getId()))
+                    || (copy.getMsgId() != null && storedMsgIds.contains(copy.getMsgId()));
+            if (!stored) {
+                recent.add(copy);
+            }
+        }
+        if (!pending.isEmpty()) {
+            recent.sort(Comparator.comparing(MessageLog::getTimestamp, Comparator.nullsFirst(Comparator.naturalOrder())));
+        }
+        int skip = Math.max(0, recent.size() - windowSize);
+        window.messages.addAll(recent.subList(skip, recent.size()));
+        window.loaded = true;
+    }
+
+    private static MessageLog copyOf(MessageLog source) {
+        MessageLog copy = new MessageLog();
+        copy.setId(source.getId());
+        copy.setMsgId(source.getMsgId());
+        copy.setConversationId(source.getConversationId());
+        copy.setFromUser(source.getFromUser());
+        copy.setToUser(source.getToUser());
+        copy.setMsgType(source.getMsgType());
+        copy.setContent(source.getContent());
+        copy.setTimestamp(source.getTimestamp());
+        return copy;
+    }
+
+    private static class Window {
+        private final Deque<MessageLog> messages = new ArrayDeque<>();
+        private boolean loaded;
+        private boolean evicted;
+        private volatile long lastAccess = System.currentTimeMillis();
+    }
+}
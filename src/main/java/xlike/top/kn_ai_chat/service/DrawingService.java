@@ -2,11 +2,12 @@ package xlike.top.kn_ai_chat.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+import xlike.top.kn_ai_chat.media.MediaTempArena;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.net.URI;
 import java.util.Optional;
 
@@ -18,12 +19,15 @@ public class DrawingService {
     private final SiliconFlowService siliconFlowService;
     private final RestTemplate restTemplate;
 
-    public DrawingService(SiliconFlowService siliconFlowService, RestTemplate restTemplate) {
+    private final MediaTempArena mediaTempArena;
+
+    public DrawingService(SiliconFlowService siliconFlowService, RestTemplate restTemplate, MediaTempArena mediaTempArena) {
         this.siliconFlowService = siliconFlowService;
         this.restTemplate = restTemplate;
+        this.mediaTempArena = mediaTempArena;
     }
 
-    public File generateImage(String prompt, String externalUserId) {
+    public MediaBuffer generateImage(String prompt, String externalUserId) {
         Optional<String> imageUrlOpt = siliconFlowService.generateImageAndGetUrl(prompt, externalUserId);
 
         if (imageUrlOpt.isEmpty()) {
@@ -37,22 +41,19 @@ public class DrawingService {
             URI uri = new URI(imageUrl);
             logger.info("准备从URI下载图片: {}", uri);
 
-            byte[] imageBytes = restTemplate.getForObject(uri, byte[].class);
-            
-            if (imageBytes == null || imageBytes.length == 0) {
+            MediaBuffer image = restTemplate.execute(uri, HttpMethod.GET, null,
+                    response -> mediaTempArena.read(response.getBody(), "sf-drawing.png"));
+
+            if (image == null || image.size() == 0) {
                 logger.error("从URI下载的图片数据为空。URI: {}", uri);
+                if (image != null) {
+                    image.close();
+                }
                 return null;
             }
-            
-            File tempFile = File.createTempFile("sf-drawing-", ".png");
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                fos.write(imageBytes);
-            }
-            
-            tempFile.deleteOnExit();
 
-            logger.info("图片下载成功并存为临时文件: {}", tempFile.getAbsolutePath());
-            return tempFile;
+            logger.info("图片下载成功，大小 {}KB", image.size() / 1024);
+            return image;
 
         } catch (Exception e) {
             logger.error("从URL下载或保存图片时发生错误, URL: {}", imageUrl, e);
@@ -3,19 +3,18 @@ package xlike.top.kn_ai_chat.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
-import ws.schild.jave.AudioAttributes;
-import ws.schild.jave.Encoder;
-import ws.schild.jave.EncodingAttributes;
-import ws.schild.jave.MultimediaObject;
+import xlike.top.kn_ai_chat.enums.AudioFormat;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
 
-import java.io.File;
+import java.io.IOException;
 import java.util.Optional;
 
 /**
  * 文件格式转换服务
  * <p>
- * 使用 JAVE 库提供音频格式转换功能，
- * 例如，将微信的 AMR 格式转换为通用的 MP3 格式。
+ * 提供音频格式转换功能，例如，将微信的 AMR 格式转换为语音识别接口支持的格式。
+ * 实际的 ffmpeg 调用由 {@link TranscodingService} 的工作线程池完成；
+ * 是否需要转换、转换成什么格式由 {@link AudioCodecNegotiator} 决定。
  *
  * @author xlike
  */
@@ -24,77 +23,30 @@ public class FormatFileService {
 
     private static final Logger logger = LoggerFactory.getLogger(FormatFileService.class);
 
-    /**
-     * 将一个音频文件转换为 AMR 格式。
-     *
-     * @param sourceFile 原始音频文件（例如 MP3）
-     * @return 转换后的 AMR 格式的临时文件。如果转换失败，则返回 Optional.empty()。
-     */
-    public Optional<File> convertToAmr(File sourceFile) {
-        try {
-            File targetFile = File.createTempFile("converted-", ".amr");
-            targetFile.deleteOnExit();
-            
-            AudioAttributes audio = new AudioAttributes();
-            audio.setCodec("libopencore_amrnb");
-            audio.setChannels(1);
-            audio.setSamplingRate(8000);
-            audio.setBitRate(12200);
-
-            EncodingAttributes attrs = new EncodingAttributes();
-            attrs.setFormat("amr");
-            attrs.setAudioAttributes(audio);
-
-            Encoder encoder = new Encoder();
-            encoder.encode(new MultimediaObject(sourceFile), targetFile, attrs);
+    private final TranscodingService transcodingService;
 
-            if (targetFile.exists()) {
-                logger.info("文件 {} 成功转换为 AMR 格式: {}", sourceFile.getName(), targetFile.getAbsolutePath());
-                return Optional.of(targetFile);
-            } else {
-                logger.error("文件 {} 转换为 AMR 失败，目标文件不存在。", sourceFile.getName());
-                return Optional.empty();
-            }
-        } catch (Exception e) {
-            logger.error("文件转换为 AMR 时发生异常", e);
-            return Optional.empty();
-        }
+    public FormatFileService(TranscodingService transcodingService) {
+        this.transcodingService = transcodingService;
     }
 
     /**
-     * 【新增方法】将一个音频文件转换为 MP3 格式。
+     * 将音频转换为指定格式。
      *
-     * @param sourceFile 原始音频文件（例如 AMR）
-     * @return 转换后的 MP3 格式的临时文件。如果转换失败，则返回 Optional.empty()。
+     * @param source 原始音频
+     * @param target 目标格式
+     * @return 转换后的音频，使用完毕后需要关闭。如果转换失败，则返回 Optional.empty()。
      */
-    public Optional<File> convertToMp3(File sourceFile) {
-        try {
-            File targetFile = File.createTempFile("converted-", ".mp3");
-            targetFile.deleteOnExit();
-            
-            AudioAttributes audio = new AudioAttributes();
-            audio.setCodec("libmp3lame");
-            audio.setBitRate(128000);
-            audio.setChannels(1);
-            audio.setSamplingRate(16000);
-
-            EncodingAttributes attrs = new EncodingAttributes();
-            attrs.setFormat("mp3");
-            attrs.setAudioAttributes(audio);
-
-            Encoder encoder = new Encoder();
-            encoder.encode(new MultimediaObject(sourceFile), targetFile, attrs);
-
-            if (targetFile.exists()) {
-                logger.info("文件 {} 成功转换为 MP3 格式: {}", sourceFile.getName(), targetFile.getAbsolutePath());
-                return Optional.of(targetFile);
-            } else {
-                logger.error("文件 {} 转换为 MP3 失败，目标文件不存在。", sourceFile.getName());
-                return Optional.empty();
+    public Optional<MediaBuffer> convert(MediaBuffer source, AudioFormat target) {
+        Optional<MediaBuffer> result = transcodingService.transcode(source, target.getFfmpegOutputArgs(), "converted." + target.getExtension());
+        if (result.isPresent()) {
+            try {
+                logger.info("文件 {} 成功转换为 {} 格式，大小 {}KB", source.filename(), target, result.get().size() / 1024);
+            } catch (IOException e) {
+                logger.warn("读取转换结果大小失败", e);
             }
-        } catch (Exception e) {
-            logger.error("文件转换为 MP3 时发生异常", e);
-            return Optional.empty();
+        } else {
+            logger.error("文件 {} 转换为 {} 失败。", source.filename(), target);
         }
+        return result;
     }
-}
\ No newline at end of file
+}
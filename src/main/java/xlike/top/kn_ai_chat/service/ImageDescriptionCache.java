@@ -0,0 +1,214 @@
+package xlike.top.kn_ai_chat.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import xlike.top.kn_ai_chat.domain.AiConfig;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+import xlike.top.kn_ai_chat.utils.ImageHashUtil;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * 图片描述缓存
+ * <p>
+ * 用户经常反复转发同样的表情包、截图，每次都把整张图片交给视觉模型（VLM）识别既慢又费钱。
+ * 这里在本地计算图片内容的 SHA-256 和感知哈希，按 (VLM 模型, 提示词) 分组缓存识别结果：
+ * <ul>
+ *     <li>内容完全相同（SHA-256 一致）的图片，任何用户都可以复用描述；</li>
+ *     <li>只是相似（汉明距离不超过 max-distance）的图片，只复用同一用户自己的描述，
+ *     避免不同用户的截图因版式相近而串用，泄露其他用户的私人内容。</li>
+ * </ul>
+ * 缓存条数有上限（按最近使用淘汰），条目超过 ttl-minutes 后失效。
+ * @author xlike
+ */
+@Service
+public class ImageDescriptionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageDescriptionCache.class);
+
+    private final UserConfigService userConfigService;
+    private final MeterRegistry meterRegistry;
+    private final Timer decodeTimer;
+    private final Timer hashTimer;
+
+    /**
+     * 访问顺序的 LinkedHashMap 即 LRU，所有访问都在 synchronized 中进行
+     */
+    private final LinkedHashMap<CacheKey, CacheEntry> entries = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    @Value("${media.describe-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${media.describe-cache.max-distance:3}")
+    private int maxDistance;
+
+    @Value("${media.describe-cache.max-entries:2000}")
+    private int maxEntries;
+
+    @Value("${media.describe-cache.ttl-minutes:1440}")
+    private long ttlMinutes;
+
+    /**
+     * 图片指纹
+     * @param contentHash 图片内容的 SHA-256
+     * @param perceptualHash 感知哈希（dHash）
+     */
+    public record ImageFingerprint(String contentHash, long perceptualHash) {}
+
+    private record CacheKey(String scope, String contentHash) {}
+
+    private record CacheEntry(String owner, long perceptualHash, String description, long createdAt) {}
+
+    public ImageDescriptionCache(UserConfigService userConfigService, MeterRegistry meterRegistry) {
+        this.userConfigService = userConfigService;
+        this.meterRegistry = meterRegistry;
+        this.decodeTimer = Timer.builder("media.image.decode")
+                .description("为计算感知哈希降采样解码图片的耗时")
+                .register(meterRegistry);
+        this.hashTimer = Timer.builder("media.image.phash")
+                .description("在已解码的小图上计算感知哈希的耗时")
+                .register(meterRegistry);
+        meterRegistry.gauge("media.describe.cache.size", entries, map -> {
+            synchronized (map) {
+                return map.size();
+            }
+        });
+    }
+
+    /**
+     * 计算图片指纹，只读一遍图片：解码降采样小图的同时计算内容的 SHA-256
+     * @return 指纹；缓存关闭或图片无法解码时返回空，调用方直接走 VLM 识别即可
+     */
+    public Optional<ImageFingerprint> fingerprint(MediaBuffer image) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        BufferedImage decoded;
+        Timer.Sample decodeSample = Timer.start(meterRegistry);
+        try (InputStream in = new DigestInputStream(image.openStream(), digest)) {
+            decoded = ImageHashUtil.readSubsampled(in);
+            // 解码器不一定读到文件末尾，剩余部分也要计入内容哈希
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("解码图片 {} 失败，不使用描述缓存。", image.filename(), e);
+            return Optional.empty();
+        } finally {
+            decodeSample.stop(decodeTimer);
+        }
+        if (decoded == null) {
+            logger.debug("图片 {} 格式无法解码，不使用描述缓存。", image.filename());
+            return Optional.empty();
+        }
+        long perceptualHash = hashTimer.record(() -> ImageHashUtil.dHash(decoded));
+        return Optional.of(new ImageFingerprint(HexFormat.of().formatHex(digest.digest()), perceptualHash));
+    }
+
+    /**
+     * 查找图片的描述
+     * @param externalUserId 用户ID，用于确定其 VLM 模型；相似图片只在该用户自己的缓存中查找
+     * @param prompt 识别图片时使用的提示词
+     * @param fingerprint 图片指纹
+     * @return 内容完全相同的缓存描述，或该用户汉明距离最近且不超过阈值的缓存描述
+     */
+    public Optional<String> find(String externalUserId, String prompt, ImageFingerprint fingerprint) {
+        String scope = scopeOf(externalUserId, prompt);
+        long deadline = System.currentTimeMillis() - ttlMinutes * 60_000;
+        synchronized (entries) {
+            CacheEntry exact = entries.get(new CacheKey(scope, fingerprint.contentHash()));
+            if (exact != null && exact.createdAt() >= deadline) {
+                record("hit");
+                logger.info("图片内容命中描述缓存，跳过 VLM 识别。");
+                return Optional.of(exact.description());
+            }
+            CacheKey bestKey = null;
+            CacheEntry best = null;
+            int bestDistance = Integer.MAX_VALUE;
+            for (Map.Entry<CacheKey, CacheEntry> entry : entries.entrySet()) {
+                CacheKey key = entry.getKey();
+                CacheEntry value = entry.getValue();
+                if (!key.scope().equals(scope) || !value.owner().equals(externalUserId) || value.createdAt() < deadline) {
+                    continue;
+                }
+                int distance = ImageHashUtil.hammingDistance(value.perceptualHash(), fingerprint.perceptualHash());
+                if (distance <= maxDistance && distance < bestDistance) {
+                    bestKey = key;
+                    best = value;
+                    bestDistance = distance;
+                }
+            }
+            record(best != null ? "similar" : "miss");
+            if (best != null) {
+                // 刷新最近使用顺序
+                entries.get(bestKey);
+                logger.info("图片命中该用户的相似图片描述缓存（汉明距离 {}），跳过 VLM 识别。", bestDistance);
+                return Optional.of(best.description());
+            }
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 保存图片描述
+     */
+    public void put(String externalUserId, String prompt, ImageFingerprint fingerprint, String description) {
+        if (!enabled || description == null || description.isBlank()) {
+            return;
+        }
+        CacheKey key = new CacheKey(scopeOf(externalUserId, prompt), fingerprint.contentHash());
+        synchronized (entries) {
+            entries.put(key, new CacheEntry(externalUserId, fingerprint.perceptualHash(), description, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * 定时清理过期的描述
+     */
+    @Scheduled(fixedDelayString = "${media.describe-cache.sweep-interval-ms:600000}")
+    public void evictExpired() {
+        long deadline = System.currentTimeMillis() - ttlMinutes * 60_000;
+        int removed;
+        synchronized (entries) {
+            int before = entries.size();
+            entries.values().removeIf(entry -> entry.createdAt() < deadline);
+            removed = before - entries.size();
+        }
+        if (removed > 0) {
+            logger.debug("清理了 {} 条过期的图片描述缓存。", removed);
+        }
+    }
+
+    private String scopeOf(String externalUserId, String prompt) {
+        AiConfig aiConfig = userConfigService.getAiConfig(externalUserId);
+        return aiConfig.getSfVlmModel() + "\n" + prompt;
+    }
+
+    private void record(String result) {
+        meterRegistry.counter("media.describe.cache", "result", result).increment();
+    }
+}
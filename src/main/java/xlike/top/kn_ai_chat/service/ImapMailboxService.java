@@ -0,0 +1,533 @@
+package xlike.top.kn_ai_chat.service;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Address;
+import jakarta.mail.BodyPart;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.StoreClosedException;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.event.MessageCountAdapter;
+import jakarta.mail.event.MessageCountEvent;
+import jakarta.mail.search.FromStringTerm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import xlike.top.kn_ai_chat.config.SchedulingConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IMAP 收件箱服务
+ * <p>
+ * 邮件工具读取邮件时不再每次新建 IMAP 连接、逐封逐个 part 地往返读取：
+ * <ul>
+ *     <li>整个应用共用一个长期打开的 INBOX（只读），断开后在下次使用时自动重连；</li>
+ *     <li>本地按 UID 缓存最近 cache-size 封邮件的信封和正文摘要，每次只增量拉取新邮件的信封（一次往返批量获取）；</li>
+ *     <li>服务器支持 IDLE 时由后台线程等待新邮件通知，没有新邮件时读取不访问服务器；不支持时每次读取前增量同步；</li>
+ *     <li>按发件人筛选直接查本地索引，本地不足时才交给服务器 SEARCH。</li>
+ * </ul>
+ * 同一时刻只有一个线程操作 IMAP 连接。
+ * @author xlike
+ */
+@Service
+public class ImapMailboxService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImapMailboxService.class);
+    private static final String INBOX = "INBOX";
+
+    /**
+     * 正文摘要长度，超出部分截断，避免返回信息过大
+     */
+    public static final int BODY_PREVIEW_LENGTH = 500;
+
+    private final MeterRegistry meterRegistry;
+    private final Object lock = new Object();
+
+    /**
+     * 按 UID 排序的本地索引，只在持有 lock 时访问
+     */
+    private final TreeMap<Long, CachedMail> index = new TreeMap<>();
+    private boolean indexCoversFolder;
+    private final AtomicInteger indexSize = new AtomicInteger();
+    private long uidValidity = -1;
+
+    private IMAPStore store;
+    private IMAPFolder folder;
+    private Thread idleThread;
+
+    private volatile boolean running = true;
+    private volatile boolean idleActive;
+    private volatile boolean newMail = true;
+    private volatile boolean resyncRequired;
+
+    @Value("${tools.email.username}")
+    private String username;
+
+    @Value("${tools.email.password}")
+    private String password;
+
+    @Value("${tools.email.imap.host}")
+    private String imapHost;
+
+    @Value("${tools.email.imap.port}")
+    private String imapPort;
+
+    @Value("${tools.email.imap.cache-size:200}")
+    private int cacheSize;
+
+    @Value("${tools.email.imap.idle-enabled:true}")
+    private boolean idleEnabled;
+
+    @Value("${tools.email.imap.retry-delay-ms:30000}")
+    private long retryDelayMs;
+
+    @Value("${tools.email.imap.prefetch-max-bytes:262144}")
+    private int prefetchMaxBytes;
+
+    /**
+     * 本地缓存的一封邮件，body 为 null 表示正文尚未读取
+     */
+    public record CachedMail(long uid, String subject, String from, Date sentDate, int size, String body) {
+        CachedMail withBody(String body) {
+            return new CachedMail(uid, subject, from, sentDate, size, body);
+        }
+    }
+
+    @FunctionalInterface
+    private interface FolderAction<T> {
+        T apply(IMAPFolder folder) throws MessagingException;
+    }
+
+    public ImapMailboxService(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        // 同步可能持有锁较长时间，指标读取不加锁，使用同步后记录的大小
+        meterRegistry.gauge("email.imap.index.size", indexSize);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        Thread thread;
+        synchronized (lock) {
+            // 关闭文件夹会中断正在进行的 IDLE，后台线程随之退出
+            closeQuietly();
+            thread = idleThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return 收件箱中最新的 count 封邮件（含正文摘要），按时间从新到旧
+     */
+    public List<CachedMail> recentMessages(int count) throws MessagingException {
+        return withFolder(folder -> {
+            syncIfNeeded(folder);
+            List<CachedMail> latest;
+            if (count > index.size() && !indexCoversFolder) {
+                // 本地只缓存了最近 cache-size 封，要求的数量更多时直接从服务器读取
+                record("email.imap.recent", "server");
+                latest = recentOnServer(folder, count);
+            } else {
+                record("email.imap.recent", "local");
+                latest = index.descendingMap().values().stream().limit(Math.max(count, 0)).toList();
+            }
+            return loadBodies(folder, latest);
+        });
+    }
+
+    /**
+     * @return 发件人包含 senderEmail 的最新 count 封邮件（含正文摘要），按时间从新到旧
+     */
+    public List<CachedMail> messagesFromSender(String senderEmail, int count) throws MessagingException {
+        return withFolder(folder -> {
+            syncIfNeeded(folder);
+            // 与服务器端 SEARCH FROM 一致，按不区分大小写的子串匹配
+            String sender = senderEmail.toLowerCase(Locale.ROOT);
+            List<CachedMail> matched = index.descendingMap().values().stream()
+                    .filter(mail -> mail.from() != null && mail.from().toLowerCase(Locale.ROOT).contains(sender))
+                    .limit(Math.max(count, 0))
+                    .toList();
+            if (matched.size() < count && !indexCoversFolder) {
+                // 本地只缓存了最近的邮件，数量不够时让服务器搜索整个收件箱
+                record("email.imap.search", "server");
+                matched = searchOnServer(folder, senderEmail, count);
+            } else {
+                record("email.imap.search", "local");
+            }
+            return loadBodies(folder, matched);
+        });
+    }
+
+    /**
+     * 定时保活：增量同步一次，同时打断并重新开始 IDLE，避免连接因空闲被服务器断开
+     */
+    @Scheduled(fixedDelayString = "${tools.email.imap.keep-alive-ms:300000}", scheduler = SchedulingConfig.BLOCKING_SCHEDULER)
+    public void keepAlive() {
+        synchronized (lock) {
+            if (folder == null || !running) {
+                // 从未使用过邮件工具，不主动建立连接
+                return;
+            }
+            try {
+                sync(openFolder());
+            } catch (MessagingException | IllegalStateException e) {
+                logger.warn("IMAP 保活失败，下次使用时重新连接: {}", e.getMessage());
+                closeQuietly();
+            }
+        }
+    }
+
+    private <T> T withFolder(FolderAction<T> action) throws MessagingException {
+        synchronized (lock) {
+            try {
+                return action.apply(openFolder());
+            } catch (FolderClosedException | StoreClosedException e) {
+                // 连接已被服务器断开，重连后重试一次
+                logger.info("IMAP 连接已断开（{}），重新连接。", e.getMessage());
+                closeQuietly();
+                return action.apply(openFolder());
+            }
+        }
+    }
+
+    private IMAPFolder openFolder() throws MessagingException {
+        if (folder != null && folder.isOpen()) {
+            return folder;
+        }
+        closeQuietly();
+        Properties props = new Properties();
+        props.put("mail.store.protocol", "imap");
+        props.put("mail.imap.host", imapHost);
+        props.put("mail.imap.port", imapPort);
+        props.put("mail.imap.ssl.enable", "true");
+        Session session = Session.getInstance(props);
+        IMAPStore newStore = (IMAPStore) session.getStore("imap");
+        newStore.connect(imapHost, Integer.parseInt(imapPort), username, password);
+        IMAPFolder newFolder = (IMAPFolder) newStore.getFolder(INBOX);
+        newFolder.open(Folder.READ_ONLY);
+        newFolder.addMessageCountListener(new MessageCountAdapter() {
+            @Override
+            public void messagesAdded(MessageCountEvent e) {
+                newMail = true;
+            }
+
+            @Override
+            public void messagesRemoved(MessageCountEvent e) {
+                // 被删除邮件的 UID 已无法可靠获取，下次同步时整体重建索引
+                resyncRequired = true;
+            }
+        });
+        store = newStore;
+        folder = newFolder;
+        // 断线期间可能有新邮件
+        newMail = true;
+        meterRegistry.counter("email.imap.connect").increment();
+        logger.info("IMAP 收件箱已连接: {}:{}", imapHost, imapPort);
+        startIdleThread();
+        return folder;
+    }
+
+    private void syncIfNeeded(IMAPFolder folder) throws MessagingException {
+        if (idleActive && !newMail && !resyncRequired) {
+            // IDLE 正在监听且没有新邮件通知，本地索引就是最新的
+            record("email.imap.sync", "skipped");
+            return;
+        }
+        sync(folder);
+    }
+
+    private void sync(IMAPFolder folder) throws MessagingException {
+        // 先清除标记再同步，同步期间到达的通知会触发下一次同步
+        newMail = false;
+        Map<Long, CachedMail> previous = Map.of();
+        long validity = folder.getUIDValidity();
+        if (resyncRequired || validity != uidValidity) {
+            if (validity == uidValidity) {
+                // UID 仍然有效，保留已读取的正文
+                previous = new HashMap<>(index);
+            }
+            resyncRequired = false;
+            uidValidity = validity;
+            index.clear();
+        }
+
+        int total = folder.getMessageCount();
+        Message[] fresh;
+        long lastUid = index.isEmpty() ? 0 : index.lastKey();
+        if (index.isEmpty()) {
+            fresh = total == 0 ? new Message[0] : folder.getMessages(Math.max(1, total - cacheSize + 1), total);
+            record("email.imap.sync", "full");
+        } else {
+            // 没有新邮件时服务器会返回 UID 最大的那封，下面按 UID 过滤
+            fresh = folder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+            record("email.imap.sync", "incremental");
+        }
+
+        if (fresh.length > 0) {
+            FetchProfile profile = new FetchProfile();
+            profile.add(FetchProfile.Item.ENVELOPE);
+            profile.add(UIDFolder.FetchProfileItem.UID);
+            profile.add(FetchProfile.Item.CONTENT_INFO);
+            profile.add(FetchProfile.Item.SIZE);
+            folder.fetch(fresh, profile);
+        }
+        for (Message message : fresh) {
+            long uid = folder.getUID(message);
+            if (uid <= lastUid) {
+                continue;
+            }
+            CachedMail known = previous.get(uid);
+            index.put(uid, known != null ? known : toCachedMail(uid, message));
+        }
+        while (index.size() > cacheSize) {
+            index.pollFirstEntry();
+        }
+        indexCoversFolder = index.size() >= total;
+        indexSize.set(index.size());
+    }
+
+    private List<CachedMail> searchOnServer(IMAPFolder folder, String senderEmail, int count) throws MessagingException {
+        Message[] found = folder.search(new FromStringTerm(senderEmail));
+        return toCachedMails(folder, Arrays.copyOfRange(found, Math.max(0, found.length - count), found.length));
+    }
+
+    private List<CachedMail> recentOnServer(IMAPFolder folder, int count) throws MessagingException {
+        int total = folder.getMessageCount();
+        if (total == 0) {
+            return List.of();
+        }
+        return toCachedMails(folder, folder.getMessages(Math.max(1, total - count + 1), total));
+    }
+
+    /**
+     * 批量读取信封并按时间从新到旧返回，已在本地索引中的邮件直接使用缓存（可能已带正文）
+     */
+    private List<CachedMail> toCachedMails(IMAPFolder folder, Message[] latest) throws MessagingException {
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        profile.add(FetchProfile.Item.SIZE);
+        folder.fetch(latest, profile);
+        List<CachedMail> results = new ArrayList<>();
+        for (int i = latest.length - 1; i >= 0; i--) {
+            long uid = folder.getUID(latest[i]);
+            CachedMail cached = index.get(uid);
+            results.add(cached != null ? cached : toCachedMail(uid, latest[i]));
+        }
+        return results;
+    }
+
+    /**
+     * 补齐正文：体积不大的邮件整封一次性预取，再在本地解析，读到的正文摘要写回本地索引
+     */
+    private List<CachedMail> loadBodies(IMAPFolder folder, List<CachedMail> mails) throws MessagingException {
+        long[] missing = mails.stream().filter(mail -> mail.body() == null).mapToLong(CachedMail::uid).toArray();
+        int hits = mails.size() - missing.length;
+        if (hits > 0) {
+            meterRegistry.counter("email.imap.body", "result", "hit").increment(hits);
+        }
+        if (missing.length == 0) {
+            return mails;
+        }
+
+        Message[] messages = folder.getMessagesByUID(missing);
+        Map<Long, Message> byUid = new HashMap<>();
+        List<Message> prefetch = new ArrayList<>();
+        for (int i = 0; i < missing.length; i++) {
+            if (messages[i] != null) {
+                byUid.put(missing[i], messages[i]);
+            }
+        }
+        for (CachedMail mail : mails) {
+            Message message = byUid.get(mail.uid());
+            // 大邮件（通常带附件）不整封预取，只按需读取文本部分
+            if (message != null && mail.body() == null && mail.size() <= prefetchMaxBytes) {
+                prefetch.add(message);
+            }
+        }
+        if (!prefetch.isEmpty()) {
+            FetchProfile profile = new FetchProfile();
+            profile.add(IMAPFolder.FetchProfileItem.MESSAGE);
+            folder.fetch(prefetch.toArray(new Message[0]), profile);
+        }
+
+        List<CachedMail> results = new ArrayList<>(mails.size());
+        for (CachedMail mail : mails) {
+            if (mail.body() != null) {
+                results.add(mail);
+                continue;
+            }
+            Message message = byUid.get(mail.uid());
+            if (message == null) {
+                results.add(mail.withBody("[邮件已被删除]"));
+                continue;
+            }
+            try {
+                CachedMail loaded = mail.withBody(preview(getTextFromMessage(message)));
+                index.computeIfPresent(mail.uid(), (uid, cached) -> loaded);
+                results.add(loaded);
+                record("email.imap.body", "fetched");
+            } catch (IOException | MessagingException e) {
+                if (e instanceof FolderClosedException) {
+                    throw (FolderClosedException) e;
+                }
+                results.add(mail.withBody("[无法读取邮件正文: " + e.getMessage() + "]"));
+            }
+        }
+        return results;
+    }
+
+    private void startIdleThread() {
+        if (!idleEnabled || idleThread != null) {
+            return;
+        }
+        try {
+            if (!store.hasCapability("IDLE")) {
+                logger.info("IMAP 服务器不支持 IDLE，每次读取邮件前增量同步。");
+                idleEnabled = false;
+                return;
+            }
+        } catch (MessagingException e) {
+            logger.warn("查询 IMAP 服务器能力失败，暂不启用 IDLE: {}", e.getMessage());
+            return;
+        }
+        idleThread = new Thread(this::idleLoop, "imap-idle");
+        idleThread.setDaemon(true);
+        idleThread.start();
+    }
+
+    /**
+     * 在 IDLE 中等待服务器通知；其他线程使用该文件夹时 IDLE 会被自动打断，用完后在这里重新开始
+     */
+    private void idleLoop() {
+        try {
+            idle();
+        } finally {
+            idleActive = false;
+            synchronized (lock) {
+                // 线程退出后允许下次打开文件夹时重新启动 IDLE
+                if (idleThread == Thread.currentThread()) {
+                    idleThread = null;
+                }
+            }
+        }
+    }
+
+    private void idle() {
+        while (running) {
+            try {
+                IMAPFolder idleFolder;
+                synchronized (lock) {
+                    idleFolder = openFolder();
+                    if (newMail || resyncRequired) {
+                        // 提前同步新邮件，读取时即可直接使用本地索引
+                        sync(idleFolder);
+                    }
+                    idleActive = true;
+                }
+                idleFolder.idle(true);
+            } catch (MessagingException | IllegalStateException e) {
+                idleActive = false;
+                if (!running) {
+                    return;
+                }
+                logger.warn("IMAP IDLE 中断（{}），{} 毫秒后重试。", e.getMessage(), retryDelayMs);
+                try {
+                    Thread.sleep(retryDelayMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        idleActive = false;
+        try {
+            if (folder != null && folder.isOpen()) {
+                folder.close(false);
+            }
+        } catch (MessagingException | IllegalStateException e) {
+            logger.debug("关闭 IMAP 文件夹时出错", e);
+        }
+        try {
+            if (store != null) {
+                store.close();
+            }
+        } catch (MessagingException e) {
+            logger.debug("关闭 IMAP 连接时出错", e);
+        }
+        folder = null;
+        store = null;
+    }
+
+    private static CachedMail toCachedMail(long uid, Message message) throws MessagingException {
+        Address[] fromArr = message.getFrom();
+        String from = fromArr != null && fromArr.length > 0 ? fromArr[0].toString() : null;
+        return new CachedMail(uid, message.getSubject(), from, message.getSentDate(), message.getSize(), null);
+    }
+
+    private static String preview(String content) {
+        if (content.length() > BODY_PREVIEW_LENGTH) {
+            return content.substring(0, BODY_PREVIEW_LENGTH) + "...";
+        }
+        return content;
+    }
+
+    public static String getTextFromMessage(Message message) throws MessagingException, IOException {
+        if (message.isMimeType("text/plain")) {
+            return message.getContent().toString();
+        } else if (message.isMimeType("text/html")) {
+            // 如果是HTML，可以选择直接返回HTML或者用Jsoup等库清理HTML标签
+            return message.getContent().toString();
+        } else if (message.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) message.getContent();
+            return getTextFromMultipart(multipart);
+        }
+        return "";
+    }
+
+    private static String getTextFromMultipart(Multipart multipart) throws MessagingException, IOException {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < multipart.getCount(); i++) {
+            BodyPart bodyPart = multipart.getBodyPart(i);
+            if (bodyPart.isMimeType("text/plain")) {
+                result.append(bodyPart.getContent().toString());
+            } else if (bodyPart.isMimeType("text/html")) {
+                // 如果需要只保留纯文本，可以用Jsoup库清理HTML标签，否则直接返回HTML内容
+                result.append(bodyPart.getContent().toString());
+            } else if (bodyPart.getContent() instanceof Multipart) {
+                result.append(getTextFromMultipart((Multipart) bodyPart.getContent()));
+            }
+        }
+        return result.toString();
+    }
+
+    private void record(String meter, String result) {
+        meterRegistry.counter(meter, "result", result).increment();
+    }
+}
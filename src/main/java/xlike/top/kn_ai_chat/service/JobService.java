@@ -0,0 +1,331 @@
+package xlike.top.kn_ai_chat.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import xlike.top.kn_ai_chat.config.SchedulingConfig;
+import xlike.top.kn_ai_chat.reply.Reply;
+import xlike.top.kn_ai_chat.reply.TextReply;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * 长耗时任务服务
+ * <p>
+ * 绘画、MCP 调用、管理员工具调用等耗时较长的操作不再阻塞消息处理线程：
+ * 处理器提交任务后立即回复一条确认消息，任务在独立的有界线程池中执行，完成后通过 {@link JobReplyEvent}
+ * 把结果推送给用户（由 WeChatService 调用 send_msg 发送）。
+ * <ul>
+ *     <li>每个用户同时进行的任务数有上限；</li>
+ *     <li>同一用户再次提交同类任务时，之前未完成的同类任务会被取消，结果不再发送；</li>
+ *     <li>用户也可以主动取消自己的全部任务，或查询任务进度。</li>
+ * </ul>
+ * @author xlike
+ */
+@Service
+public class JobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(JobService.class);
+
+    private final ApplicationEventPublisher eventPublisher;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, ReplyJob> jobs = new ConcurrentHashMap<>();
+    /**
+     * 按用户ID分段的提交锁：同一用户的上限检查和登记在同一把锁内完成，并发提交不会超出上限
+     */
+    private final Object[] submitLocks = new Object[64];
+
+    @Value("${job.workers:4}")
+    private int workers;
+
+    @Value("${job.queue-capacity:50}")
+    private int queueCapacity;
+
+    @Value("${job.max-per-user:2}")
+    private int maxPerUser;
+
+    @Value("${job.max-runtime-minutes:10}")
+    private long maxRuntimeMinutes;
+
+    @Value("${job.retention-minutes:30}")
+    private long retentionMinutes;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * 任务的执行逻辑，返回要推送给用户的回复；返回 empty 时不推送
+     */
+    @FunctionalInterface
+    public interface JobTask {
+        Optional<Reply> run(ReplyJob job) throws Exception;
+    }
+
+    /**
+     * 任务完成后需要推送给用户的回复
+     */
+    public record JobReplyEvent(String externalUserId, String openKfid, Reply reply) {}
+
+    public JobService(ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry) {
+        this.eventPublisher = eventPublisher;
+        this.meterRegistry = meterRegistry;
+        for (int i = 0; i < submitLocks.length; i++) {
+            submitLocks[i] = new Object();
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "reply-job-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        meterRegistry.gauge("job.active", executor, ThreadPoolExecutor::getActiveCount);
+        meterRegistry.gauge("job.queued", executor, pool -> pool.getQueue().size());
+        logger.info("长耗时任务线程池: {} 个线程，排队上限 {}，每个用户最多 {} 个任务。", workers, queueCapacity, maxPerUser);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 提交一个长耗时任务
+     * @param externalUserId 用户ID
+     * @param openKfid 客服ID，用于推送结果
+     * @param kind 任务类型，例如 drawing、mcp、tool；同一用户的同类新任务会取消旧任务
+     * @param acknowledgement 提交成功后立即回复给用户的确认文本
+     * @param task 任务逻辑
+     * @return 立即回复给用户的消息：确认文本，或任务无法提交时的提示
+     */
+    public Reply submit(String externalUserId, String openKfid, String kind, String acknowledgement, JobTask task) {
+        synchronized (submitLocks[Math.floorMod(externalUserId.hashCode(), submitLocks.length)]) {
+            return submitLocked(externalUserId, openKfid, kind, acknowledgement, task);
+        }
+    }
+
+    private Reply submitLocked(String externalUserId, String openKfid, String kind, String acknowledgement, JobTask task) {
+        int superseded = cancelJobs(externalUserId, job -> job.getKind().equals(kind));
+        if (superseded > 0) {
+            logger.info("用户 [{}] 提交了新的 {} 任务，已取消 {} 个未完成的同类任务。", externalUserId, kind, superseded);
+        }
+        if (activeJobs(externalUserId).size() >= maxPerUser) {
+            record(kind, "rejected_user_limit");
+            return new TextReply("你已有 " + maxPerUser + " 个任务正在处理，请等待完成后再试，或发送 \"#取消\" 取消当前任务。");
+        }
+
+        ReplyJob job = new ReplyJob(UUID.randomUUID().toString(), externalUserId, openKfid, kind);
+        // 先关联 future 再交给线程池，任务刚开始运行就被取消时也能中断执行线程
+        FutureTask<Void> future = new FutureTask<>(() -> runJob(job, task), null);
+        job.future = future;
+        jobs.put(job.getJobId(), job);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getJobId());
+            record(kind, "rejected_busy");
+            logger.warn("长耗时任务队列已满，拒绝用户 [{}] 的 {} 任务。", externalUserId, kind);
+            return new TextReply("当前请求较多，请稍后再试。");
+        }
+        logger.info("已提交用户 [{}] 的 {} 任务: {}", externalUserId, kind, job.getJobId());
+        return new TextReply(acknowledgement);
+    }
+
+    /**
+     * 取消用户所有未完成的任务
+     * @return 取消的任务数
+     */
+    public int cancelUserJobs(String externalUserId) {
+        return cancelJobs(externalUserId, job -> true);
+    }
+
+    /**
+     * @return 用户最近的任务，按提交时间倒序
+     */
+    public List<ReplyJob> getUserJobs(String externalUserId) {
+        return jobs.values().stream()
+                .filter(job -> job.getExternalUserId().equals(externalUserId))
+                .sorted(Comparator.comparing(ReplyJob::getSubmittedAt).reversed())
+                .toList();
+    }
+
+    /**
+     * 取消运行超时的任务，清理已结束且超过保留时间的任务记录。
+     * 超时通知会同步调用 send_msg 发送，因此放在阻塞任务线程池中执行
+     */
+    @Scheduled(fixedDelayString = "${job.sweep-interval-ms:60000}", scheduler = SchedulingConfig.BLOCKING_SCHEDULER)
+    public void sweepJobs() {
+        LocalDateTime runtimeDeadline = LocalDateTime.now().minusMinutes(maxRuntimeMinutes);
+        jobs.values().stream()
+                .filter(job -> job.getStatus() == JobStatus.RUNNING && job.getStartedAt().isBefore(runtimeDeadline))
+                .forEach(job -> {
+                    if (job.cancel()) {
+                        logger.warn("用户 [{}] 的 {} 任务 {} 运行超过 {} 分钟，已取消。",
+                                job.getExternalUserId(), job.getKind(), job.getJobId(), maxRuntimeMinutes);
+                        record(job.getKind(), "timeout");
+                        eventPublisher.publishEvent(new JobReplyEvent(job.getExternalUserId(), job.getOpenKfid(),
+                                new TextReply("抱歉，任务处理超时，已取消。")));
+                    }
+                });
+        LocalDateTime retentionDeadline = LocalDateTime.now().minusMinutes(retentionMinutes);
+        jobs.values().removeIf(job -> job.getFinishedAt() != null && job.getFinishedAt().isBefore(retentionDeadline));
+    }
+
+    private void runJob(ReplyJob job, JobTask task) {
+        if (!job.start()) {
+            return;
+        }
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Optional<Reply> reply;
+        JobStatus outcome = JobStatus.COMPLETED;
+        String error = null;
+        try {
+            reply = task.run(job);
+        } catch (Exception e) {
+            if (job.isCancelled()) {
+                return;
+            }
+            logger.error("用户 [{}] 的 {} 任务 {} 执行失败，停止于: {}", job.getExternalUserId(), job.getKind(), job.getJobId(), job.getProgress(), e);
+            reply = Optional.of(new TextReply("抱歉，处理失败了，请稍后再试。"));
+            outcome = JobStatus.FAILED;
+            error = e.getMessage();
+        } finally {
+            sample.stop(Timer.builder("job.duration").tag("kind", job.getKind()).register(meterRegistry));
+        }
+
+        // 已被取消（被新任务替代、用户主动取消或超时）的任务不再推送结果
+        if (!job.finish(outcome, error)) {
+            logger.info("用户 [{}] 的 {} 任务 {} 已取消，丢弃其结果。", job.getExternalUserId(), job.getKind(), job.getJobId());
+            return;
+        }
+        record(job.getKind(), outcome.name().toLowerCase());
+        reply.ifPresent(r -> eventPublisher.publishEvent(new JobReplyEvent(job.getExternalUserId(), job.getOpenKfid(), r)));
+    }
+
+    private int cancelJobs(String externalUserId, Predicate<ReplyJob> filter) {
+        int cancelled = 0;
+        for (ReplyJob job : activeJobs(externalUserId)) {
+            if (filter.test(job) && job.cancel()) {
+                record(job.getKind(), "cancelled");
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    private List<ReplyJob> activeJobs(String externalUserId) {
+        return jobs.values().stream()
+                .filter(job -> job.getExternalUserId().equals(externalUserId) && job.isActive())
+                .toList();
+    }
+
+    private void record(String kind, String result) {
+        meterRegistry.counter("job.finished", "kind", kind, "result", result).increment();
+    }
+
+    public enum JobStatus { QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED }
+
+    /**
+     * 任务的状态和进度信息
+     */
+    @Data
+    public static class ReplyJob {
+        private final String jobId;
+        private final String externalUserId;
+        @JsonIgnore
+        private final String openKfid;
+        private final String kind;
+        private volatile JobStatus status = JobStatus.QUEUED;
+        private volatile String progress = "排队中";
+        private volatile String error;
+        private final LocalDateTime submittedAt = LocalDateTime.now();
+        private volatile LocalDateTime startedAt;
+        private volatile LocalDateTime finishedAt;
+        @JsonIgnore
+        private volatile Future<?> future;
+
+        /**
+         * 更新任务进度，供任务逻辑在各个阶段调用
+         */
+        public void progress(String step) {
+            this.progress = step;
+        }
+
+        /**
+         * 任务逻辑可在各阶段之间检查，已取消时尽早退出
+         */
+        public boolean isCancelled() {
+            return status == JobStatus.CANCELLED;
+        }
+
+        /**
+         * @return 已运行（或排队）的时长
+         */
+        public Duration elapsed() {
+            return Duration.between(startedAt != null ? startedAt : submittedAt, LocalDateTime.now());
+        }
+
+        private boolean isActive() {
+            return status == JobStatus.QUEUED || status == JobStatus.RUNNING;
+        }
+
+        private synchronized boolean start() {
+            if (status != JobStatus.QUEUED) {
+                return false;
+            }
+            status = JobStatus.RUNNING;
+            startedAt = LocalDateTime.now();
+            return true;
+        }
+
+        private synchronized boolean cancel() {
+            if (!isActive()) {
+                return false;
+            }
+            status = JobStatus.CANCELLED;
+            finishedAt = LocalDateTime.now();
+            if (future != null) {
+                future.cancel(true);
+            }
+            return true;
+        }
+
+        private synchronized boolean finish(JobStatus finalStatus, String errorMessage) {
+            if (status != JobStatus.RUNNING) {
+                return false;
+            }
+            this.error = errorMessage;
+            this.finishedAt = LocalDateTime.now();
+            this.status = finalStatus;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package xlike.top.kn_ai_chat.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.mcp.client.DefaultMcpClient;
+import dev.langchain4j.mcp.client.McpClient;
+import dev.langchain4j.mcp.client.McpException;
+import dev.langchain4j.mcp.client.transport.McpTransport;
+import dev.langchain4j.mcp.client.transport.http.HttpMcpTransport;
+import dev.langchain4j.service.tool.ToolProvider;
+import dev.langchain4j.service.tool.ToolProviderResult;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import xlike.top.kn_ai_chat.config.SchedulingConfig;
+import xlike.top.kn_ai_chat.domain.McpConfig;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MCP 客户端连接池
+ * <p>
+ * 每个 MCP 配置保持一个长连接的客户端（DefaultMcpClient 支持并发请求，所有用户共享），
+ * 并缓存其工具列表，热请求不再重复 SSE 握手和 listTools 协商：
+ * <ul>
+ *     <li>工具列表超过 tools-ttl-minutes 后重新获取；</li>
+ *     <li>定时健康检查，失败的连接关闭后按指数退避重连；</li>
+ *     <li>长时间未使用的连接自动关闭；</li>
+ *     <li>新增或删除 MCP 配置时使对应的连接失效。</li>
+ * </ul>
+ * @author xlike
+ */
+@Service
+public class McpClientPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(McpClientPool.class);
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, PooledClient> clients = new ConcurrentHashMap<>();
+
+    @Value("${mcp.pool.request-timeout-seconds:120}")
+    private long requestTimeoutSeconds;
+
+    @Value("${mcp.pool.connect-timeout-seconds:30}")
+    private long connectTimeoutSeconds;
+
+    @Value("${mcp.pool.tools-ttl-minutes:10}")
+    private long toolsTtlMinutes;
+
+    @Value("${mcp.pool.idle-minutes:30}")
+    private long idleMinutes;
+
+    @Value("${mcp.pool.backoff-initial-ms:1000}")
+    private long backoffInitialMs;
+
+    @Value("${mcp.pool.backoff-max-ms:300000}")
+    private long backoffMaxMs;
+
+    public McpClientPool(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        meterRegistry.gauge("mcp.pool.connected", clients,
+                map -> map.values().stream().filter(PooledClient::isConnected).count());
+    }
+
+    /**
+     * 获取某个 MCP 配置的工具提供者。连接和工具列表都来自连接池，只有冷启动或缓存过期时才访问 MCP 服务。
+     * @throws IllegalStateException MCP 服务连接失败，或仍处于重连退避期
+     */
+    public ToolProvider toolProvider(McpConfig config) {
+        PooledClient pooled = acquire(config);
+        ToolProviderResult.Builder builder = ToolProviderResult.builder();
+        for (ToolSpecification tool : pooled.tools) {
+            builder.add(tool, (request, memoryId) -> executeTool(pooled, request));
+        }
+        ToolProviderResult result = builder.build();
+        return request -> result;
+    }
+
+    /**
+     * 连接并验证 MCP 端点，成功后以给定名称放入连接池，首个请求即可复用该连接
+     * @return 端点可用且至少提供一个工具时返回 true
+     */
+    public boolean register(String name, String sseEndpoint) {
+        logger.info("正在验证MCP端点的有效性: {}", sseEndpoint);
+        PooledClient pooled = new PooledClient(name, sseEndpoint);
+        try {
+            connect(name, pooled);
+        } catch (RuntimeException e) {
+            // 任何异常（连接超时、握手失败、解析错误等）都意味着端点无效
+            logger.error("验证MCP端点 [{}] 时发生异常: {}", sseEndpoint, e.getMessage());
+            return false;
+        }
+        if (pooled.tools.isEmpty()) {
+            logger.warn("MCP端点 [{}] 连接成功，但未返回任何工具。", sseEndpoint);
+            pooled.disconnect();
+            return false;
+        }
+        logger.info("MCP端点 [{}] 验证成功，获取到 {} 个工具。", sseEndpoint, pooled.tools.size());
+        PooledClient previous = clients.put(name, pooled);
+        if (previous != null) {
+            previous.disconnect();
+        }
+        return true;
+    }
+
+    /**
+     * 关闭并移除某个 MCP 配置的连接，配置被删除或修改时调用
+     */
+    public void invalidate(String name) {
+        PooledClient pooled = clients.remove(name);
+        if (pooled != null) {
+            pooled.disconnect();
+            logger.info("MCP 连接 [{}] 已从连接池移除。", name);
+        }
+    }
+
+    /**
+     * 健康检查：关闭空闲连接，检测失效的连接，并对到达重试时间的连接重新建立连接
+     */
+    @Scheduled(fixedDelayString = "${mcp.pool.health-check-interval-ms:60000}", scheduler = SchedulingConfig.BLOCKING_SCHEDULER)
+    public void checkHealth() {
+        long idleDeadline = System.currentTimeMillis() - idleMinutes * 60_000;
+        clients.forEach((name, pooled) -> {
+            McpClient client;
+            CompletableFuture<Void> pending = null;
+            synchronized (pooled) {
+                if (pooled.lastUsedAt < idleDeadline) {
+                    clients.remove(name, pooled);
+                    pooled.disconnect();
+                    record("evicted_idle");
+                    logger.info("MCP 连接 [{}] 空闲超过 {} 分钟，已关闭。", name, idleMinutes);
+                    return;
+                }
+                if (pooled.pending != null) {
+                    // 请求线程正在连接或刷新工具列表
+                    return;
+                }
+                client = pooled.client;
+                if (client == null) {
+                    if (System.currentTimeMillis() < pooled.nextRetryAt) {
+                        return;
+                    }
+                    pending = pooled.pending = new CompletableFuture<>();
+                }
+            }
+            // 健康检查和重连都可能阻塞数十秒，不持有 pooled 的锁，不影响该连接上的其他请求
+            if (client != null) {
+                try {
+                    client.checkHealth();
+                } catch (RuntimeException e) {
+                    record("health_failed");
+                    logger.warn("MCP 连接 [{}] 健康检查失败: {}", name, e.getMessage());
+                    synchronized (pooled) {
+                        if (pooled.client == client) {
+                            markFailed(name, pooled);
+                        }
+                    }
+                }
+                return;
+            }
+            try {
+                runPending(pooled, pending, () -> connect(name, pooled));
+            } catch (RuntimeException e) {
+                logger.warn("MCP 连接 [{}] 重连失败，{} 毫秒后重试: {}", name, pooled.nextRetryAt - System.currentTimeMillis(), e.getMessage());
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        clients.values().forEach(PooledClient::disconnect);
+        clients.clear();
+    }
+
+    private PooledClient acquire(McpConfig config) {
+        String name = config.getName();
+        PooledClient pooled = clients.computeIfAbsent(name, key -> new PooledClient(key, config.getSseEndpoint()));
+        CompletableFuture<Void> pending;
+        boolean owner = false;
+        boolean refresh = false;
+        synchronized (pooled) {
+            if (!pooled.sseEndpoint.equals(config.getSseEndpoint())) {
+                pooled.disconnect();
+                pooled.sseEndpoint = config.getSseEndpoint();
+            }
+            long now = System.currentTimeMillis();
+            pooled.lastUsedAt = now;
+            boolean stale = now - pooled.toolsLoadedAt > toolsTtlMinutes * 60_000;
+            if (pooled.isConnected() && (!stale || pooled.pending != null)) {
+                // 工具列表正在被其他请求刷新时，先用现有的列表
+                record("reuse");
+                return pooled;
+            }
+            if (pooled.pending == null) {
+                if (!pooled.isConnected() && now < pooled.nextRetryAt) {
+                    throw new IllegalStateException("MCP 服务 '" + name + "' 暂时不可用，将在 "
+                            + Math.max(1, (pooled.nextRetryAt - now) / 1000) + " 秒后重试连接。");
+                }
+                pooled.pending = new CompletableFuture<>();
+                owner = true;
+                refresh = pooled.isConnected();
+            }
+            pending = pooled.pending;
+        }
+        if (owner) {
+            // 连接和刷新在锁外进行，最长可能阻塞 connect-timeout-seconds，期间不影响健康检查和其他配置
+            boolean refreshOnly = refresh;
+            runPending(pooled, pending, () -> {
+                if (refreshOnly) {
+                    refreshTools(name, pooled);
+                } else {
+                    connect(name, pooled);
+                }
+            });
+            return pooled;
+        }
+        // 同一配置的并发请求等待正在进行的连接，冷启动时只会建立一次连接
+        try {
+            pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return pooled;
+    }
+
+    /**
+     * 由当前线程执行连接或刷新，结束后通知等待同一连接的其他请求
+     */
+    private void runPending(PooledClient pooled, CompletableFuture<Void> pending, Runnable action) {
+        try {
+            action.run();
+            pending.complete(null);
+        } catch (RuntimeException e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (pooled) {
+                pooled.pending = null;
+            }
+        }
+    }
+
+    /**
+     * 建立连接并获取工具列表。网络操作不持有 pooled 的锁，成功后在锁内放入连接
+     */
+    private void connect(String name, PooledClient pooled) {
+        String sseEndpoint;
+        synchronized (pooled) {
+            sseEndpoint = pooled.sseEndpoint;
+        }
+        McpClient client = null;
+        try {
+            McpTransport transport = new HttpMcpTransport.Builder()
+                    .sseUrl(sseEndpoint)
+                    .timeout(Duration.ofSeconds(requestTimeoutSeconds))
+                    .logRequests(true)
+                    .logResponses(true)
+                    .build();
+            client = new DefaultMcpClient.Builder()
+                    .key(name)
+                    .transport(transport)
+                    .initializationTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+                    .toolExecutionTimeout(Duration.ofSeconds(requestTimeoutSeconds))
+                    .build();
+            List<ToolSpecification> tools = client.listTools();
+            synchronized (pooled) {
+                if (!sseEndpoint.equals(pooled.sseEndpoint)) {
+                    throw new IllegalStateException("MCP 配置 '" + name + "' 的地址在连接期间被修改，请重试。");
+                }
+                pooled.client = client;
+                pooled.tools = tools != null ? List.copyOf(tools) : List.of();
+                pooled.toolsLoadedAt = System.currentTimeMillis();
+                pooled.consecutiveFailures = 0;
+                pooled.nextRetryAt = 0;
+            }
+            record("connect");
+            logger.info("MCP 连接 [{}] 已建立，获取到 {} 个工具。", name, pooled.tools.size());
+        } catch (RuntimeException e) {
+            closeQuietly(name, client);
+            record("connect_failed");
+            synchronized (pooled) {
+                backoff(pooled);
+            }
+            throw e;
+        }
+    }
+
+    private void refreshTools(String name, PooledClient pooled) {
+        McpClient client = pooled.client;
+        if (client == null) {
+            throw new IllegalStateException("MCP 服务 '" + name + "' 的连接已断开，请稍后重试。");
+        }
+        try {
+            List<ToolSpecification> tools = client.listTools();
+            synchronized (pooled) {
+                if (pooled.client == client) {
+                    pooled.tools = tools != null ? List.copyOf(tools) : List.of();
+                    pooled.toolsLoadedAt = System.currentTimeMillis();
+                }
+            }
+            record("tools_refreshed");
+        } catch (RuntimeException e) {
+            logger.warn("刷新 MCP 连接 [{}] 的工具列表失败: {}", name, e.getMessage());
+            synchronized (pooled) {
+                if (pooled.client == client) {
+                    markFailed(name, pooled);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private String executeTool(PooledClient pooled, ToolExecutionRequest request) {
+        McpClient client = pooled.client;
+        if (client == null) {
+            throw new IllegalStateException("MCP 服务 '" + pooled.name + "' 的连接已断开，请稍后重试。");
+        }
+        try {
+            return client.executeTool(request);
+        } catch (RuntimeException e) {
+            logger.warn("MCP 连接 [{}] 执行工具 {} 失败: {}", pooled.name, request.name(), e.getMessage());
+            if (!isTransportFailure(e)) {
+                // 参数错误、MCP 服务返回的业务错误等与连接无关，共享的连接继续使用
+                throw e;
+            }
+            // 连接层面的异常说明连接已失效，关闭后下次请求重新连接
+            synchronized (pooled) {
+                if (pooled.client == client) {
+                    markFailed(pooled.name, pooled);
+                    // 失败的调用不进入退避期，下次请求立即重连
+                    pooled.nextRetryAt = 0;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 异常链中有 IO 异常（连接被拒绝、网络中断、SSE 流断开等）才视为连接失效；
+     * JSON 解析异常虽然也是 IOException，但只说明工具参数或返回内容有误
+     */
+    private static boolean isTransportFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof McpException || cause instanceof JsonProcessingException) {
+                return false;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 关闭失效的连接并进入退避期，调用方需持有 pooled 的锁
+     */
+    private void markFailed(String name, PooledClient pooled) {
+        closeQuietly(name, pooled.client);
+        pooled.client = null;
+        backoff(pooled);
+    }
+
+    private void backoff(PooledClient pooled) {
+        pooled.consecutiveFailures++;
+        long delay = Math.min(backoffMaxMs, backoffInitialMs << Math.min(pooled.consecutiveFailures - 1, 20));
+        pooled.nextRetryAt = System.currentTimeMillis() + delay;
+    }
+
+    private void closeQuietly(String name, McpClient client) {
+        if (client == null) {
+            return;
+        }
+        try {
+            client.close();
+        } catch (Exception e) {
+            logger.error("关闭 MCP 连接 [{}] 时出错", name, e);
+        }
+    }
+
+    private void record(String event) {
+        meterRegistry.counter("mcp.pool", "event", event).increment();
+    }
+
+    /**
+     * 连接池中的一个连接及其状态，字段都在该对象的锁内修改
+     */
+    private static class PooledClient {
+        private final String name;
+        private String sseEndpoint;
+        private volatile McpClient client;
+        private volatile List<ToolSpecification> tools = List.of();
+        private long toolsLoadedAt;
+        private volatile long lastUsedAt = System.currentTimeMillis();
+        private int consecutiveFailures;
+        private volatile long nextRetryAt;
+        // 正在进行的连接或工具列表刷新，同一时间只有一个
+        private CompletableFuture<Void> pending;
+
+        PooledClient(String name, String sseEndpoint) {
+            this.name = name;
+            this.sseEndpoint = sseEndpoint;
+        }
+
+        boolean isConnected() {
+            return client != null;
+        }
+
+        synchronized void disconnect() {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (Exception e) {
+                    logger.error("关闭 MCP 连接 [{}] 时出错", name, e);
+                }
+                client = null;
+            }
+        }
+    }
+}
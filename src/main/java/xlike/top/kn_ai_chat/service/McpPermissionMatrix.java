@@ -0,0 +1,308 @@
+package xlike.top.kn_ai_chat.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import xlike.top.kn_ai_chat.config.SchedulingConfig;
+import xlike.top.kn_ai_chat.domain.McpConfig;
+import xlike.top.kn_ai_chat.repository.McpConfigRepository;
+import xlike.top.kn_ai_chat.repository.UserMcpPermissionRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MCP 权限矩阵
+ * <p>
+ * 启动时一次性加载所有 MCP 配置和权限记录：每个用户分配一个序号，每个 MCP 配置一个 BitSet，
+ * 第 n 位表示序号为 n 的用户拥有该配置的权限。消息链路上的权限判断和可用服务列表直接走内存，不再查询数据库。
+ * <p>
+ * 已发布的 BitSet 和映射都不再修改，变更时复制后整体替换（写时复制），读取无需加锁。
+ * 变更在事务提交后生效，并通过 Redis 频道广播给其他节点。
+ * 广播是发后即忘的，节点断线期间错过的变更靠定时全量重新加载（reload-interval-ms）补齐。
+ * @author xlike
+ */
+@Service
+public class McpPermissionMatrix implements MessageListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(McpPermissionMatrix.class);
+    private static final String MATRIX_CHANNEL = "kn_ai_chat:mcp_permission";
+    private static final String SEPARATOR = "|";
+
+    private static final String ACTION_GRANT = "GRANT";
+    private static final String ACTION_REVOKE = "REVOKE";
+    private static final String ACTION_REMOVE_USER = "REMOVE_USER";
+    private static final String ACTION_RELOAD = "RELOAD";
+
+    private final McpConfigRepository mcpConfigRepository;
+    private final UserMcpPermissionRepository permissionRepository;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 用户序号只增不减，重新加载时沿用已有序号，保证并发读取时旧的 BitSet 仍然有效
+     */
+    private final Map<String, Integer> userOrdinals = new ConcurrentHashMap<>();
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
+
+    private volatile Map<Long, Column> columns = Map.of();
+    private volatile Map<String, Long> configIdsByName = Map.of();
+
+    // 用于识别并忽略本节点自己发出的广播
+    private final String nodeId = UUID.randomUUID().toString();
+
+    /**
+     * 一个 MCP 配置及拥有其权限的用户位图，两者都不再修改
+     */
+    private record Column(McpConfig config, BitSet users) {}
+
+    public McpPermissionMatrix(McpConfigRepository mcpConfigRepository,
+                               UserMcpPermissionRepository permissionRepository,
+                               StringRedisTemplate redisTemplate,
+                               RedisMessageListenerContainer listenerContainer,
+                               MeterRegistry meterRegistry) {
+        this.mcpConfigRepository = mcpConfigRepository;
+        this.permissionRepository = permissionRepository;
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+        meterRegistry.gauge("mcp.permission.grants", this,
+                matrix -> countGrants(matrix.columns.values()));
+    }
+
+    @PostConstruct
+    public void init() {
+        loadFromDatabase();
+        listenerContainer.addMessageListener(this, new ChannelTopic(MATRIX_CHANNEL));
+    }
+
+    /**
+     * 判断用户是否拥有某个 MCP 配置的权限，只读内存
+     */
+    public boolean hasPermission(String externalUserId, String mcpConfigName) {
+        Long configId = configIdsByName.get(mcpConfigName);
+        Integer ordinal = userOrdinals.get(externalUserId);
+        if (configId == null || ordinal == null) {
+            return false;
+        }
+        Column column = columns.get(configId);
+        return column != null && column.users().get(ordinal);
+    }
+
+    /**
+     * @return 用户有权限的 MCP 配置（副本），按配置ID排序
+     */
+    public List<McpConfig> getAuthorizedConfigs(String externalUserId) {
+        Integer ordinal = userOrdinals.get(externalUserId);
+        if (ordinal == null) {
+            return List.of();
+        }
+        return columns.values().stream()
+                .filter(column -> column.users().get(ordinal))
+                .map(column -> copyOf(column.config()))
+                .sorted(Comparator.comparing(McpConfig::getId))
+                .toList();
+    }
+
+    /**
+     * @return 指定名称的 MCP 配置（副本）
+     */
+    public Optional<McpConfig> findConfig(String mcpConfigName) {
+        Long configId = configIdsByName.get(mcpConfigName);
+        Column column = configId != null ? columns.get(configId) : null;
+        return column != null ? Optional.of(copyOf(column.config())) : Optional.empty();
+    }
+
+    public boolean hasConfig(Long mcpConfigId) {
+        return columns.containsKey(mcpConfigId);
+    }
+
+    /**
+     * 授予单个权限（数据库写入后调用，事务提交后生效）
+     */
+    public void grant(String externalUserId, Long mcpConfigId) {
+        afterCommit(() -> {
+            applyGrant(externalUserId, mcpConfigId, true);
+            publish(ACTION_GRANT, mcpConfigId + SEPARATOR + externalUserId);
+        });
+    }
+
+    /**
+     * 撤销单个权限（数据库删除后调用，事务提交后生效）
+     */
+    public void revoke(String externalUserId, Long mcpConfigId) {
+        afterCommit(() -> {
+            applyGrant(externalUserId, mcpConfigId, false);
+            publish(ACTION_REVOKE, mcpConfigId + SEPARATOR + externalUserId);
+        });
+    }
+
+    /**
+     * 用户被删除后，清除其所有权限
+     */
+    public void removeUser(String externalUserId) {
+        afterCommit(() -> {
+            applyRemoveUser(externalUserId);
+            publish(ACTION_REMOVE_USER, externalUserId);
+        });
+    }
+
+    /**
+     * 定时从数据库全量重新加载，修正因错过广播（Redis 断线、节点重启期间的变更等）产生的偏差
+     */
+    @Scheduled(fixedDelayString = "${mcp.permission.reload-interval-ms:300000}",
+            initialDelayString = "${mcp.permission.reload-interval-ms:300000}",
+            scheduler = SchedulingConfig.BLOCKING_SCHEDULER)
+    public void periodicReload() {
+        try {
+            loadFromDatabase();
+        } catch (RuntimeException e) {
+            logger.error("定时重新加载 MCP 权限矩阵失败，继续使用当前数据。", e);
+        }
+    }
+
+    /**
+     * 从数据库重新加载权限矩阵，用于新增/删除 MCP 配置、批量授权、清空全部数据等变更之后
+     */
+    public void reload() {
+        afterCommit(() -> {
+            loadFromDatabase();
+            publish(ACTION_RELOAD, "");
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String[] parts = body.split("\\" + SEPARATOR, 3);
+        if (parts.length != 3 || nodeId.equals(parts[0])) {
+            return;
+        }
+        String action = parts[1];
+        String payload = parts[2];
+        logger.debug("收到 MCP 权限广播: {} {}", action, payload);
+        try {
+            switch (action) {
+                case ACTION_GRANT, ACTION_REVOKE -> {
+                    String[] grant = payload.split("\\" + SEPARATOR, 2);
+                    applyGrant(grant[1], Long.valueOf(grant[0]), ACTION_GRANT.equals(action));
+                }
+                case ACTION_REMOVE_USER -> applyRemoveUser(payload);
+                case ACTION_RELOAD -> loadFromDatabase();
+                default -> logger.warn("未知的 MCP 权限广播动作: {}", action);
+            }
+        } catch (RuntimeException e) {
+            logger.error("处理 MCP 权限广播失败: {}", body, e);
+        }
+    }
+
+    private synchronized void applyGrant(String externalUserId, Long mcpConfigId, boolean granted) {
+        Column column = columns.get(mcpConfigId);
+        if (column == null) {
+            // 配置是其他节点刚新增的，整体重新加载即可
+            loadFromDatabase();
+            return;
+        }
+        int ordinal = ordinalOf(externalUserId);
+        if (column.users().get(ordinal) == granted) {
+            return;
+        }
+        BitSet users = (BitSet) column.users().clone();
+        users.set(ordinal, granted);
+        Map<Long, Column> updated = new HashMap<>(columns);
+        updated.put(mcpConfigId, new Column(column.config(), users));
+        columns = Map.copyOf(updated);
+    }
+
+    private synchronized void applyRemoveUser(String externalUserId) {
+        Integer ordinal = userOrdinals.get(externalUserId);
+        if (ordinal == null) {
+            return;
+        }
+        Map<Long, Column> updated = new HashMap<>(columns);
+        updated.replaceAll((configId, column) -> {
+            if (!column.users().get(ordinal)) {
+                return column;
+            }
+            BitSet users = (BitSet) column.users().clone();
+            users.clear(ordinal);
+            return new Column(column.config(), users);
+        });
+        columns = Map.copyOf(updated);
+    }
+
+    private synchronized void loadFromDatabase() {
+        Map<Long, BitSet> users = new HashMap<>();
+        for (Object[] pair : permissionRepository.findAllUserConfigPairs()) {
+            users.computeIfAbsent((Long) pair[1], id -> new BitSet()).set(ordinalOf((String) pair[0]));
+        }
+        Map<Long, Column> loadedColumns = new HashMap<>();
+        Map<String, Long> loadedIds = new HashMap<>();
+        for (McpConfig config : mcpConfigRepository.findAll()) {
+            loadedColumns.put(config.getId(), new Column(copyOf(config), users.getOrDefault(config.getId(), new BitSet())));
+            loadedIds.put(config.getName(), config.getId());
+        }
+        columns = Map.copyOf(loadedColumns);
+        configIdsByName = Map.copyOf(loadedIds);
+        logger.info("MCP 权限矩阵加载完成，{} 个 MCP 配置，{} 个用户，{} 条权限。",
+                loadedColumns.size(), userOrdinals.size(), countGrants(loadedColumns.values()));
+    }
+
+    private int ordinalOf(String externalUserId) {
+        return userOrdinals.computeIfAbsent(externalUserId, id -> nextOrdinal.getAndIncrement());
+    }
+
+    private static int countGrants(Collection<Column> columns) {
+        return columns.stream().mapToInt(column -> column.users().cardinality()).sum();
+    }
+
+    private static McpConfig copyOf(McpConfig config) {
+        McpConfig copy = new McpConfig();
+        copy.setId(config.getId());
+        copy.setName(config.getName());
+        copy.setType(config.getType());
+        copy.setUrl(config.getUrl());
+        copy.setSseEndpoint(config.getSseEndpoint());
+        return copy;
+    }
+
+    private void afterCommit(Runnable action) {
+        // 处于事务中时，等事务提交后再更新内存和广播，事务回滚时内存保持不变
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private void publish(String action, String payload) {
+        try {
+            redisTemplate.convertAndSend(MATRIX_CHANNEL, nodeId + SEPARATOR + action + SEPARATOR + payload);
+        } catch (Exception e) {
+            logger.error("广播 MCP 权限变更失败: {} {}", action, payload, e);
+        }
+    }
+}
@@ -1,11 +1,5 @@
 package xlike.top.kn_ai_chat.service;
 
-import dev.langchain4j.agent.tool.ToolSpecification;
-import dev.langchain4j.mcp.McpToolProvider;
-import dev.langchain4j.mcp.client.DefaultMcpClient;
-import dev.langchain4j.mcp.client.McpClient;
-import dev.langchain4j.mcp.client.transport.McpTransport;
-import dev.langchain4j.mcp.client.transport.http.HttpMcpTransport;
 import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
 import dev.langchain4j.service.AiServices;
@@ -15,22 +9,21 @@ import org.slf4j.LoggerFactory;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import xlike.top.kn_ai_chat.domain.McpAiConfig;
 import xlike.top.kn_ai_chat.domain.McpConfig;
 import xlike.top.kn_ai_chat.domain.UserMcpPermission;
-import xlike.top.kn_ai_chat.domain.WeChatUser;
 import xlike.top.kn_ai_chat.dto.McpAddRequest;
 import xlike.top.kn_ai_chat.dto.McpDefinition;
 import xlike.top.kn_ai_chat.mcp.Bot;
 import xlike.top.kn_ai_chat.repository.McpConfigRepository;
 import xlike.top.kn_ai_chat.repository.UserMcpPermissionRepository;
-import xlike.top.kn_ai_chat.repository.WeChatUserRepository;
 import xlike.top.kn_ai_chat.utils.MarkdownCleanerUtil;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -48,39 +41,40 @@ public class McpService {
     private final McpConfigRepository mcpConfigRepository;
     private final UserMcpPermissionRepository permissionRepository;
     private final RedisTemplate<String, Object> redisTemplate;
-    private final WeChatUserRepository weChatUserRepository;
     private final UserConfigService userConfigService;
+    private final McpClientPool mcpClientPool;
+    private final McpPermissionMatrix permissionMatrix;
 
     public McpService(McpConfigRepository mcpConfigRepository,
                       UserMcpPermissionRepository permissionRepository,
                       RedisTemplate<String, Object> redisTemplate,
-                      WeChatUserRepository weChatUserRepository,
-                      UserConfigService userConfigService) {
+                      UserConfigService userConfigService,
+                      McpClientPool mcpClientPool,
+                      McpPermissionMatrix permissionMatrix) {
         this.mcpConfigRepository = mcpConfigRepository;
         this.permissionRepository = permissionRepository;
         this.redisTemplate = redisTemplate;
-        this.weChatUserRepository = weChatUserRepository;
         this.userConfigService = userConfigService;
+        this.mcpClientPool = mcpClientPool;
+        this.permissionMatrix = permissionMatrix;
     }
 
     /**
      * 使用 Langchain4j 执行 MCP 请求。
      */
-    @Transactional(readOnly = true)
     public String executeMcpRequest(String externalUserId, String mcpConnectionName, String prompt) {
         if (!hasPermission(externalUserId, mcpConnectionName)) {
             logger.warn("用户 [{}] 尝试访问未授权的 MCP 连接 [{}]", externalUserId, mcpConnectionName);
             return "❌ 您没有权限使用名为 '" + mcpConnectionName + "' 的模型服务。请联系管理员授权。";
         }
 
-        McpConfig mcpConfig = mcpConfigRepository.findByName(mcpConnectionName)
+        McpConfig mcpConfig = permissionMatrix.findConfig(mcpConnectionName)
                 .orElseThrow(() -> new IllegalArgumentException("名为 '" + mcpConnectionName + "' 的 MCP 配置不存在。"));
 
         // 动态获取当前用户的MCP AI配置
         McpAiConfig mcpAiConfig = userConfigService.getMcpAiConfig(externalUserId);
         logger.info("为用户 [{}] 加载了MCP AI配置: {}", externalUserId, mcpAiConfig.getModel());
 
-        McpClient mcpClient = null;
         try {
             logger.info("用户 [{}] 通过 MCP 连接 [{}] 发起请求...", externalUserId, mcpConnectionName);
 
@@ -95,15 +89,8 @@ public class McpService {
                     .logResponses(true)
                     .build();
 
-            McpTransport transport = new HttpMcpTransport.Builder()
-                    .sseUrl(mcpConfig.getSseEndpoint())
-                    .timeout(Duration.ofSeconds(120))
-                    .logRequests(true)
-                    .logResponses(true)
-                    .build();
-
-            mcpClient = new DefaultMcpClient.Builder().transport(transport).build();
-            ToolProvider toolProvider = McpToolProvider.builder().mcpClients(List.of(mcpClient)).build();
+            // 连接和工具列表都来自连接池，热请求不再重复握手
+            ToolProvider toolProvider = mcpClientPool.toolProvider(mcpConfig);
 
             Bot bot = AiServices.builder(Bot.class)
                     .chatModel(model)
@@ -114,17 +101,12 @@ public class McpService {
             String response = bot.chat(finalPrompt);
 
             return MarkdownCleanerUtil.cleanMarkdown(response);
+        } catch (IllegalStateException e) {
+            logger.warn("MCP 连接 [{}] 不可用，用户: {}。原因: {}", mcpConnectionName, externalUserId, e.getMessage());
+            return "❌ " + e.getMessage();
         } catch (Exception e) {
             logger.error("调用 MCP 连接 [{}] 时发生未知错误，用户: {}。错误: {}", mcpConnectionName, externalUserId, e.getMessage(), e);
             return "调用模型服务 '" + mcpConnectionName + "' 时发生内部错误: " + e.getClass().getSimpleName();
-        } finally {
-            if (mcpClient != null) {
-                try {
-                    mcpClient.close();
-                } catch (Exception e) {
-                    logger.error("关闭 MCP Client 时出错", e);
-                }
-            }
         }
     }
 
@@ -150,10 +132,21 @@ public class McpService {
                 throw new IllegalArgumentException("配置名称 '" + name + "' 已存在，请使用其他名称。");
             }
 
-            if (!isMcpEndpointValid(url)) {
+            // 验证通过的连接直接放入连接池，首个请求无需再次握手
+            if (!mcpClientPool.register(name, url)) {
                 logger.error("URL连接测试失败: {}", url);
                 throw new RuntimeException("无法连接到URL: '" + url + "'，请检查网络或地址是否正确。");
             }
+            // 配置没有提交（本条或后续配置保存失败导致回滚）时，关闭已放入连接池的连接
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        logger.warn("MCP配置 [{}] 未能保存，从连接池中移除。", name);
+                        mcpClientPool.invalidate(name);
+                    }
+                }
+            });
 
             McpConfig newConfig = new McpConfig();
             newConfig.setName(name);
@@ -161,6 +154,7 @@ public class McpService {
             newConfig.setUrl(url);
             newConfig.setSseEndpoint(url);
             mcpConfigRepository.save(newConfig);
+            permissionMatrix.reload();
 
             logger.info("成功新增MCP配置: [{}], 类型: [{}], SSE Endpoint: {}", name, type, url);
         }
@@ -178,106 +172,40 @@ public class McpService {
         }
 
         logger.info("正在删除 MCP 配置 ID: {}", mcpConfigId);
+        mcpConfigRepository.findById(mcpConfigId).map(McpConfig::getName).ifPresent(mcpClientPool::invalidate);
         // 先删除所有与此MCP配置相关的权限记录，避免违反外键约束
-        long deletedPermissionsCount = permissionRepository.deleteByMcpConfigId(mcpConfigId);
+        int deletedPermissionsCount = permissionRepository.deleteByMcpConfigId(mcpConfigId);
         logger.info("删除了 {} 条与 MCP 配置 ID [{}] 相关的权限记录。", deletedPermissionsCount, mcpConfigId);
         // 再删除MCP配置本身
         mcpConfigRepository.deleteById(mcpConfigId);
+        permissionMatrix.reload();
         logger.info("成功删除 MCP 配置 ID: {}", mcpConfigId);
     }
 
     /**
-     * 测试给定的URL是否可以访问
+     * 为所有用户批量授予或撤销某个 MCP 配置的权限，授予时在数据库中用一条 INSERT … SELECT 完成
      */
-    private boolean isMcpEndpointValid(String sseUrl) {
-        McpClient mcpClient = null;
-        try {
-            logger.info("正在验证MCP端点的有效性: {}", sseUrl);
-            // 构建Transport 和 Client
-            McpTransport transport = new HttpMcpTransport.Builder()
-                    .sseUrl(sseUrl)
-                    .timeout(Duration.ofSeconds(30))
-                    .build();
-
-            mcpClient = new DefaultMcpClient.Builder()
-                    .transport(transport)
-                    .build();
-            // 列出工具
-            List<ToolSpecification> tools = mcpClient.listTools();
-            if (tools != null && !tools.isEmpty()) {
-                logger.info("MCP端点 [{}] 验证成功，获取到 {} 个工具。", sseUrl, tools.size());
-                return true;
-            } else {
-                logger.warn("MCP端点 [{}] 连接成功，但未返回任何工具。", sseUrl);
-                return false;
-            }
-        } catch (Exception e) {
-            // 任何异常（连接超时、握手失败、解析错误等）都意味着端点无效
-            logger.error("验证MCP端点 [{}] 时发生异常: {}", sseUrl, e.getMessage());
-            return false;
-        } finally {
-            // 无论成功与否都关闭客户端以释放资源
-            if (mcpClient != null) {
-                try {
-                    mcpClient.close();
-                } catch (Exception e) {
-                    logger.error("关闭用于验证的 MCP Client 时出错", e);
-                }
-            }
-        }
-    }
-    
-
     @Transactional
     public void batchUpdatePermissions(Long mcpConfigId, boolean grant) {
         McpConfig config = mcpConfigRepository.findById(mcpConfigId)
                 .orElseThrow(() -> new IllegalArgumentException("无效的 MCP 配置 ID: " + mcpConfigId));
 
-        List<WeChatUser> allUsers = weChatUserRepository.findAll();
-        logger.info("开始为 MCP [{}] 批量 {} {} 个用户的权限。", config.getName(), grant ? "授予" : "撤销", allUsers.size());
-
         if (grant) {
-            Set<String> userIdsWithPermission = permissionRepository.findByMcpConfigId(mcpConfigId).stream()
-                    .map(UserMcpPermission::getExternalUserId)
-                    .collect(Collectors.toSet());
-
-            List<UserMcpPermission> permissionsToSave = allUsers.stream()
-                    .filter(user -> !userIdsWithPermission.contains(user.getExternalUserId()))
-                    .map(user -> {
-                        UserMcpPermission permission = new UserMcpPermission();
-                        permission.setExternalUserId(user.getExternalUserId());
-                        permission.setMcpConfig(config);
-                        return permission;
-                    })
-                    .collect(Collectors.toList());
-
-            if (!permissionsToSave.isEmpty()) {
-                permissionRepository.saveAll(permissionsToSave);
-                logger.info("为 {} 个新用户授予了 MCP [{}] 的权限。", permissionsToSave.size(), config.getName());
-            }
+            int inserted = permissionRepository.grantToAllUsers(mcpConfigId);
+            logger.info("为 {} 个新用户授予了 MCP [{}] 的权限。", inserted, config.getName());
         } else {
-            long deletedCount = permissionRepository.deleteByMcpConfigId(mcpConfigId);
+            int deletedCount = permissionRepository.deleteByMcpConfigId(mcpConfigId);
             logger.info("为 MCP [{}] 撤销了 {} 条权限记录。", config.getName(), deletedCount);
         }
+        permissionMatrix.reload();
     }
-    
-    @Transactional(readOnly = true)
+
+    /**
+     * 获取用户可用的 MCP 服务列表（来自内存权限矩阵），并缓存到 Redis 供 #mcp-序号 使用
+     */
     public List<McpConfig> getAndCacheAuthorizedMcpListForUser(String externalUserId) {
-        List<UserMcpPermission> permissions = permissionRepository.findByExternalUserId(externalUserId);
-        
-        List<McpConfig> authorizedConfigs = permissions.stream()
-                .map(permission -> {
-                    McpConfig config = permission.getMcpConfig();
-                    McpConfig cleanConfig = new McpConfig();
-                    cleanConfig.setId(config.getId());
-                    cleanConfig.setName(config.getName());
-                    cleanConfig.setType(config.getType()); // 也将type返回给前端
-                    cleanConfig.setUrl(config.getUrl());
-                    cleanConfig.setSseEndpoint(config.getSseEndpoint());
-                    return cleanConfig;
-                })
-                .collect(Collectors.toList());
-        
+        List<McpConfig> authorizedConfigs = permissionMatrix.getAuthorizedConfigs(externalUserId);
+
         if (!authorizedConfigs.isEmpty()) {
             try {
                 String key = MCP_CACHE_KEY_PREFIX + externalUserId;
@@ -287,10 +215,10 @@ public class McpService {
                 logger.error("将 MCP 列表缓存到 Redis 时失败，用户: {}", externalUserId, e);
             }
         }
-        
+
         return authorizedConfigs;
     }
-    
+
     @SuppressWarnings("unchecked")
     public Optional<McpConfig> getMcpConfigFromCache(String externalUserId, int index) {
         String key = MCP_CACHE_KEY_PREFIX + externalUserId;
@@ -308,10 +236,34 @@ public class McpService {
         return Optional.empty();
     }
 
+    /**
+     * 用户被删除后，清除其在内存权限矩阵中的权限和 Redis 中缓存的 MCP 列表
+     * @param externalUserId 用户ID
+     */
+    public void removeUser(String externalUserId) {
+        permissionMatrix.removeUser(externalUserId);
+        evictUserMcpCache(externalUserId);
+    }
 
-    
+    /**
+     * 删除用户在 Redis 中缓存的 MCP 列表（用户被删除时调用）
+     * @param externalUserId 用户ID
+     */
+    public void evictUserMcpCache(String externalUserId) {
+        try {
+            redisTemplate.delete(MCP_CACHE_KEY_PREFIX + externalUserId);
+        } catch (Exception e) {
+            logger.error("删除用户 [{}] 的MCP列表缓存失败", externalUserId, e);
+        }
+    }
+
+
+
+    /**
+     * 权限判断只读内存中的权限矩阵，不访问数据库
+     */
     public boolean hasPermission(String externalUserId, String mcpConnectionName) {
-        return permissionRepository.existsByExternalUserIdAndMcpConfigName(externalUserId, mcpConnectionName);
+        return permissionMatrix.hasPermission(externalUserId, mcpConnectionName);
     }
     
     public List<McpConfig> getAllMcpConfigs() {
@@ -328,20 +280,23 @@ public class McpService {
 
     @Transactional
     public void grantPermission(String externalUserId, Long mcpConfigId) {
-        if (permissionRepository.findByExternalUserIdAndMcpConfigId(externalUserId, mcpConfigId).isEmpty()) {
-            McpConfig config = mcpConfigRepository.findById(mcpConfigId)
-                    .orElseThrow(() -> new IllegalArgumentException("无效的 MCP 配置 ID"));
+        if (!permissionMatrix.hasConfig(mcpConfigId)) {
+            throw new IllegalArgumentException("无效的 MCP 配置 ID");
+        }
+        if (!permissionRepository.existsByExternalUserIdAndMcpConfigId(externalUserId, mcpConfigId)) {
             UserMcpPermission permission = new UserMcpPermission();
             permission.setExternalUserId(externalUserId);
-            permission.setMcpConfig(config);
+            permission.setMcpConfig(mcpConfigRepository.getReferenceById(mcpConfigId));
             permissionRepository.save(permission);
-            logger.info("已为用户 [{}] 授予对 MCP [{}] 的访问权限。", externalUserId, config.getName());
+            logger.info("已为用户 [{}] 授予对 MCP 配置 ID [{}] 的访问权限。", externalUserId, mcpConfigId);
         }
+        permissionMatrix.grant(externalUserId, mcpConfigId);
     }
 
     @Transactional
     public void revokePermission(String externalUserId, Long mcpConfigId) {
         permissionRepository.deleteByExternalUserIdAndMcpConfigId(externalUserId, mcpConfigId);
+        permissionMatrix.revoke(externalUserId, mcpConfigId);
         logger.info("已撤销用户 [{}] 对 MCP 配置 ID [{}] 的访问权限。", externalUserId, mcpConfigId);
     }
 }
\ No newline at end of file
@@ -2,22 +2,33 @@ package xlike.top.kn_ai_chat.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.FileSystemResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
 import xlike.top.kn_ai_chat.enums.MediaType;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+import xlike.top.kn_ai_chat.media.MediaTempArena;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,13 +36,19 @@ import java.util.regex.Pattern;
  * 媒体素材服务
  * <p>
  * 负责与微信的临时素材接口进行交互，包括上传和下载。
+ * 上传结果按 (内容 SHA-256, 素材类型) 缓存在 Redis 中，普通文件还要加上文件名（接收方看到的是上传时的文件名），
+ * 相同内容在 media_id 有效期内不会重复上传；同一内容的并发上传只会真正执行一次，其余调用等待并共享结果。
+ * 缓存中只保存哈希、media_id 和首次上传的时间，不保存文件内容；复用 media_id 的调用方应按首次上传时间计算有效期。
  * @author xlike
  */
 @Service
 public class MediaService {
 
     private static final Logger logger = LoggerFactory.getLogger(MediaService.class);
-    
+
+    private static final String UPLOAD_CACHE_KEY_PREFIX = "kn_ai_chat:media:upload:";
+    private static final String UPLOAD_CACHE_SEPARATOR = "|";
+    private static final int HASH_BUFFER_SIZE = 8192;
 
     private static final Pattern FILENAME_STAR_PATTERN = Pattern.compile("filename\\*=([^;]+)", Pattern.CASE_INSENSITIVE);
     // 匹配非标准的 filename
@@ -39,27 +56,111 @@ public class MediaService {
 
     private final RestTemplate restTemplate;
     private final AccessTokenManager accessTokenManager;
+    private final MediaTempArena mediaTempArena;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    /**
+     * 正在进行中的上传，键为缓存键，用于合并相同内容的并发上传
+     */
+    private final ConcurrentMap<String, CompletableFuture<Optional<UploadedMedia>>> inFlightUploads = new ConcurrentHashMap<>();
+
+    @Value("${media.upload-cache.enabled:true}")
+    private boolean uploadCacheEnabled;
+
+    /**
+     * 微信临时素材有效期为 3 天，缓存时间略短一些，避免拿到刚好过期的 media_id
+     */
+    @Value("${media.upload-cache.ttl-hours:70}")
+    private long uploadCacheTtlHours;
+
     /**
      * 用于封装下载结果的 record
      *
-     * @param file     下载的、带有正确扩展名的临时文件
+     * @param media    下载的媒体数据，使用完毕后需要关闭
      * @param filename 从响应头中解析出的最准确的文件名
      */
-    public record DownloadedMedia(File file, String filename) {}
+    public record DownloadedMedia(MediaBuffer media, String filename) {}
 
-    public MediaService(RestTemplate restTemplate, AccessTokenManager accessTokenManager) {
+    /**
+     * 上传结果
+     *
+     * @param mediaId    微信临时素材 media_id
+     * @param uploadedAt 该 media_id 实际上传的时间（毫秒），复用缓存时为首次上传的时间，media_id 的有效期从此时开始计算
+     */
+    public record UploadedMedia(String mediaId, long uploadedAt) {}
+
+    public MediaService(RestTemplate restTemplate, AccessTokenManager accessTokenManager, MediaTempArena mediaTempArena,
+                        StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
         this.restTemplate = restTemplate;
         this.accessTokenManager = accessTokenManager;
+        this.mediaTempArena = mediaTempArena;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
     }
 
-    public Optional<String> uploadTemporaryMedia(File file, MediaType mediaType) {
-        if (file == null || !file.exists()) {
+    /**
+     * 上传临时素材。相同内容、相同类型的素材在缓存有效期内直接返回之前的 media_id。
+     */
+    public Optional<String> uploadTemporaryMedia(MediaBuffer media, MediaType mediaType) {
+        return upload(media, mediaType).map(UploadedMedia::mediaId);
+    }
+
+    /**
+     * 上传临时素材，同时返回 media_id 实际的上传时间。需要再缓存 media_id 的调用方使用此方法，按上传时间计算剩余有效期。
+     */
+    public Optional<UploadedMedia> upload(MediaBuffer media, MediaType mediaType) {
+        if (media == null) {
             logger.error("上传文件不存在！");
             return Optional.empty();
         }
+        if (!uploadCacheEnabled) {
+            return doUpload(media, mediaType);
+        }
 
+        String cacheKey;
+        try {
+            cacheKey = uploadCacheKey(media, mediaType);
+        } catch (IOException e) {
+            logger.warn("计算素材 {} 的哈希失败，跳过上传缓存。", media.filename(), e);
+            return doUpload(media, mediaType);
+        }
+
+        Optional<UploadedMedia> cached = getCachedMedia(cacheKey);
+        if (cached.isPresent()) {
+            recordUploadCache("hit");
+            logger.info("素材 {} 内容已上传过，复用 media_id: {}", media.filename(), cached.get().mediaId());
+            return cached;
+        }
+
+        CompletableFuture<Optional<UploadedMedia>> upload = new CompletableFuture<>();
+        CompletableFuture<Optional<UploadedMedia>> existing = inFlightUploads.putIfAbsent(cacheKey, upload);
+        if (existing != null) {
+            recordUploadCache("shared");
+            logger.info("相同内容的素材 {} 正在上传，等待其结果。", media.filename());
+            return existing.join();
+        }
+
+        Optional<UploadedMedia> result = Optional.empty();
+        try {
+            // 在查询缓存和登记上传之间，另一个上传可能刚好完成
+            result = getCachedMedia(cacheKey);
+            if (result.isPresent()) {
+                recordUploadCache("hit");
+                return result;
+            }
+            recordUploadCache("miss");
+            result = doUpload(media, mediaType);
+            result.ifPresent(uploaded -> putCachedMedia(cacheKey, uploaded));
+            return result;
+        } finally {
+            upload.complete(result);
+            inFlightUploads.remove(cacheKey, upload);
+        }
+    }
+
+    private Optional<UploadedMedia> doUpload(MediaBuffer media, MediaType mediaType) {
         String accessToken = accessTokenManager.getAccessToken();
         String url = "https://qyapi.weixin.qq.com/cgi-bin/media/upload?access_token=" + accessToken + "&type=" + mediaType.getTypeName();
 
@@ -67,7 +168,7 @@ public class MediaService {
         headers.setContentType(org.springframework.http.MediaType.MULTIPART_FORM_DATA);
 
         MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
-        body.add("media", new FileSystemResource(file));
+        body.add("media", media.asResource());
 
         HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(body, headers);
 
@@ -77,7 +178,7 @@ public class MediaService {
             JsonNode root = objectMapper.readTree(response);
             if (root.has("errcode") && root.get("errcode").asInt() == 0 && root.has("media_id")) {
                 String mediaId = root.get("media_id").asText();
-                return Optional.of(mediaId);
+                return Optional.of(new UploadedMedia(mediaId, System.currentTimeMillis()));
             } else {
                 logger.error("上传临时素材失败: {}", response);
                 return Optional.empty();
@@ -88,45 +189,106 @@ public class MediaService {
         }
     }
 
+    /**
+     * 下载临时素材。响应体直接流式写入 MediaBuffer，小文件只在内存中，大文件才落到临时目录。
+     * 调用方使用完毕后需要关闭返回的 MediaBuffer。
+     */
     public Optional<DownloadedMedia> downloadTemporaryMedia(String mediaId) {
         String accessToken = accessTokenManager.getAccessToken();
         String url = "https://qyapi.weixin.qq.com/cgi-bin/media/get?access_token=" + accessToken + "&media_id=" + mediaId;
 
         try {
-            ResponseEntity<byte[]> response = restTemplate.exchange(url, HttpMethod.GET, null, byte[].class);
-            
-            if (response.getStatusCode().is2xxSuccessful() && response.getBody() != null) {
+            DownloadedMedia downloaded = restTemplate.execute(url, HttpMethod.GET, null, response -> {
                 String disposition = response.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION);
-                
+                org.springframework.http.MediaType contentType = response.getHeaders().getContentType();
+                // 下载失败时微信返回 JSON 错误信息，且没有 Content-Disposition
+                if (disposition == null && contentType != null
+                        && (contentType.isCompatibleWith(org.springframework.http.MediaType.APPLICATION_JSON)
+                        || contentType.isCompatibleWith(org.springframework.http.MediaType.TEXT_PLAIN))) {
+                    String errorResponse = new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8);
+                    logger.error("下载临时素材 {} 失败，响应: {}", mediaId, errorResponse);
+                    return null;
+                }
+
                 String filename = parseFilenameFromDisposition(disposition);
                 logger.info("从响应头中智能解析到文件名: {}", filename);
+                return new DownloadedMedia(mediaTempArena.read(response.getBody(), filename), filename);
+            });
 
-                String extension = getFileExtension(filename);
-                File tempFile = File.createTempFile("wechat-media-", extension.isEmpty() ? ".tmp" : "." + extension);
-                tempFile.deleteOnExit();
+            if (downloaded == null) {
+                return Optional.empty();
+            }
+            logger.info("成功下载临时素材 {}，大小 {}KB，{}", mediaId, downloaded.media().size() / 1024,
+                    downloaded.media().inMemory() ? "保存在内存中" : "已写入临时目录");
+            return Optional.of(downloaded);
+        } catch (Exception e) {
+            logger.error("下载临时素材 {} 时发生未知异常", mediaId, e);
+            return Optional.empty();
+        }
+    }
 
-                byte[] mediaBytes = response.getBody();
-                try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                    fos.write(mediaBytes);
-                }
+    /**
+     * 上传缓存键：素材类型 + 内容 SHA-256；普通文件在接收方显示上传时的文件名，所以文件名也是键的一部分
+     */
+    private static String uploadCacheKey(MediaBuffer media, MediaType mediaType) throws IOException {
+        String key = UPLOAD_CACHE_KEY_PREFIX + mediaType.getTypeName() + ":" + sha256(media);
+        return mediaType == MediaType.FILE ? key + ":" + media.filename() : key;
+    }
 
-                logger.info("成功下载临时素材 {} 到 {}", mediaId, tempFile.getAbsolutePath());
-                return Optional.of(new DownloadedMedia(tempFile, filename));
-            } else {
-                 if (response.getBody() != null) {
-                    String errorResponse = new String(response.getBody());
-                    logger.error("下载临时素材 {} 失败，响应: {}", mediaId, errorResponse);
-                } else {
-                    logger.error("下载临时素材 {} 失败，状态码: {}", mediaId, response.getStatusCode());
-                }
+    /**
+     * 缓存值格式：首次上传时间（毫秒）|media_id
+     */
+    private Optional<UploadedMedia> getCachedMedia(String cacheKey) {
+        try {
+            String value = stringRedisTemplate.opsForValue().get(cacheKey);
+            if (value == null) {
+                return Optional.empty();
+            }
+            int separator = value.indexOf(UPLOAD_CACHE_SEPARATOR);
+            if (separator < 0) {
+                // 旧格式只有 media_id，不知道上传时间，按未命中处理重新上传
                 return Optional.empty();
             }
+            return Optional.of(new UploadedMedia(value.substring(separator + 1), Long.parseLong(value.substring(0, separator))));
         } catch (Exception e) {
-            logger.error("下载临时素材 {} 时发生未知异常", mediaId, e);
+            logger.warn("读取素材上传缓存失败，直接上传。", e);
             return Optional.empty();
         }
     }
 
+    private void putCachedMedia(String cacheKey, UploadedMedia uploaded) {
+        try {
+            stringRedisTemplate.opsForValue().set(cacheKey, uploaded.uploadedAt() + UPLOAD_CACHE_SEPARATOR + uploaded.mediaId(),
+                    Duration.ofHours(uploadCacheTtlHours));
+        } catch (Exception e) {
+            logger.warn("写入素材上传缓存失败", e);
+        }
+    }
+
+    private void recordUploadCache(String result) {
+        meterRegistry.counter("media.upload.cache", "result", result).increment();
+    }
+
+    /**
+     * 流式计算素材内容的 SHA-256，已落盘的大文件不会整体读入内存
+     */
+    private static String sha256(MediaBuffer media) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = media.openStream()) {
+            byte[] chunk = new byte[HASH_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                digest.update(chunk, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
     /**
      * 从 Content-Disposition 头中智能解析文件名的辅助方法
      */
@@ -165,12 +327,4 @@ public class MediaService {
 
         return "unknown.tmp";
     }
-
-    private String getFileExtension(String fileName) {
-        int lastIndex = fileName.lastIndexOf('.');
-        if (lastIndex == -1 || lastIndex == fileName.length() - 1) {
-            return ""; 
-        }
-        return fileName.substring(lastIndex + 1);
-    }
 }
\ No newline at end of file
@@ -0,0 +1,387 @@
+package xlike.top.kn_ai_chat.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import xlike.top.kn_ai_chat.domain.ChatMessage;
+import xlike.top.kn_ai_chat.domain.MessageLog;
+import xlike.top.kn_ai_chat.repository.ChatMessageRepository;
+import xlike.top.kn_ai_chat.repository.WeChatUserRepository;
+import xlike.top.kn_ai_chat.store.MessageLogStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 消息写缓冲（Write-Behind）
+ * <p>
+ * MessageLog 和 ChatMessage 不再逐条提交，而是先放入内存队列，
+ * 当积累到 batch-size 条或超过 flush-interval-ms 时批量写入（数据库存储下为一个事务内的 JDBC 批量插入）。
+ * 进程异常退出时最多丢失一个刷新周期内（且不超过队列容量）的消息；正常关闭时会把队列全部写完。
+ * MessageLog 和 ChatMessage 分别写入，互不影响；写入失败的消息在之后的刷新中重试，
+ * 超过 max-attempts 次后丢弃并计入 message.write_behind.dropped 指标。
+ * @author xlike
+ */
+@Service
+public class MessageWriteBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageWriteBuffer.class);
+
+    private final MessageLogStore messageLogStore;
+    private final ChatMessageRepository chatMessageRepository;
+    private final ChatMessageIdAllocator chatMessageIdAllocator;
+    private final WeChatUserRepository userRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    private final LinkedBlockingQueue<Object> queue;
+    /**
+     * 写入失败、等待下一次刷新重试的消息
+     */
+    private final ConcurrentLinkedQueue<Object> retryQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * 每条消息已失败的次数，只在持有刷新锁时访问
+     */
+    private final Map<Object, Integer> failedAttempts = new IdentityHashMap<>();
+    /**
+     * 已从队列中取出、正在写入的批次。取出和放回都在 inFlightLock 内完成，
+     * 读取未落库消息的快照时，每条消息总能在队列、写入中批次或重试队列之一中看到
+     */
+    private final Object inFlightLock = new Object();
+    private List<Object> inFlight = List.of();
+    private final Set<String> pendingMsgIds = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    /**
+     * 刷新专用线程：定时刷新和达到批量条数时的刷新都在这里执行，不与其他定时任务共用调度线程
+     */
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-write-buffer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final int maxAttempts;
+    private final MeterRegistry meterRegistry;
+    private final Timer flushTimer;
+    private final DistributionSummary batchSizeSummary;
+
+    public MessageWriteBuffer(MessageLogStore messageLogStore,
+                              ChatMessageRepository chatMessageRepository,
+                              ChatMessageIdAllocator chatMessageIdAllocator,
+                              WeChatUserRepository userRepository,
+                              PlatformTransactionManager transactionManager,
+                              MeterRegistry meterRegistry,
+                              @Value("${history.write-behind.batch-size:50}") int batchSize,
+                              @Value("${history.write-behind.capacity:10000}") int capacity,
+                              @Value("${history.write-behind.flush-interval-ms:200}") long flushIntervalMs,
+                              @Value("${history.write-behind.max-attempts:3}") int maxAttempts) {
+        this.messageLogStore = messageLogStore;
+        this.chatMessageRepository = chatMessageRepository;
+        this.chatMessageIdAllocator = chatMessageIdAllocator;
+        this.userRepository = userRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxAttempts = maxAttempts;
+        this.meterRegistry = meterRegistry;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.flushTimer = Timer.builder("message.write_behind.flush")
+                .description("消息批量写入数据库的耗时")
+                .register(meterRegistry);
+        this.batchSizeSummary = DistributionSummary.builder("message.write_behind.batch_size")
+                .description("每次批量写入的消息条数")
+                .register(meterRegistry);
+        meterRegistry.gauge("message.write_behind.pending", queue, LinkedBlockingQueue::size);
+        meterRegistry.gauge("message.write_behind.retrying", retryQueue, ConcurrentLinkedQueue::size);
+    }
+
+    /**
+     * 提交一条待写入的 MessageLog
+     */
+    public void enqueue(MessageLog log) {
+        if (log.getMsgId() != null) {
+            pendingMsgIds.add(log.getMsgId());
+        }
+        offer(log);
+    }
+
+    /**
+     * 提交一条待写入的 ChatMessage。入队前分配主键，调用方拿到的对象即带有最终的ID，可直接推送给管理员
+     */
+    public void enqueue(ChatMessage message) {
+        if (message.getId() == null) {
+            message.setId(chatMessageIdAllocator.nextId());
+        }
+        offer(message);
+    }
+
+    /**
+     * 判断某个微信消息ID是否还在缓冲区中尚未落库，用于幂等性判断
+     */
+    public boolean isPending(String msgId) {
+        return pendingMsgIds.contains(msgId);
+    }
+
+    /**
+     * 立即把缓冲区内的消息全部写入数据库。
+     * 在删除、清空历史或需要从数据库读取完整历史之前调用，保证读写一致。
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            // 上次失败的消息只在每次刷新开始时重试一次，本次再失败则留到下一次刷新
+            List<Object> retries = new ArrayList<>();
+            synchronized (inFlightLock) {
+                for (Object entity; (entity = retryQueue.poll()) != null; ) {
+                    retries.add(entity);
+                }
+                inFlight = retries;
+            }
+            writeInFlight(retries);
+            while (!queue.isEmpty()) {
+                List<Object> batch = new ArrayList<>(batchSize);
+                synchronized (inFlightLock) {
+                    queue.drainTo(batch, batchSize);
+                    inFlight = batch;
+                }
+                writeInFlight(batch);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 某个会话尚未落库的 MessageLog（排队中、正在写入和等待重试的），用于冷加载会话窗口时与存储中的记录合并。
+     * 返回的是缓冲区中的对象本身，调用方不能修改；其中刚落库的消息已带有主键
+     */
+    public List<MessageLog> pendingMessageLogs(String conversationId) {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<MessageLog> result = new ArrayList<>();
+        synchronized (inFlightLock) {
+            for (Iterable<Object> source : List.<Iterable<Object>>of(inFlight, retryQueue, queue)) {
+                for (Object entity : source) {
+                    if (entity instanceof MessageLog log && conversationId.equals(log.getConversationId()) && seen.add(log)) {
+                        result.add(log);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @PostConstruct
+    public void init() {
+        flushExecutor.scheduleWithFixedDelay(this::scheduledFlush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 先把缓冲区写完，再在持有刷新锁的情况下执行 action，期间不会有新的批次落库。
+     * 新用户入库时在这里按已落库的消息计算初始提问次数：之前的消息由计数覆盖，之后的批次按增量累加，不会重复或遗漏
+     */
+    public <T> T flushAndRun(Supplier<T> action) {
+        flushLock.lock();
+        try {
+            flush();
+            return action.get();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 按时间周期刷新，保证消息在数据库中的最大延迟
+     */
+    private void scheduledFlush() {
+        try {
+            if (!queue.isEmpty() || !retryQueue.isEmpty()) {
+                flush();
+            }
+        } catch (RuntimeException e) {
+            // 异常会终止后续的周期执行，这里吞掉并记录
+            logger.error("定时刷新消息写缓冲失败", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        logger.info("应用关闭，正在将缓冲区中剩余的 {} 条消息写入数据库...", queue.size());
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        for (int i = 1; i < maxAttempts && !retryQueue.isEmpty(); i++) {
+            flush();
+        }
+        if (!retryQueue.isEmpty()) {
+            logger.error("应用关闭时仍有 {} 条消息写入失败，已丢弃。", retryQueue.size());
+        }
+    }
+
+    private void offer(Object entity) {
+        if (!queue.offer(entity)) {
+            // 队列已满说明数据库写入跟不上，由调用线程同步写入以形成背压
+            logger.warn("消息写缓冲已满，调用线程同步刷新。");
+            flush();
+            if (!queue.offer(entity)) {
+                flushLock.lock();
+                try {
+                    List<Object> single = List.of(entity);
+                    synchronized (inFlightLock) {
+                        inFlight = single;
+                    }
+                    writeInFlight(single);
+                } finally {
+                    flushLock.unlock();
+                }
+                return;
+            }
+        }
+        if (queue.size() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+            flushExecutor.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * 写入当前的 inFlight 批次，结束后清空。写入失败的消息在清空前已经放入重试队列
+     */
+    private void writeInFlight(List<Object> batch) {
+        try {
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+            }
+        } finally {
+            synchronized (inFlightLock) {
+                inFlight = List.of();
+            }
+        }
+    }
+
+    private void writeBatch(List<Object> batch) {
+        List<MessageLog> logs = new ArrayList<>();
+        List<ChatMessage> chatMessages = new ArrayList<>();
+        for (Object entity : batch) {
+            if (entity instanceof MessageLog log) {
+                logs.add(log);
+            } else if (entity instanceof ChatMessage message) {
+                chatMessages.add(message);
+            }
+        }
+        Timer.Sample sample = Timer.start();
+        try {
+            saveMessageLogs(logs);
+            saveChatMessages(chatMessages);
+        } finally {
+            sample.stop(flushTimer);
+            batchSizeSummary.record(batch.size());
+        }
+    }
+
+    private void saveMessageLogs(List<MessageLog> logs) {
+        if (logs.isEmpty()) {
+            return;
+        }
+        List<MessageLog> failed;
+        try {
+            // 提问次数与插入在同一个事务中累加，只统计实际写入的消息
+            failed = messageLogStore.saveAll(logs, this::updateQuestionCounts).failed();
+        } catch (Exception e) {
+            logger.error("批量写入 {} 条MessageLog失败。", logs.size(), e);
+            failed = logs;
+        }
+        Set<MessageLog> retrying = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (MessageLog log : failed) {
+            if (retryLater(log, "message_log", log.getMsgId())) {
+                retrying.add(log);
+            }
+        }
+        for (MessageLog log : logs) {
+            if (!retrying.contains(log)) {
+                failedAttempts.remove(log);
+                if (log.getMsgId() != null) {
+                    pendingMsgIds.remove(log.getMsgId());
+                }
+            }
+        }
+    }
+
+    /**
+     * 按会话汇总本批次中用户发出的消息，增量更新用户表上的提问次数。
+     * 在存储的插入事务中执行，失败时插入一并回滚，由写缓冲重试
+     */
+    private void updateQuestionCounts(List<MessageLog> stored) {
+        Map<String, Long> deltas = stored.stream()
+                .filter(log -> log.getConversationId() != null && log.getConversationId().equals(log.getFromUser()))
+                .collect(Collectors.groupingBy(MessageLog::getConversationId, Collectors.counting()));
+        deltas.forEach(userRepository::addQuestionCount);
+    }
+
+    private void saveChatMessages(List<ChatMessage> chatMessages) {
+        if (chatMessages.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> chatMessageRepository.saveAll(chatMessages));
+            chatMessages.forEach(failedAttempts::remove);
+        } catch (Exception e) {
+            logger.warn("批量写入 {} 条ChatMessage失败，改为逐条写入。原因: {}", chatMessages.size(), e.getMessage());
+            chatMessages.forEach(this::saveSingle);
+        }
+    }
+
+    private void saveSingle(ChatMessage message) {
+        try {
+            chatMessageRepository.save(message);
+            failedAttempts.remove(message);
+        } catch (Exception e) {
+            logger.error("保存ChatMessage失败，用户: {}", message.getExternalUserId(), e);
+            retryLater(message, "chat_message", message.getId());
+        }
+    }
+
+    /**
+     * 把写入失败的消息放入重试队列，超过最大次数则丢弃
+     * @return 是否会重试
+     */
+    private boolean retryLater(Object entity, String type, Object key) {
+        int attempts = failedAttempts.merge(entity, 1, Integer::sum);
+        if (attempts < maxAttempts) {
+            retryQueue.add(entity);
+            return true;
+        }
+        failedAttempts.remove(entity);
+        meterRegistry.counter("message.write_behind.dropped", "type", type).increment();
+        logger.error("{} [{}] 写入失败 {} 次，已丢弃。", type, key, attempts);
+        return false;
+    }
+}
@@ -0,0 +1,294 @@
+package xlike.top.kn_ai_chat.service;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ChatMessageDeserializer;
+import dev.langchain4j.data.message.ChatMessageSerializer;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.memory.ChatMemory;
+import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 持久化的对话记忆存储
+ * <p>
+ * 供 Langchain4j 的 {@link ChatMemory} 使用（管理员工具会话、RAG 问答）：
+ * <ul>
+ *     <li>内存中只保留最近使用的 max-entries 个会话（LRU），空闲超过 idle-minutes 的会话定时清出内存；</li>
+ *     <li>每次更新同步写入 Redis（ttl-hours 后过期），内存未命中时从 Redis 加载，节点重启或切换后对话不丢失；</li>
+ *     <li>更新后通过 Redis 频道通知其他节点丢弃本地副本，下次访问时重新加载。</li>
+ * </ul>
+ * @author xlike
+ */
+@Service
+public class PersistentChatMemoryStore implements ChatMemoryStore, MessageListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentChatMemoryStore.class);
+    private static final String MEMORY_KEY_PREFIX = "kn_ai_chat:chat_memory:";
+    private static final String INVALIDATE_CHANNEL = "kn_ai_chat:chat_memory_invalidate";
+    private static final String SEPARATOR = "|";
+
+    /**
+     * 会话ID前缀：管理员工具会话、知识库 RAG 问答
+     */
+    public static final String ADMIN_MEMORY_PREFIX = "admin:";
+    public static final String RAG_MEMORY_PREFIX = "rag:";
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 访问顺序的 LinkedHashMap 即 LRU，所有访问都在 synchronized 中进行
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    // 用于识别并忽略本节点自己发出的广播
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Value("${chat-memory.max-messages:10}")
+    private int maxMessages;
+
+    @Value("${chat-memory.max-entries:1000}")
+    private int maxEntries;
+
+    @Value("${chat-memory.idle-minutes:60}")
+    private long idleMinutes;
+
+    @Value("${chat-memory.ttl-hours:72}")
+    private long ttlHours;
+
+    private static final class Entry {
+        private final List<ChatMessage> messages;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Entry(List<ChatMessage> messages) {
+            this.messages = messages;
+        }
+    }
+
+    public PersistentChatMemoryStore(StringRedisTemplate redisTemplate,
+                                     RedisMessageListenerContainer listenerContainer,
+                                     MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+        meterRegistry.gauge("chat.memory.entries", entries, map -> {
+            synchronized (map) {
+                return map.size();
+            }
+        });
+    }
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 创建一个以本存储为后端、保留最近 max-messages 条消息的对话记忆
+     * @param memoryId 会话ID，带上用途前缀，例如 {@link #ADMIN_MEMORY_PREFIX} + 用户ID
+     */
+    public ChatMemory chatMemory(String memoryId) {
+        return MessageWindowChatMemory.builder()
+                .id(memoryId)
+                .maxMessages(maxMessages)
+                .chatMemoryStore(this)
+                .build();
+    }
+
+    /**
+     * 创建一次 RAG 问答使用的对话记忆
+     * <p>
+     * Langchain4j 会把检索增强后的用户消息（问题 + 检索到的知识库片段）写入记忆，
+     * 这里改为只持久化用户的原始问题；本次调用内读取记忆时再换回增强后的消息，保证本轮请求仍带有检索内容。
+     * @param memoryId 会话ID，{@link #RAG_MEMORY_PREFIX} + 用户ID
+     * @param userQuestion 用户的原始问题
+     */
+    public ChatMemory ragChatMemory(String memoryId, String userQuestion) {
+        return new RagChatMemory(chatMemory(memoryId), UserMessage.from(userQuestion));
+    }
+
+    @Override
+    public List<ChatMessage> getMessages(Object memoryId) {
+        String id = memoryId.toString();
+        synchronized (entries) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                entry.lastAccess = System.currentTimeMillis();
+                record("hit");
+                return new ArrayList<>(entry.messages);
+            }
+        }
+        List<ChatMessage> messages = load(id);
+        synchronized (entries) {
+            // 加载期间其他线程可能已经写入了更新的内容，以已有的为准
+            entries.putIfAbsent(id, new Entry(messages));
+        }
+        return new ArrayList<>(messages);
+    }
+
+    @Override
+    public void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        String id = memoryId.toString();
+        List<ChatMessage> snapshot = List.copyOf(messages);
+        synchronized (entries) {
+            entries.put(id, new Entry(snapshot));
+        }
+        try {
+            redisTemplate.opsForValue().set(MEMORY_KEY_PREFIX + id, ChatMessageSerializer.messagesToJson(snapshot), ttlHours, TimeUnit.HOURS);
+        } catch (Exception e) {
+            logger.error("保存会话 [{}] 的对话记忆到 Redis 失败，仅保留在本节点内存中", id, e);
+        }
+        publishInvalidate(id);
+    }
+
+    @Override
+    public void deleteMessages(Object memoryId) {
+        String id = memoryId.toString();
+        synchronized (entries) {
+            entries.remove(id);
+        }
+        try {
+            redisTemplate.delete(MEMORY_KEY_PREFIX + id);
+        } catch (Exception e) {
+            logger.error("删除会话 [{}] 的对话记忆失败", id, e);
+        }
+        publishInvalidate(id);
+    }
+
+    /**
+     * 删除用户的所有对话记忆（用户被删除时调用）
+     */
+    public void deleteUserMemories(String externalUserId) {
+        deleteMessages(ADMIN_MEMORY_PREFIX + externalUserId);
+        deleteMessages(RAG_MEMORY_PREFIX + externalUserId);
+    }
+
+    /**
+     * 把空闲超时的会话清出内存（Redis 中的副本保留到过期）
+     */
+    @Scheduled(fixedDelayString = "${chat-memory.sweep-interval-ms:300000}")
+    public void evictIdle() {
+        long deadline = System.currentTimeMillis() - idleMinutes * 60_000;
+        int removed;
+        synchronized (entries) {
+            int before = entries.size();
+            entries.values().removeIf(entry -> entry.lastAccess < deadline);
+            removed = before - entries.size();
+        }
+        if (removed > 0) {
+            logger.debug("清理了 {} 个空闲会话的对话记忆。", removed);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String[] parts = body.split("\\" + SEPARATOR, 2);
+        if (parts.length != 2 || nodeId.equals(parts[0])) {
+            return;
+        }
+        synchronized (entries) {
+            entries.remove(parts[1]);
+        }
+    }
+
+    private List<ChatMessage> load(String id) {
+        try {
+            String json = redisTemplate.opsForValue().get(MEMORY_KEY_PREFIX + id);
+            if (json != null) {
+                record("loaded");
+                return List.copyOf(ChatMessageDeserializer.messagesFromJson(json));
+            }
+        } catch (Exception e) {
+            logger.error("从 Redis 加载会话 [{}] 的对话记忆失败，按新会话处理", id, e);
+        }
+        record("miss");
+        return List.of();
+    }
+
+    private void publishInvalidate(String id) {
+        try {
+            redisTemplate.convertAndSend(INVALIDATE_CHANNEL, nodeId + SEPARATOR + id);
+        } catch (Exception e) {
+            logger.error("广播会话 [{}] 的对话记忆变更失败", id, e);
+        }
+    }
+
+    private void record(String result) {
+        meterRegistry.counter("chat.memory.lookup", "result", result).increment();
+    }
+
+    /**
+     * 只持久化原始问题的 RAG 对话记忆，每次调用新建一个
+     */
+    private static final class RagChatMemory implements ChatMemory {
+
+        private final ChatMemory delegate;
+        private final UserMessage original;
+        private UserMessage augmented;
+
+        private RagChatMemory(ChatMemory delegate, UserMessage original) {
+            this.delegate = delegate;
+            this.original = original;
+        }
+
+        @Override
+        public Object id() {
+            return delegate.id();
+        }
+
+        @Override
+        public void add(ChatMessage message) {
+            if (augmented == null && message instanceof UserMessage userMessage) {
+                // 本轮的第一条用户消息就是增强后的问题
+                augmented = userMessage;
+                delegate.add(original);
+                return;
+            }
+            delegate.add(message);
+        }
+
+        @Override
+        public List<ChatMessage> messages() {
+            List<ChatMessage> messages = new ArrayList<>(delegate.messages());
+            if (augmented != null) {
+                int index = messages.lastIndexOf(original);
+                if (index >= 0) {
+                    messages.set(index, augmented);
+                }
+            }
+            return messages;
+        }
+
+        @Override
+        public void clear() {
+            delegate.clear();
+        }
+    }
+}
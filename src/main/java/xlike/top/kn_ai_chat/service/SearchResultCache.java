@@ -0,0 +1,179 @@
+package xlike.top.kn_ai_chat.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 联网搜索结果缓存
+ * <p>
+ * 管理员的 AI 助手在一次对话中经常对同一个问题多次调用搜索工具，每次都会消耗搜索 API 的配额。
+ * 这里按 (搜索引擎, 规范化后的查询词) 缓存搜索结果：
+ * <ul>
+ *     <li>结果在 ttl-minutes 内有效，缓存条数有上限（按最近使用淘汰）；</li>
+ *     <li>相同查询的并发请求只调用一次 API，其余请求等待并共享结果；</li>
+ *     <li>调用失败的结果不缓存。</li>
+ * </ul>
+ * @author xlike
+ */
+@Service
+public class SearchResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchResultCache.class);
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 访问顺序的 LinkedHashMap 即 LRU，所有访问都在 synchronized 中进行
+     */
+    private final LinkedHashMap<CacheKey, CacheEntry> entries = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    /**
+     * 正在进行中的搜索，用于合并相同查询的并发请求
+     */
+    private final ConcurrentMap<CacheKey, CompletableFuture<String>> inFlightSearches = new ConcurrentHashMap<>();
+
+    @Value("${tools.search-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${tools.search-cache.max-entries:500}")
+    private int maxEntries;
+
+    @Value("${tools.search-cache.ttl-minutes:30}")
+    private long ttlMinutes;
+
+    private record CacheKey(String provider, String query) {}
+
+    private record CacheEntry(String result, long createdAt) {}
+
+    /**
+     * 执行实际搜索的逻辑
+     */
+    @FunctionalInterface
+    public interface SearchLoader {
+        String search() throws Exception;
+    }
+
+    public SearchResultCache(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        meterRegistry.gauge("search.cache.size", entries, map -> {
+            synchronized (map) {
+                return map.size();
+            }
+        });
+    }
+
+    /**
+     * 获取搜索结果，缓存未命中时调用 loader
+     * @param provider 搜索引擎，例如 google、brave
+     * @param query 查询词
+     * @param loader 实际调用搜索 API 的逻辑，抛出异常时不缓存
+     */
+    public String get(String provider, String query, SearchLoader loader) throws Exception {
+        if (!enabled) {
+            return loader.search();
+        }
+        CacheKey key = new CacheKey(provider, normalize(query));
+        String cached = find(key);
+        if (cached != null) {
+            record(provider, "hit");
+            return cached;
+        }
+
+        CompletableFuture<String> search = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlightSearches.putIfAbsent(key, search);
+        if (existing != null) {
+            record(provider, "shared");
+            logger.info("相同的 {} 搜索 '{}' 正在进行，等待其结果。", provider, query);
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+
+        try {
+            // 在查询缓存和登记搜索之间，另一个搜索可能刚好完成
+            cached = find(key);
+            if (cached != null) {
+                record(provider, "hit");
+                search.complete(cached);
+                return cached;
+            }
+            record(provider, "miss");
+            String result = loader.search();
+            synchronized (entries) {
+                entries.put(key, new CacheEntry(result, System.currentTimeMillis()));
+            }
+            search.complete(result);
+            return result;
+        } catch (Exception e) {
+            search.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightSearches.remove(key, search);
+        }
+    }
+
+    /**
+     * 定时清理过期的搜索结果
+     */
+    @Scheduled(fixedDelayString = "${tools.search-cache.sweep-interval-ms:300000}")
+    public void evictExpired() {
+        long deadline = System.currentTimeMillis() - ttlMinutes * 60_000;
+        synchronized (entries) {
+            entries.values().removeIf(entry -> entry.createdAt() < deadline);
+        }
+    }
+
+    private String find(CacheKey key) {
+        long deadline = System.currentTimeMillis() - ttlMinutes * 60_000;
+        synchronized (entries) {
+            CacheEntry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.createdAt() < deadline) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.result();
+        }
+    }
+
+    /**
+     * 规范化查询词：全角转半角、统一小写、合并空白，使仅有格式差异的查询命中同一条缓存
+     */
+    private static String normalize(String query) {
+        if (query == null) {
+            return "";
+        }
+        String normalized = Normalizer.normalize(query, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        return normalized.trim().replaceAll("\\s+", " ");
+    }
+
+    private void record(String provider, String result) {
+        meterRegistry.counter("search.cache", "provider", provider, "result", result).increment();
+        if (!"miss".equals(result)) {
+            // 命中缓存或共享结果的请求都省下了一次 API 调用
+            meterRegistry.counter("search.api.saved", "provider", provider).increment();
+        }
+    }
+}
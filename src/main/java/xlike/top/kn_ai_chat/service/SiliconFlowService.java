@@ -2,22 +2,31 @@ package xlike.top.kn_ai_chat.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.FileSystemResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.http.StreamingHttpOutputMessage;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.client.RestTemplate;
 import xlike.top.kn_ai_chat.domain.AiConfig;
+import xlike.top.kn_ai_chat.enums.AudioFormat;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+import xlike.top.kn_ai_chat.media.MediaTempArena;
+import xlike.top.kn_ai_chat.utils.ImageCompressionUtil;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -28,13 +37,42 @@ public class SiliconFlowService {
 
     private static final Logger logger = LoggerFactory.getLogger(SiliconFlowService.class);
 
+    private static final String IMAGE_DATA_PLACEHOLDER = "__KN_AI_CHAT_IMAGE_DATA__";
+
     private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final UserConfigService userConfigService;
 
-    public SiliconFlowService(RestTemplate restTemplate, UserConfigService userConfigService) {
+    private final MediaTempArena mediaTempArena;
+    private final ImageCompressionUtil imageCompressionUtil;
+    private final MeterRegistry meterRegistry;
+    private final Timer vlmPreprocessTimer;
+    private final Timer vlmRequestTimer;
+    private final DistributionSummary vlmPayloadSummary;
+
+    /**
+     * 送给视觉模型的图片长边上限，超过时先在本地缩小
+     */
+    @Value("${vlm.image.max-edge:1280}")
+    private int vlmMaxEdge;
+
+    public SiliconFlowService(RestTemplate restTemplate, UserConfigService userConfigService, MediaTempArena mediaTempArena,
+                              ImageCompressionUtil imageCompressionUtil, MeterRegistry meterRegistry) {
         this.restTemplate = restTemplate;
         this.userConfigService = userConfigService;
+        this.mediaTempArena = mediaTempArena;
+        this.imageCompressionUtil = imageCompressionUtil;
+        this.meterRegistry = meterRegistry;
+        this.vlmPreprocessTimer = Timer.builder("vlm.image.preprocess")
+                .description("识别前缩小图片的耗时")
+                .register(meterRegistry);
+        this.vlmRequestTimer = Timer.builder("vlm.request")
+                .description("VLM 请求（上传与识别）的耗时")
+                .register(meterRegistry);
+        this.vlmPayloadSummary = DistributionSummary.builder("vlm.request.payload")
+                .description("VLM 请求体大小")
+                .baseUnit("bytes")
+                .register(meterRegistry);
     }
 
     public Optional<String> generateImageAndGetUrl(String prompt, String externalUserId) {
@@ -64,7 +102,12 @@ public class SiliconFlowService {
         }
     }
 
-    public Optional<File> generateSpeech(String textInput, String externalUserId) {
+    /**
+     * 语音合成
+     * @param format 输出格式，由 {@link AudioCodecNegotiator#ttsOutputFormat()} 决定
+     * @param sampleRate 输出采样率，为 null 时使用接口默认值
+     */
+    public Optional<MediaBuffer> generateSpeech(String textInput, String externalUserId, AudioFormat format, Integer sampleRate) {
         AiConfig aiConfig = userConfigService.getAiConfig(externalUserId);
         String url = aiConfig.getSfBaseUrl() + "/audio/speech";
         HttpHeaders headers = new HttpHeaders();
@@ -74,33 +117,37 @@ public class SiliconFlowService {
         requestBody.put("model", aiConfig.getSfTtsModel());
         requestBody.put("input", textInput);
         requestBody.put("voice", aiConfig.getSfVoice());
-        requestBody.put("response_format", "mp3");
+        requestBody.put("response_format", format.getExtension());
+        if (sampleRate != null) {
+            requestBody.put("sample_rate", sampleRate);
+        }
         HttpEntity<Map<String, Object>> requestEntity = new HttpEntity<>(requestBody, headers);
         try {
-            byte[] audioBytes = restTemplate.postForObject(url, requestEntity, byte[].class);
-            if (audioBytes == null || audioBytes.length == 0) {
+            // 响应体直接流式读入 MediaBuffer，不再先读成 byte[] 再写临时文件
+            MediaBuffer audio = restTemplate.execute(url, HttpMethod.POST,
+                    restTemplate.httpEntityCallback(requestEntity, byte[].class),
+                    response -> mediaTempArena.read(response.getBody(), "tts." + format.getExtension()));
+            if (audio == null || audio.size() == 0) {
+                if (audio != null) {
+                    audio.close();
+                }
                 return Optional.empty();
             }
-            File tempFile = File.createTempFile("tts-", ".mp3");
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                fos.write(audioBytes);
-            }
-            tempFile.deleteOnExit();
-            return Optional.of(tempFile);
+            return Optional.of(audio);
         } catch (Exception e) {
-            logger.error("调用 SiliconFlow TTS API 或写入文件时发生异常", e);
+            logger.error("调用 SiliconFlow TTS API 时发生异常", e);
             return Optional.empty();
         }
     }
 
-    public Optional<String> transcribeAudio(File audioFile, String externalUserId) {
+    public Optional<String> transcribeAudio(MediaBuffer audio, String externalUserId) {
         AiConfig aiConfig = userConfigService.getAiConfig(externalUserId);
         String url = aiConfig.getSfBaseUrl() + "/audio/transcriptions";
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.MULTIPART_FORM_DATA);
         headers.setBearerAuth(aiConfig.getAiApiKey());
         MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
-        body.add("file", new FileSystemResource(audioFile));
+        body.add("file", audio.asResource());
         body.add("model", aiConfig.getSfSttModel());
         HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(body, headers);
         try {
@@ -117,7 +164,13 @@ public class SiliconFlowService {
         }
     }
 
-    public Optional<String> analyzeImage(File imageFile, String prompt, String externalUserId) {
+    /**
+     * 使用视觉模型识别图片
+     * <p>
+     * 图片先在本地缩小到视觉模型的有效分辨率，再以真实的 MIME 类型编码。
+     * base64 数据边编码边写入请求体，不再在内存中拼出完整的 base64 字符串和 JSON。
+     */
+    public Optional<String> analyzeImage(MediaBuffer image, String prompt, String externalUserId) {
         AiConfig aiConfig = userConfigService.getAiConfig(externalUserId);
         String url = aiConfig.getSfBaseUrl() + "/chat/completions";
 
@@ -125,16 +178,19 @@ public class SiliconFlowService {
         headers.setContentType(MediaType.APPLICATION_JSON);
         headers.setBearerAuth(aiConfig.getAiApiKey());
 
-        try {
-            String base64Image = encodeFileToBase64(imageFile);
+        Timer.Sample preprocessSample = Timer.start(meterRegistry);
+        Optional<MediaBuffer> scaledOpt = imageCompressionUtil.downscaleIfLarger(image, vlmMaxEdge);
+        preprocessSample.stop(vlmPreprocessTimer);
+        MediaBuffer visionInput = scaledOpt.orElse(image);
 
+        try {
             Map<String, Object> textPart = new HashMap<>();
             textPart.put("type", "text");
             textPart.put("text", prompt);
 
             Map<String, Object> imagePart = new HashMap<>();
             imagePart.put("type", "image_url");
-            imagePart.put("image_url", Map.of("url", base64Image));
+            imagePart.put("image_url", Map.of("url", IMAGE_DATA_PLACEHOLDER));
             
             List<Map<String, Object>> contentList = Arrays.asList(textPart, imagePart);
             
@@ -147,9 +203,38 @@ public class SiliconFlowService {
             requestBody.put("messages", Collections.singletonList(message));
             requestBody.put("max_tokens", 512);
 
-            HttpEntity<Map<String, Object>> requestEntity = new HttpEntity<>(requestBody, headers);
+            // 先用占位符序列化出 JSON，再把图片的 data URL 流式写在占位符的位置
+            String json = objectMapper.writeValueAsString(requestBody);
+            int placeholderAt = json.indexOf(IMAGE_DATA_PLACEHOLDER);
+            byte[] head = (json.substring(0, placeholderAt)
+                    + "data:" + ImageCompressionUtil.detectMimeType(visionInput) + ";base64,").getBytes(StandardCharsets.UTF_8);
+            byte[] tail = json.substring(placeholderAt + IMAGE_DATA_PLACEHOLDER.length()).getBytes(StandardCharsets.UTF_8);
+            long imageSize = visionInput.size();
+            long contentLength = head.length + 4 * ((imageSize + 2) / 3) + tail.length;
+            vlmPayloadSummary.record(contentLength);
+            logger.info("VLM 请求图片 {}KB（原图 {}KB），请求体 {}KB。", imageSize / 1024, image.size() / 1024, contentLength / 1024);
 
-            String response = restTemplate.postForObject(url, requestEntity, String.class);
+            Timer.Sample requestSample = Timer.start(meterRegistry);
+            StreamingHttpOutputMessage.Body requestBodyWriter = body -> {
+                body.write(head);
+                // base64 字符不需要 JSON 转义，可以直接写入字符串值中
+                try (InputStream in = visionInput.openStream();
+                     OutputStream base64 = Base64.getEncoder().wrap(StreamUtils.nonClosing(body))) {
+                    in.transferTo(base64);
+                }
+                body.write(tail);
+            };
+            String response = restTemplate.execute(url, HttpMethod.POST, request -> {
+                request.getHeaders().putAll(headers);
+                request.getHeaders().setContentLength(contentLength);
+                if (request instanceof StreamingHttpOutputMessage streaming) {
+                    // 由 HTTP 客户端在发送时回调，边编码边写入连接；getBody() 会先把整个请求体缓存在内存中
+                    streaming.setBody(requestBodyWriter);
+                } else {
+                    requestBodyWriter.writeTo(request.getBody());
+                }
+            }, clientResponse -> StreamUtils.copyToString(clientResponse.getBody(), StandardCharsets.UTF_8));
+            requestSample.stop(vlmRequestTimer);
             logger.debug("SiliconFlow VLM API响应: {}", response);
 
             JsonNode root = objectMapper.readTree(response);
@@ -164,12 +249,10 @@ public class SiliconFlowService {
         } catch (Exception e) {
             logger.error("调用 SiliconFlow VLM API 时发生异常", e);
             return Optional.empty();
+        } finally {
+            if (visionInput != image) {
+                visionInput.close();
+            }
         }
     }
-
-    private String encodeFileToBase64(File file) throws IOException {
-        byte[] fileContent = Files.readAllBytes(file.toPath());
-        String encodedString = Base64.getEncoder().encodeToString(fileContent);
-        return "data:image/jpeg;base64," + encodedString;
-    }
-}
\ No newline at end of file
+}
@@ -2,10 +2,10 @@ package xlike.top.kn_ai_chat.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import xlike.top.kn_ai_chat.domain.MessageLog;
-import xlike.top.kn_ai_chat.repository.MessageLogRepository;
+import xlike.top.kn_ai_chat.repository.WeChatUserRepository;
+import xlike.top.kn_ai_chat.store.MessageLogStore;
 
 import java.time.format.DateTimeFormatter;
 import java.util.List;
@@ -19,18 +19,33 @@ import java.util.stream.Collectors;
 public class SystemService {
 
     private static final Logger logger = LoggerFactory.getLogger(SystemService.class);
-    private final MessageLogRepository messageLogRepository;
+    private final MessageLogStore messageLogStore;
+    private final ConversationWindowCache conversationWindowCache;
+    private final MessageWriteBuffer messageWriteBuffer;
+    private final WeChatUserRepository userRepository;
+    private final PersistentChatMemoryStore chatMemoryStore;
     private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
 
-    public SystemService(MessageLogRepository messageLogRepository) {
-        this.messageLogRepository = messageLogRepository;
+    public SystemService(MessageLogStore messageLogStore, ConversationWindowCache conversationWindowCache,
+                         MessageWriteBuffer messageWriteBuffer, WeChatUserRepository userRepository,
+                         PersistentChatMemoryStore chatMemoryStore) {
+        this.messageLogStore = messageLogStore;
+        this.conversationWindowCache = conversationWindowCache;
+        this.messageWriteBuffer = messageWriteBuffer;
+        this.userRepository = userRepository;
+        this.chatMemoryStore = chatMemoryStore;
     }
 
     public String clearHistory(String userId) {
         try {
-            messageLogRepository.deleteByFromUserOrToUser(userId, userId);
-            logger.info("已成功清空用户 [{}] 的历史对话记录。", userId);
+            messageWriteBuffer.flush();
+            long deleted = messageLogStore.deleteConversation(userId);
+            userRepository.resetQuestionCount(userId);
+            conversationWindowCache.evict(userId);
+            // 大模型的对话记忆（RAG 问答、管理员工具会话）也一并清除，否则已清空的对话仍会被带入后续提问
+            chatMemoryStore.deleteUserMemories(userId);
+            logger.info("已成功清空用户 [{}] 的历史对话记录，共 {} 条。", userId, deleted);
             return "✅ 已清空与您的历史对话记录。";
         } catch (Exception e) {
             logger.error("清空用户 [{}] 的历史对话记录时发生错误。", userId, e);
@@ -40,7 +55,8 @@ public class SystemService {
 
     public String getChatStats(String userId) {
         try {
-            long count = messageLogRepository.countByFromUserOrToUser(userId, userId);
+            messageWriteBuffer.flush();
+            long count = messageLogStore.count(userId);
             logger.info("查询到用户 [{}] 的历史对话共 {} 条。", userId, count);
             return String.format("📈 我与您的对话共计 %d 条。", count);
         } catch (Exception e) {
@@ -55,7 +71,7 @@ public class SystemService {
      * @return 该用户发送的消息总数
      */
     public long countQuestionsFromUser(String userId) {
-        return messageLogRepository.countByFromUser(userId);
+        return messageLogStore.countFromUser(userId);
     }
 
     /**
@@ -66,7 +82,8 @@ public class SystemService {
     public String getUserQuestions(String userId) {
         try {
             // 查询最近的10条提问记录
-            List<MessageLog> userMessages = messageLogRepository.findByFromUserOrderByTimestampDesc(userId, PageRequest.of(0, 10));
+            messageWriteBuffer.flush();
+            List<MessageLog> userMessages = messageLogStore.findLatestFromUser(userId, 10);
             if (userMessages.isEmpty()) {
                 return "您还没有问过任何问题。";
             }
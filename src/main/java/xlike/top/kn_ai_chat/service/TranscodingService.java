@@ -0,0 +1,256 @@
+package xlike.top.kn_ai_chat.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ws.schild.jave.DefaultFFMPEGLocator;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+import xlike.top.kn_ai_chat.media.MediaTempArena;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 音频转码服务
+ * <p>
+ * 所有 ffmpeg 转码都提交到一个固定大小（默认等于 CPU 核数）的工作线程池中执行，
+ * 队列有上限，队列已满或超时的任务直接失败，由调用方降级为文字回复，而不是无限制地启动 ffmpeg 进程。
+ * 输入通过 stdin 写入 ffmpeg，输出从 stdout 读入 MediaBuffer，转码过程不落盘。
+ * @author xlike
+ */
+@Service
+public class TranscodingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TranscodingService.class);
+
+    /**
+     * 可以通过 -f 显式指定的输入格式，其余格式交给 ffmpeg 自动探测
+     */
+    private static final Set<String> KNOWN_INPUT_FORMATS = Set.of("amr", "mp3", "wav", "ogg", "flac");
+
+    private static final int STDERR_LIMIT = 2048;
+
+    private final MediaTempArena mediaTempArena;
+    private final ThreadPoolExecutor workers;
+    private final String ffmpegPath;
+    private final long timeoutSeconds;
+
+    private final Timer queueWaitTimer;
+    private final Timer encodeTimer;
+    private final Counter rejectedCounter;
+    private final Counter timeoutCounter;
+
+    public TranscodingService(MediaTempArena mediaTempArena,
+                              MeterRegistry meterRegistry,
+                              @Value("${transcode.workers:0}") int workerCount,
+                              @Value("${transcode.queue-capacity:32}") int queueCapacity,
+                              @Value("${transcode.timeout-seconds:30}") long timeoutSeconds,
+                              @Value("${transcode.ffmpeg-path:}") String ffmpegPath) {
+        this.mediaTempArena = mediaTempArena;
+        this.timeoutSeconds = timeoutSeconds;
+        this.ffmpegPath = ffmpegPath.isBlank() ? locateBundledFfmpeg() : ffmpegPath;
+
+        int threads = workerCount > 0 ? workerCount : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "transcoder-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        this.queueWaitTimer = Timer.builder("media.transcode.queue_wait")
+                .description("转码任务在队列中等待的时间")
+                .register(meterRegistry);
+        this.encodeTimer = Timer.builder("media.transcode.encode")
+                .description("ffmpeg 转码耗时")
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("media.transcode.rejected")
+                .description("因队列已满被拒绝的转码任务数")
+                .register(meterRegistry);
+        this.timeoutCounter = Counter.builder("media.transcode.timeout")
+                .description("超时被终止的转码任务数")
+                .register(meterRegistry);
+        meterRegistry.gauge("media.transcode.queued", workers.getQueue(), java.util.Collection::size);
+        meterRegistry.gauge("media.transcode.active", workers, ThreadPoolExecutor::getActiveCount);
+
+        logger.info("转码服务已启动，工作线程 {} 个，队列容量 {}，超时 {} 秒，ffmpeg: {}", threads, queueCapacity, timeoutSeconds, this.ffmpegPath);
+    }
+
+    /**
+     * 转码音频
+     * @param source 输入音频
+     * @param outputArgs ffmpeg 的输出参数（编码器、采样率、-f 输出格式等），不含输出目标
+     * @param outputFilename 输出的文件名，用于确定扩展名
+     * @return 转码结果，使用完毕后需要关闭；队列已满、超时或转码失败时返回 Optional.empty()
+     */
+    public Optional<MediaBuffer> transcode(MediaBuffer source, List<String> outputArgs, String outputFilename) {
+        TranscodeJob job = new TranscodeJob(source, outputArgs, outputFilename);
+        long enqueuedAt = System.nanoTime();
+        Future<MediaBuffer> future;
+        try {
+            future = workers.submit(() -> {
+                queueWaitTimer.record(System.nanoTime() - enqueuedAt, TimeUnit.NANOSECONDS);
+                return encodeTimer.recordCallable(job::run);
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            logger.warn("转码队列已满（{} 个任务排队），拒绝转码 {}", workers.getQueue().size(), source.filename());
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.ofNullable(future.get(timeoutSeconds, TimeUnit.SECONDS));
+        } catch (TimeoutException e) {
+            timeoutCounter.increment();
+            logger.error("转码 {} 超过 {} 秒未完成，已终止。", source.filename(), timeoutSeconds);
+            future.cancel(true);
+            job.kill();
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            job.kill();
+            return Optional.empty();
+        } catch (ExecutionException e) {
+            logger.error("转码 {} 时发生异常", source.filename(), e.getCause());
+            return Optional.empty();
+        }
+    }
+
+    private static String locateBundledFfmpeg() {
+        try {
+            return new BundledFfmpegLocator().path();
+        } catch (Exception e) {
+            logger.warn("未找到 JAVE 自带的 ffmpeg（缺少当前平台的 jave-native 依赖），改为使用 PATH 中的 ffmpeg。");
+            return "ffmpeg";
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * 单个转码任务，持有 ffmpeg 进程以便超时时从调用线程终止
+     */
+    private class TranscodeJob {
+
+        private final MediaBuffer source;
+        private final List<String> outputArgs;
+        private final String outputFilename;
+        private volatile Process process;
+        private volatile boolean killed;
+
+        TranscodeJob(MediaBuffer source, List<String> outputArgs, String outputFilename) {
+            this.source = source;
+            this.outputArgs = outputArgs;
+            this.outputFilename = outputFilename;
+        }
+
+        MediaBuffer run() throws IOException, InterruptedException {
+            List<String> command = new ArrayList<>(List.of(ffmpegPath, "-hide_banner", "-loglevel", "error"));
+            String inputFormat = source.extension().toLowerCase();
+            if (KNOWN_INPUT_FORMATS.contains(inputFormat)) {
+                command.add("-f");
+                command.add(inputFormat);
+            }
+            command.add("-i");
+            command.add("pipe:0");
+            command.addAll(outputArgs);
+            command.add("pipe:1");
+
+            Process started = new ProcessBuilder(command).start();
+            process = started;
+            if (killed) {
+                started.destroyForcibly();
+            }
+            try {
+                // stdin 和 stderr 由虚拟线程处理，当前线程读取 stdout，避免管道缓冲区写满导致互相等待
+                Thread feeder = Thread.ofVirtual().start(() -> feed(started));
+                StringBuilder stderr = new StringBuilder();
+                Thread errorReader = Thread.ofVirtual().start(() -> drainStderr(started, stderr));
+
+                MediaBuffer output = mediaTempArena.read(started.getInputStream(), outputFilename);
+                int exitCode = started.waitFor();
+                feeder.join();
+                errorReader.join();
+
+                if (exitCode != 0 || output.size() == 0) {
+                    output.close();
+                    if (!killed) {
+                        logger.error("ffmpeg 转码 {} 失败，退出码 {}: {}", source.filename(), exitCode, stderr.toString().trim());
+                    }
+                    return null;
+                }
+                return output;
+            } finally {
+                if (started.isAlive()) {
+                    started.destroyForcibly();
+                }
+            }
+        }
+
+        void kill() {
+            killed = true;
+            Process current = process;
+            if (current != null) {
+                current.destroyForcibly();
+            }
+        }
+
+        private void feed(Process target) {
+            try (OutputStream stdin = target.getOutputStream(); InputStream in = source.openStream()) {
+                in.transferTo(stdin);
+            } catch (IOException | RuntimeException e) {
+                // ffmpeg 提前退出时管道会被关闭，错误信息以 stderr 和退出码为准
+                logger.debug("向 ffmpeg 写入输入数据中断: {}", e.getMessage());
+            }
+        }
+
+        private void drainStderr(Process target, StringBuilder stderr) {
+            try (InputStream err = target.getErrorStream()) {
+                byte[] chunk = new byte[512];
+                int n;
+                while ((n = err.read(chunk)) != -1) {
+                    if (stderr.length() < STDERR_LIMIT) {
+                        stderr.append(new String(chunk, 0, n, StandardCharsets.UTF_8));
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("读取 ffmpeg 错误输出中断: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 复用 JAVE 自带的 ffmpeg 可执行文件（jave-native-* 依赖），首次使用时由 JAVE 解压到临时目录
+     */
+    private static class BundledFfmpegLocator extends DefaultFFMPEGLocator {
+        String path() {
+            return getFFMPEGExecutablePath();
+        }
+    }
+}
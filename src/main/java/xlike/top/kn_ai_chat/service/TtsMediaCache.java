@@ -0,0 +1,180 @@
+package xlike.top.kn_ai_chat.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import xlike.top.kn_ai_chat.domain.AiConfig;
+import xlike.top.kn_ai_chat.enums.MediaType;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+import xlike.top.kn_ai_chat.media.MediaTempArena;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Optional;
+
+/**
+ * 语音回复缓存
+ * <p>
+ * 以 (TTS 模型, 音色, 规范化后的文本) 的 SHA-256 作为键，在 Redis 中保存两份数据：
+ * <ul>
+ *     <li>转码好的 AMR 音频，长期保存；</li>
+ *     <li>上传后得到的微信临时素材 media_id，从实际上传时间起算，过期时间略短于微信的 3 天有效期。</li>
+ * </ul>
+ * 命中 media_id 时 TTS、转码、上传全部跳过；media_id 已过期但音频还在时，只需重新上传一次。
+ * @author xlike
+ */
+@Service
+public class TtsMediaCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TtsMediaCache.class);
+
+    private static final String AUDIO_KEY_PREFIX = "kn_ai_chat:tts:audio:";
+    private static final String MEDIA_KEY_PREFIX = "kn_ai_chat:tts:media:";
+
+    private final RedisTemplate<String, byte[]> binaryRedisTemplate;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final UserConfigService userConfigService;
+    private final AudioCodecNegotiator audioCodecNegotiator;
+    private final MediaService mediaService;
+    private final MediaTempArena mediaTempArena;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${tts.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${tts.cache.audio-ttl-days:30}")
+    private long audioTtlDays;
+
+    @Value("${tts.cache.media-ttl-hours:70}")
+    private long mediaTtlHours;
+
+    @Value("${tts.cache.max-audio-bytes:524288}")
+    private long maxAudioBytes;
+
+    public TtsMediaCache(RedisTemplate<String, byte[]> binaryRedisTemplate,
+                         StringRedisTemplate stringRedisTemplate,
+                         UserConfigService userConfigService,
+                         AudioCodecNegotiator audioCodecNegotiator,
+                         MediaService mediaService,
+                         MediaTempArena mediaTempArena,
+                         MeterRegistry meterRegistry) {
+        this.binaryRedisTemplate = binaryRedisTemplate;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.userConfigService = userConfigService;
+        this.audioCodecNegotiator = audioCodecNegotiator;
+        this.mediaService = mediaService;
+        this.mediaTempArena = mediaTempArena;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 查找可以直接发送的语音 media_id
+     * @param externalUserId 用户ID，用于确定其 TTS 模型和音色
+     * @param text 回复文本
+     * @return 仍然有效的 media_id；音频命中但 media_id 过期时会重新上传
+     */
+    public Optional<String> findMediaId(String externalUserId, String text) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        String key = cacheKey(externalUserId, text);
+        try {
+            String mediaId = stringRedisTemplate.opsForValue().get(MEDIA_KEY_PREFIX + key);
+            if (mediaId != null) {
+                record("media_hit");
+                logger.info("语音回复命中缓存的 media_id，跳过合成与上传。");
+                return Optional.of(mediaId);
+            }
+
+            byte[] audio = binaryRedisTemplate.opsForValue().get(AUDIO_KEY_PREFIX + key);
+            if (audio == null) {
+                record("miss");
+                return Optional.empty();
+            }
+
+            record("audio_hit");
+            Optional<MediaService.UploadedMedia> uploaded;
+            try (MediaBuffer amr = mediaTempArena.wrap(audio, "voice.amr")) {
+                uploaded = mediaService.upload(amr, MediaType.VOICE);
+            }
+            uploaded.ifPresent(media -> {
+                putMediaId(key, media);
+                logger.info("语音回复命中缓存的音频，media_id 已过期，重新上传后得到: {}", media.mediaId());
+            });
+            return uploaded.map(MediaService.UploadedMedia::mediaId);
+        } catch (Exception e) {
+            logger.error("读取语音回复缓存失败", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 保存语音回复的 AMR 音频和上传得到的 media_id
+     */
+    public void put(String externalUserId, String text, MediaBuffer amr, MediaService.UploadedMedia uploaded) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (amr.size() > maxAudioBytes) {
+                logger.debug("语音回复音频 {}KB 超过缓存上限，不缓存。", amr.size() / 1024);
+                return;
+            }
+            String key = cacheKey(externalUserId, text);
+            binaryRedisTemplate.opsForValue().set(AUDIO_KEY_PREFIX + key, amr.toByteArray(), Duration.ofDays(audioTtlDays));
+            putMediaId(key, uploaded);
+        } catch (IOException | RuntimeException e) {
+            logger.error("写入语音回复缓存失败", e);
+        }
+    }
+
+    /**
+     * 保存 media_id，有效期从实际上传时间起算；素材上传缓存可能返回几天前上传的 media_id，剩余时间不足时不再缓存
+     */
+    private void putMediaId(String key, MediaService.UploadedMedia uploaded) {
+        Duration remaining = Duration.ofMillis(uploaded.uploadedAt() + Duration.ofHours(mediaTtlHours).toMillis() - System.currentTimeMillis());
+        if (remaining.isNegative() || remaining.isZero()) {
+            return;
+        }
+        stringRedisTemplate.opsForValue().set(MEDIA_KEY_PREFIX + key, uploaded.mediaId(), remaining);
+    }
+
+    /**
+     * 缓存键：TTS 模型、音色、输出参数与规范化文本的 SHA-256
+     */
+    private String cacheKey(String externalUserId, String text) {
+        AiConfig aiConfig = userConfigService.getAiConfig(externalUserId);
+        String material = String.join("\n",
+                aiConfig.getSfTtsModel(),
+                aiConfig.getSfVoice(),
+                audioCodecNegotiator.ttsOutputFormat().name(),
+                String.valueOf(audioCodecNegotiator.ttsSampleRate()),
+                normalize(text));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(material.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 规范化文本：统一全角/半角等兼容字符，合并连续空白
+     */
+    private static String normalize(String text) {
+        return Normalizer.normalize(text, Normalizer.Form.NFKC).strip().replaceAll("\\s+", " ");
+    }
+
+    private void record(String result) {
+        meterRegistry.counter("tts.cache", "result", result).increment();
+    }
+}
@@ -0,0 +1,195 @@
+package xlike.top.kn_ai_chat.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.Data;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import xlike.top.kn_ai_chat.store.MessageLogStore;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 用户数据清除服务
+ * <p>
+ * 删除用户时，所有按用户划分的表都使用 SQL 分块批量删除（每块一个独立的短事务），
+ * 不再把实体逐个加载到持久化上下文中。删除以后台任务的方式执行，管理后台通过任务ID轮询进度。
+ * @author xlike
+ */
+@Service
+public class UserPurgeService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserPurgeService.class);
+
+    /**
+     * 按用户分块删除的表及其用户列，表名均为常量
+     */
+    private static final List<String[]> CHUNKED_TABLES = List.of(
+            new String[]{"chat_message", "external_user_id"},
+            new String[]{"knowledge_base", "external_user_id"},
+            new String[]{"keyword_config", "external_user_id"},
+            new String[]{"custom_reply", "external_user_id"},
+            new String[]{"user_mcp_permission", "external_user_id"},
+            new String[]{"manual_transfer_request", "external_user_id"}
+    );
+
+    /**
+     * 以用户ID为主键的表，每个用户只有一行
+     */
+    private static final List<String> SINGLE_ROW_TABLES = List.of("ai_config", "mcp_ai_config", "we_chat_user");
+
+    // 消息记录 + 分块表 + 单行表
+    private static final int TOTAL_STEPS = 1 + CHUNKED_TABLES.size() + SINGLE_ROW_TABLES.size();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final MessageLogStore messageLogStore;
+    private final MessageWriteBuffer messageWriteBuffer;
+    private final WeChatUserRegistry userRegistry;
+    private final ConversationWindowCache conversationWindowCache;
+    private final McpService mcpService;
+    private final PersistentChatMemoryStore chatMemoryStore;
+
+    private final Map<String, PurgeJob> jobs = new ConcurrentHashMap<>();
+    private final ExecutorService purgeExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "user-purge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Value("${purge.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${purge.job-retention-minutes:60}")
+    private long jobRetentionMinutes;
+
+    public UserPurgeService(JdbcTemplate jdbcTemplate,
+                            MessageLogStore messageLogStore,
+                            MessageWriteBuffer messageWriteBuffer,
+                            WeChatUserRegistry userRegistry,
+                            ConversationWindowCache conversationWindowCache,
+                            McpService mcpService,
+                            PersistentChatMemoryStore chatMemoryStore) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.messageLogStore = messageLogStore;
+        this.messageWriteBuffer = messageWriteBuffer;
+        this.userRegistry = userRegistry;
+        this.conversationWindowCache = conversationWindowCache;
+        this.mcpService = mcpService;
+        this.chatMemoryStore = chatMemoryStore;
+    }
+
+    /**
+     * 提交一个删除用户的后台任务
+     * @param externalUserId 用户ID
+     * @return 任务信息，可通过 jobId 查询进度
+     */
+    public PurgeJob submitUserPurge(String externalUserId) {
+        PurgeJob job = new PurgeJob(UUID.randomUUID().toString(), externalUserId);
+        jobs.put(job.getJobId(), job);
+        purgeExecutor.execute(() -> runPurge(job));
+        logger.warn("已提交删除用户 [{}] 的后台任务: {}", externalUserId, job.getJobId());
+        return job;
+    }
+
+    public Optional<PurgeJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+    /**
+     * 清理已结束且超过保留时间的任务记录
+     */
+    @Scheduled(fixedDelayString = "${purge.job-sweep-interval-ms:600000}")
+    public void sweepFinishedJobs() {
+        LocalDateTime deadline = LocalDateTime.now().minusMinutes(jobRetentionMinutes);
+        jobs.values().removeIf(job -> job.getFinishedAt() != null && job.getFinishedAt().isBefore(deadline));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        purgeExecutor.shutdownNow();
+    }
+
+    private void runPurge(PurgeJob job) {
+        String userId = job.getExternalUserId();
+        try {
+            job.setStep("message_log");
+            messageWriteBuffer.flush();
+            job.addDeletedRows(messageLogStore.deleteConversation(userId));
+            conversationWindowCache.evict(userId);
+            job.completeStep();
+
+            for (String[] table : CHUNKED_TABLES) {
+                job.setStep(table[0]);
+                deleteInChunks(job, table[0], table[1], userId);
+                job.completeStep();
+            }
+            for (String table : SINGLE_ROW_TABLES) {
+                job.setStep(table);
+                job.addDeletedRows(jdbcTemplate.update("DELETE FROM " + table + " WHERE external_user_id = ?", userId));
+                job.completeStep();
+            }
+
+            userRegistry.remove(userId);
+            mcpService.removeUser(userId);
+            chatMemoryStore.deleteUserMemories(userId);
+            job.finish(PurgeStatus.COMPLETED, null);
+            logger.warn("已彻底删除用户 [{}] 及其所有关联数据，共删除 {} 行。", userId, job.getDeletedRows());
+        } catch (Exception e) {
+            logger.error("删除用户 [{}] 的数据时失败，停止于 {}", userId, job.getStep(), e);
+            job.finish(PurgeStatus.FAILED, e.getMessage());
+        }
+    }
+
+    private void deleteInChunks(PurgeJob job, String table, String column, String userId) {
+        String sql = "DELETE FROM " + table + " WHERE id IN (SELECT id FROM " + table + " WHERE " + column + " = ? LIMIT ?)";
+        int deleted;
+        do {
+            // 每块在自己的自动提交事务中执行，锁持有时间和内存占用都有上限
+            deleted = jdbcTemplate.update(sql, userId, chunkSize);
+            job.addDeletedRows(deleted);
+        } while (deleted >= chunkSize);
+    }
+
+    public enum PurgeStatus { RUNNING, COMPLETED, FAILED }
+
+    /**
+     * 删除任务的进度信息
+     */
+    @Data
+    public static class PurgeJob {
+        private final String jobId;
+        private final String externalUserId;
+        private volatile PurgeStatus status = PurgeStatus.RUNNING;
+        private volatile String step;
+        private volatile int completedSteps;
+        private final int totalSteps = TOTAL_STEPS;
+        private volatile long deletedRows;
+        private volatile String error;
+        private final LocalDateTime startedAt = LocalDateTime.now();
+        private volatile LocalDateTime finishedAt;
+
+        private synchronized void addDeletedRows(long rows) {
+            deletedRows += rows;
+        }
+
+        private synchronized void completeStep() {
+            completedSteps++;
+        }
+
+        private void finish(PurgeStatus finalStatus, String errorMessage) {
+            this.error = errorMessage;
+            this.finishedAt = LocalDateTime.now();
+            this.status = finalStatus;
+        }
+    }
+}
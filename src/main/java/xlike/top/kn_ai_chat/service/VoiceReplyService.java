@@ -0,0 +1,72 @@
+package xlike.top.kn_ai_chat.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import xlike.top.kn_ai_chat.enums.MediaType;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+
+import java.util.Optional;
+
+/**
+ * 把文字回复合成为可以直接发送的微信语音
+ * <p>
+ * 依次为：查语音回复缓存、TTS 合成、按需转成 AMR、上传临时素材、写回缓存。
+ * 所有需要语音回复的处理器都走这里，缓存和媒体缓冲的关闭方式只在一处维护。
+ * @author xlike
+ */
+@Service
+public class VoiceReplyService {
+
+    private static final Logger logger = LoggerFactory.getLogger(VoiceReplyService.class);
+
+    private final SiliconFlowService siliconFlowService;
+    private final AudioCodecNegotiator audioCodecNegotiator;
+    private final MediaService mediaService;
+    private final TtsMediaCache ttsMediaCache;
+
+    public VoiceReplyService(SiliconFlowService siliconFlowService, AudioCodecNegotiator audioCodecNegotiator,
+                             MediaService mediaService, TtsMediaCache ttsMediaCache) {
+        this.siliconFlowService = siliconFlowService;
+        this.audioCodecNegotiator = audioCodecNegotiator;
+        this.mediaService = mediaService;
+        this.ttsMediaCache = ttsMediaCache;
+    }
+
+    /**
+     * @param externalUserId 用户ID，决定使用的 TTS 模型和音色
+     * @param text 要合成的文字
+     * @return 语音的 media_id；合成、转码或上传任一步失败时返回 empty，由调用方改为文字回复
+     */
+    public Optional<String> synthesize(String externalUserId, String text) {
+        Optional<String> cachedMediaId = ttsMediaCache.findMediaId(externalUserId, text);
+        if (cachedMediaId.isPresent()) {
+            return cachedMediaId;
+        }
+
+        Optional<MediaBuffer> speechOpt = siliconFlowService.generateSpeech(text, externalUserId,
+                audioCodecNegotiator.ttsOutputFormat(), audioCodecNegotiator.ttsSampleRate());
+        if (speechOpt.isEmpty()) {
+            logger.warn("用户 [{}] 的语音合成失败，改为文字回复。", externalUserId);
+            return Optional.empty();
+        }
+
+        try (MediaBuffer speech = speechOpt.get()) {
+            // TTS 已输出 AMR 时 forWeChatVoice 返回同一个对象，重复关闭是安全的
+            Optional<MediaBuffer> amrOpt = audioCodecNegotiator.forWeChatVoice(speech);
+            if (amrOpt.isEmpty()) {
+                logger.warn("用户 [{}] 的语音转换为 AMR 失败，改为文字回复。", externalUserId);
+                return Optional.empty();
+            }
+            try (MediaBuffer amr = amrOpt.get()) {
+                Optional<MediaService.UploadedMedia> uploadedOpt = mediaService.upload(amr, MediaType.VOICE);
+                if (uploadedOpt.isEmpty()) {
+                    logger.warn("用户 [{}] 的语音上传失败，改为文字回复。", externalUserId);
+                    return Optional.empty();
+                }
+                ttsMediaCache.put(externalUserId, text, amr, uploadedOpt.get());
+                return uploadedOpt.map(MediaService.UploadedMedia::mediaId);
+            }
+        }
+    }
+}
@@ -5,8 +5,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
 import org.springframework.dao.DataIntegrityViolationException;
-import org.springframework.data.domain.PageRequest;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.ResponseEntity;
@@ -15,9 +15,10 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import xlike.top.kn_ai_chat.dispatcher.MessageDispatcher;
 import xlike.top.kn_ai_chat.domain.MessageLog;
-import xlike.top.kn_ai_chat.repository.MessageLogRepository;
 import xlike.top.kn_ai_chat.reply.*;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
 import xlike.top.kn_ai_chat.service.MediaService.DownloadedMedia;
+import xlike.top.kn_ai_chat.store.MessageLogStore;
 import xlike.top.kn_ai_chat.utils.FileContentReader;
 import xlike.top.kn_ai_chat.utils.WeChatUtils;
 import xlike.top.kn_ai_chat.utils.XmlParseUtil;
@@ -40,17 +41,20 @@ public class WeChatService {
     @Value("${wechat.encoding-aes-key}")
     private String encodingAesKey;
 
-    private final MessageLogRepository messageLogRepository;
+    private final MessageLogStore messageLogStore;
     private final RestTemplate restTemplate;
     private final RedisTemplate<String, String> redisTemplate;
     private final MessageDispatcher messageDispatcher;
     private final AccessTokenManager accessTokenManager;
     private final MediaService mediaService;
     private final SiliconFlowService siliconFlowService;
-    private final FormatFileService formatFileService;
+    private final AudioCodecNegotiator audioCodecNegotiator;
+    private final ImageDescriptionCache imageDescriptionCache;
     private final KnowledgeBaseService knowledgeBaseService;
     private final UserConfigService userConfigService;
     private final WeChatUserService weChatUserService;
+    private final ConversationWindowCache conversationWindowCache;
+    private final MessageWriteBuffer messageWriteBuffer;
 
     private final ObjectMapper objectMapper = new ObjectMapper();
     private byte[] encodingAesKeyBytes;
@@ -59,30 +63,38 @@ public class WeChatService {
     private static final String PROCESSED_MSG_ID_KEY_PREFIX = "wechat:processed_msgid:";
     // 用于存储消息拉取游标的Redis Key
     private static final String MSG_CURSOR_KEY = "wechat:msg_cursor";
+    // 识别用户图片时使用的提示词
+    private static final String IMAGE_DESCRIBE_PROMPT = "请详细描述这张图片的内容";
 
     public WeChatService(
-            MessageLogRepository messageLogRepository,
+            MessageLogStore messageLogStore,
             RestTemplate restTemplate,
             RedisTemplate<String, String> redisTemplate,
             MessageDispatcher messageDispatcher,
             AccessTokenManager accessTokenManager,
             MediaService mediaService,
             SiliconFlowService siliconFlowService,
-            FormatFileService formatFileService,
+            AudioCodecNegotiator audioCodecNegotiator,
+            ImageDescriptionCache imageDescriptionCache,
             KnowledgeBaseService knowledgeBaseService,
             UserConfigService userConfigService,
-            WeChatUserService weChatUserService) {
-        this.messageLogRepository = messageLogRepository;
+            WeChatUserService weChatUserService,
+            ConversationWindowCache conversationWindowCache,
+            MessageWriteBuffer messageWriteBuffer) {
+        this.messageLogStore = messageLogStore;
         this.restTemplate = restTemplate;
         this.redisTemplate = redisTemplate;
         this.messageDispatcher = messageDispatcher;
         this.accessTokenManager = accessTokenManager;
         this.mediaService = mediaService;
         this.siliconFlowService = siliconFlowService;
-        this.formatFileService = formatFileService;
+        this.audioCodecNegotiator = audioCodecNegotiator;
+        this.imageDescriptionCache = imageDescriptionCache;
         this.knowledgeBaseService = knowledgeBaseService;
         this.userConfigService = userConfigService;
         this.weChatUserService = weChatUserService;
+        this.conversationWindowCache = conversationWindowCache;
+        this.messageWriteBuffer = messageWriteBuffer;
     }
 
     @PostConstruct
@@ -196,7 +208,8 @@ public class WeChatService {
         String msgId = msgNode.get("msgid").asText();
         String redisKey = PROCESSED_MSG_ID_KEY_PREFIX + msgId;
     
-        if (Boolean.TRUE.equals(redisTemplate.hasKey(redisKey)) || messageLogRepository.existsByMsgId(msgId)) {
+        if (Boolean.TRUE.equals(redisTemplate.hasKey(redisKey)) || messageWriteBuffer.isPending(msgId)
+                || messageLogStore.existsByMsgId(msgId)) {
             logger.info("消息 {} 已被处理过，跳过。", msgId);
             return;
         }
@@ -241,11 +254,10 @@ public class WeChatService {
 
     private void handleTextMessage(JsonNode msgNode, String externalUserId, String openKfid) {
         String userContent = msgNode.get("text").get("content").asText().trim();
-        saveMessageLog(msgNode.get("msgid").asText(), externalUserId, openKfid, "text", userContent);
+        saveMessageLog(externalUserId, msgNode.get("msgid").asText(), externalUserId, openKfid, "text", userContent);
         logger.info("用户 [{}] 发送消息: {}", externalUserId, userContent);
 
-        List<MessageLog> history = messageLogRepository.findByFromUserOrToUserOrderByTimestampDesc(externalUserId, externalUserId, PageRequest.of(0, 10));
-        Collections.reverse(history);
+        List<MessageLog> history = conversationWindowCache.getRecent(externalUserId);
 
         Optional<Reply> replyOpt = messageDispatcher.dispatch(externalUserId, openKfid, userContent, history);
         replyOpt.ifPresent(reply -> sendReply(reply, externalUserId, openKfid));
@@ -258,20 +270,28 @@ public class WeChatService {
 
         Optional<DownloadedMedia> downloadedMediaOpt = mediaService.downloadTemporaryMedia(mediaId);
         if (downloadedMediaOpt.isPresent()) {
-            File imageFile = downloadedMediaOpt.get().file();
-            
-            Optional<String> descriptionOpt = siliconFlowService.analyzeImage(imageFile, "请详细描述这张图片的内容", externalUserId);
-            imageFile.delete(); 
+            Optional<String> descriptionOpt;
+            try (MediaBuffer image = downloadedMediaOpt.get().media()) {
+                // 相同或相似的图片（表情包、截图等）直接复用之前的识别结果
+                Optional<ImageDescriptionCache.ImageFingerprint> fingerprintOpt = imageDescriptionCache.fingerprint(image);
+                descriptionOpt = fingerprintOpt.flatMap(fingerprint -> imageDescriptionCache.find(externalUserId, IMAGE_DESCRIBE_PROMPT, fingerprint));
+                if (descriptionOpt.isEmpty()) {
+                    descriptionOpt = siliconFlowService.analyzeImage(image, IMAGE_DESCRIBE_PROMPT, externalUserId);
+                    if (fingerprintOpt.isPresent()) {
+                        descriptionOpt.ifPresent(description -> imageDescriptionCache.put(externalUserId, IMAGE_DESCRIBE_PROMPT, fingerprintOpt.get(), description));
+                    }
+                }
+            }
 
             String replyContent;
             if (descriptionOpt.isPresent() && !descriptionOpt.get().isBlank()) {
                 replyContent = descriptionOpt.get();
-                saveMessageLog(msgId, externalUserId, openKfid, "image", replyContent);
+                saveMessageLog(externalUserId, msgId, externalUserId, openKfid, "image", replyContent);
             } else {
                 replyContent = "抱歉，我暂时无法理解这张图片的内容。";
             }
             sendTextMessage(externalUserId, openKfid, replyContent);
-            saveMessageLog(null, openKfid, externalUserId, "text", replyContent);
+            saveMessageLog(externalUserId, null, openKfid, externalUserId, "text", replyContent);
 
         } else {
             sendTextMessage(externalUserId, openKfid, "图片下载失败，无法处理。");
@@ -289,19 +309,19 @@ public class WeChatService {
             return;
         }
     
-        File amrFile = downloadedMediaOpt.get().file();
-        Optional<File> mp3FileOpt = formatFileService.convertToMp3(amrFile);
-        amrFile.delete(); 
-    
-        if (mp3FileOpt.isEmpty()) {
-            sendTextMessage(externalUserId, openKfid, "抱歉，语音格式转换失败，无法识别。");
-            return;
+        Optional<String> transcribedTextOpt;
+        try (MediaBuffer voice = downloadedMediaOpt.get().media()) {
+            // 只有 STT 不支持微信的语音格式时才转码
+            Optional<MediaBuffer> sttInputOpt = audioCodecNegotiator.forSpeechRecognition(voice);
+            if (sttInputOpt.isEmpty()) {
+                sendTextMessage(externalUserId, openKfid, "抱歉，语音格式转换失败，无法识别。");
+                return;
+            }
+            try (MediaBuffer sttInput = sttInputOpt.get()) {
+                transcribedTextOpt = siliconFlowService.transcribeAudio(sttInput, externalUserId);
+            }
         }
     
-        File mp3File = mp3FileOpt.get();
-        Optional<String> transcribedTextOpt = siliconFlowService.transcribeAudio(mp3File, externalUserId);
-        mp3File.delete(); 
-    
         if (transcribedTextOpt.isEmpty() || transcribedTextOpt.get().isBlank()) {
             sendTextMessage(externalUserId, openKfid, "抱歉，你的语音我没听清，可以再说一遍吗？");
             return;
@@ -310,10 +330,9 @@ public class WeChatService {
         String transcribedText = transcribedTextOpt.get();
         logger.info("语音识别结果: {}", transcribedText);
     
-        saveMessageLog(msgId, externalUserId, openKfid, "voice", transcribedText);
+        saveMessageLog(externalUserId, msgId, externalUserId, openKfid, "voice", transcribedText);
         
-        List<MessageLog> history = messageLogRepository.findByFromUserOrToUserOrderByTimestampDesc(externalUserId, externalUserId, PageRequest.of(0, 10));
-        Collections.reverse(history);
+        List<MessageLog> history = conversationWindowCache.getRecent(externalUserId);
     
         Optional<Reply> replyOpt = messageDispatcher.dispatch(externalUserId, openKfid, transcribedText, history);
         replyOpt.ifPresent(reply -> sendReply(reply, externalUserId, openKfid));
@@ -328,36 +347,35 @@ public class WeChatService {
         String replyContent;
         if (downloadedMediaOpt.isPresent()) {
             DownloadedMedia downloadedMedia = downloadedMediaOpt.get();
-            File file = downloadedMedia.file();
             String originalFilename = downloadedMedia.filename();
 
-            logger.info("用户 [{}] 发送文件 '{}'，临时存储为 '{}'", externalUserId, originalFilename, file.getName());
-
-            try {
+            try (MediaBuffer media = downloadedMedia.media()) {
+                // 文档解析库只能读取文件，这里才落到媒体临时目录
+                File file = media.toPath().toFile();
+                logger.info("用户 [{}] 发送文件 '{}'，临时存储为 '{}'", externalUserId, originalFilename, file.getName());
                 String fileContent = FileContentReader.readFileContent(file);
                 if (fileContent.isBlank()) {
                     replyContent = "文件 '" + originalFilename + "' 内容为空，已跳过。";
                 } else {
-                    saveMessageLog(msgId, externalUserId, openKfid, "file", fileContent);
+                    saveMessageLog(externalUserId, msgId, externalUserId, openKfid, "file", fileContent);
                     knowledgeBaseService.addFileToKnowledgeBase(file, originalFilename, externalUserId);
                     replyContent = "✅ 文件 '" + originalFilename + "' 已成功添加到您的知识库！";
                 }
             } catch (IOException e) {
                 logger.error("为用户 [{}] 读取文件 '{}' 内容失败。", externalUserId, originalFilename, e);
                 replyContent = "❌ 文件 '" + originalFilename + "' 内容解析失败：" + e.getMessage();
-            } finally {
-                file.delete();
             }
         } else {
             replyContent = "❌ 文件下载失败，无法存入知识库。";
         }
 
         sendTextMessage(externalUserId, openKfid, replyContent);
-        saveMessageLog(null, openKfid, externalUserId, "text", replyContent);
+        saveMessageLog(externalUserId, null, openKfid, externalUserId, "text", replyContent);
     }
     
-    private void saveMessageLog(String msgId, String fromUser, String toUser, String msgType, String content) {
+    private void saveMessageLog(String conversationId, String msgId, String fromUser, String toUser, String msgType, String content) {
         MessageLog log = new MessageLog();
+        log.setConversationId(conversationId);
         if (msgId != null && !msgId.isEmpty()) {
             log.setMsgId(msgId);
         }
@@ -366,39 +384,45 @@ public class WeChatService {
         log.setMsgType(msgType);
         log.setContent(content);
         log.setTimestamp(LocalDateTime.now());
-        try {
-            messageLogRepository.save(log);
-        } catch (DataIntegrityViolationException e) {
-            logger.warn("保存MessageLog时出现唯一键冲突，MsgId: {}. 该消息可能已被处理。", msgId);
-        }
+        // 先写入热窗口缓存再交给写缓冲，异步落库，唯一键冲突由写缓冲处理
+        conversationWindowCache.append(log);
+        messageWriteBuffer.enqueue(log);
     }
     
+    /**
+     * 推送后台任务（绘画、MCP、工具调用等）完成后的结果
+     */
+    @EventListener
+    public void onJobReply(JobService.JobReplyEvent event) {
+        sendReply(event.reply(), event.externalUserId(), event.openKfid());
+    }
+
     private void sendReply(Reply reply, String externalUserId, String openKfid) {
         switch (reply) {
             case TextReply textReply -> {
                 logger.info("准备发送给用户 [{}] 的文本: {}", externalUserId, textReply.content());
                 sendTextMessage(externalUserId, openKfid, textReply.content());
-                saveMessageLog(null, openKfid, externalUserId, "text", textReply.content());
+                saveMessageLog(externalUserId, null, openKfid, externalUserId, "text", textReply.content());
             }
             case ImageReply imageReply -> {
                 logger.info("准备发送给用户 [{}] 的图片, media_id: {}", externalUserId, imageReply.mediaId());
                 sendImageMessage(externalUserId, openKfid, imageReply.mediaId());
-                saveMessageLog(null, openKfid, externalUserId, "image", "media_id: " + imageReply.mediaId());
+                saveMessageLog(externalUserId, null, openKfid, externalUserId, "image", "media_id: " + imageReply.mediaId());
             }
             case VoiceReply voiceReply -> {
                 logger.info("准备发送给用户 [{}] 的语音, media_id: {}", externalUserId, voiceReply.mediaId());
                 sendVoiceMessage(externalUserId, openKfid, voiceReply.mediaId());
-                saveMessageLog(null, openKfid, externalUserId, "voice", "media_id: " + voiceReply.mediaId());
+                saveMessageLog(externalUserId, null, openKfid, externalUserId, "voice", "media_id: " + voiceReply.mediaId());
             }
             case VideoReply videoReply -> {
                 logger.info("准备发送给用户 [{}] 的视频, media_id: {}", externalUserId, videoReply.mediaId());
                 sendVideoMessage(externalUserId, openKfid, videoReply.mediaId());
-                saveMessageLog(null, openKfid, externalUserId, "video", "media_id: " + videoReply.mediaId());
+                saveMessageLog(externalUserId, null, openKfid, externalUserId, "video", "media_id: " + videoReply.mediaId());
             }
             case FileReply fileReply -> {
                 logger.info("准备发送给用户 [{}] 的文件, media_id: {}", externalUserId, fileReply.mediaId());
                 sendFileMessage(externalUserId, openKfid, fileReply.mediaId());
-                saveMessageLog(null, openKfid, externalUserId, "file", "media_id: " + fileReply.mediaId());
+                saveMessageLog(externalUserId, null, openKfid, externalUserId, "file", "media_id: " + fileReply.mediaId());
             }
         }
     }
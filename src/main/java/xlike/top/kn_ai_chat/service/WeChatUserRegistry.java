@@ -0,0 +1,171 @@
+package xlike.top.kn_ai_chat.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import xlike.top.kn_ai_chat.repository.WeChatUserRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 微信用户内存注册表
+ * <p>
+ * 启动时一次性加载所有已知用户ID和被拉黑的用户ID，消息链路上的
+ * "用户是否存在"、"用户是否被拉黑"判断直接走内存，不再查询数据库。
+ * 拉黑、解封、删除等变更通过 Redis 频道广播给其他节点。
+ * @author xlike
+ */
+@Service
+public class WeChatUserRegistry implements MessageListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeChatUserRegistry.class);
+    private static final String REGISTRY_CHANNEL = "kn_ai_chat:user_registry";
+    private static final String SEPARATOR = "|";
+
+    private static final String ACTION_KNOWN = "KNOWN";
+    private static final String ACTION_BLOCK = "BLOCK";
+    private static final String ACTION_UNBLOCK = "UNBLOCK";
+    private static final String ACTION_REMOVE = "REMOVE";
+    private static final String ACTION_RELOAD = "RELOAD";
+
+    private final Set<String> knownUserIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> blockedUserIds = ConcurrentHashMap.newKeySet();
+    // 用于识别并忽略本节点自己发出的广播
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final WeChatUserRepository userRepository;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    public WeChatUserRegistry(WeChatUserRepository userRepository,
+                              StringRedisTemplate redisTemplate,
+                              RedisMessageListenerContainer listenerContainer) {
+        this.userRepository = userRepository;
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    public void init() {
+        loadFromDatabase();
+        listenerContainer.addMessageListener(this, new ChannelTopic(REGISTRY_CHANNEL));
+    }
+
+    public boolean isKnown(String externalUserId) {
+        return knownUserIds.contains(externalUserId);
+    }
+
+    public boolean isBlocked(String externalUserId) {
+        return blockedUserIds.contains(externalUserId);
+    }
+
+    /**
+     * 标记用户已存在于数据库中（新用户入库后调用）
+     */
+    public void markKnown(String externalUserId) {
+        knownUserIds.add(externalUserId);
+        publish(ACTION_KNOWN, externalUserId);
+    }
+
+    /**
+     * 更新用户的拉黑状态
+     */
+    public void updateBlocked(String externalUserId, boolean blocked) {
+        applyBlocked(externalUserId, blocked);
+        publish(blocked ? ACTION_BLOCK : ACTION_UNBLOCK, externalUserId);
+    }
+
+    /**
+     * 用户被删除后，将其从注册表中移除
+     */
+    public void remove(String externalUserId) {
+        knownUserIds.remove(externalUserId);
+        blockedUserIds.remove(externalUserId);
+        publish(ACTION_REMOVE, externalUserId);
+    }
+
+    /**
+     * 从数据库重新加载注册表，用于清空全部数据等批量变更之后
+     */
+    public void reload() {
+        loadFromDatabase();
+        publish(ACTION_RELOAD, "");
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String[] parts = body.split("\\" + SEPARATOR, 3);
+        if (parts.length != 3 || nodeId.equals(parts[0])) {
+            return;
+        }
+        String action = parts[1];
+        String externalUserId = parts[2];
+        logger.debug("收到用户注册表广播: {} {}", action, externalUserId);
+        switch (action) {
+            case ACTION_KNOWN -> knownUserIds.add(externalUserId);
+            case ACTION_BLOCK -> applyBlocked(externalUserId, true);
+            case ACTION_UNBLOCK -> applyBlocked(externalUserId, false);
+            case ACTION_REMOVE -> {
+                knownUserIds.remove(externalUserId);
+                blockedUserIds.remove(externalUserId);
+            }
+            case ACTION_RELOAD -> loadFromDatabase();
+            default -> logger.warn("未知的用户注册表广播动作: {}", action);
+        }
+    }
+
+    private void applyBlocked(String externalUserId, boolean blocked) {
+        if (blocked) {
+            blockedUserIds.add(externalUserId);
+        } else {
+            blockedUserIds.remove(externalUserId);
+        }
+    }
+
+    private void loadFromDatabase() {
+        Set<String> known = ConcurrentHashMap.newKeySet();
+        known.addAll(userRepository.findAllExternalUserIds());
+        Set<String> blocked = ConcurrentHashMap.newKeySet();
+        blocked.addAll(userRepository.findBlockedExternalUserIds());
+
+        knownUserIds.retainAll(known);
+        knownUserIds.addAll(known);
+        blockedUserIds.retainAll(blocked);
+        blockedUserIds.addAll(blocked);
+        logger.info("用户注册表加载完成，已知用户 {} 个，拉黑用户 {} 个。", knownUserIds.size(), blockedUserIds.size());
+    }
+
+    private void publish(String action, String externalUserId) {
+        // 处于事务中时，等事务提交后再广播，避免其他节点读到未提交的数据
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    doPublish(action, externalUserId);
+                }
+            });
+        } else {
+            doPublish(action, externalUserId);
+        }
+    }
+
+    private void doPublish(String action, String externalUserId) {
+        try {
+            redisTemplate.convertAndSend(REGISTRY_CHANNEL, nodeId + SEPARATOR + action + SEPARATOR + externalUserId);
+        } catch (Exception e) {
+            logger.error("广播用户注册表变更失败: {} {}", action, externalUserId, e);
+        }
+    }
+}
@@ -4,16 +4,29 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.client.RestTemplate;
+import xlike.top.kn_ai_chat.config.SchedulingConfig;
 import xlike.top.kn_ai_chat.domain.WeChatUser;
 import xlike.top.kn_ai_chat.repository.WeChatUserRepository;
+import xlike.top.kn_ai_chat.store.MessageLogStore;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 负责处理微信用户相关业务的服务.
@@ -27,37 +40,135 @@ public class WeChatUserService {
     private final WeChatUserRepository userRepository;
     private final AccessTokenManager accessTokenManager;
     private final RestTemplate restTemplate;
+    private final WeChatUserRegistry userRegistry;
+    private final MessageWriteBuffer messageWriteBuffer;
+    private final MessageLogStore messageLogStore;
+    private final TransactionTemplate transactionTemplate;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    public WeChatUserService(WeChatUserRepository userRepository, AccessTokenManager accessTokenManager, RestTemplate restTemplate) {
+    /**
+     * 等待从企微API批量获取资料的用户ID
+     */
+    private final Set<String> pendingUserIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 获取资料失败的用户ID及可以重新获取的时间，避免无效ID每条消息都请求一次接口
+     */
+    private final Map<String, Instant> fetchRetryAt = new ConcurrentHashMap<>();
+
+    /**
+     * 单次 batchget 请求最多携带的用户数量（企微接口上限为100）
+     */
+    @Value("${wechat.user-fetch.batch-size:100}")
+    private int batchSize;
+
+    @Value("${wechat.user-fetch.retry-after-minutes:30}")
+    private long retryAfterMinutes;
+
+    public WeChatUserService(WeChatUserRepository userRepository, AccessTokenManager accessTokenManager,
+                             RestTemplate restTemplate, WeChatUserRegistry userRegistry,
+                             MessageWriteBuffer messageWriteBuffer, MessageLogStore messageLogStore,
+                             PlatformTransactionManager transactionManager) {
         this.userRepository = userRepository;
         this.accessTokenManager = accessTokenManager;
         this.restTemplate = restTemplate;
+        this.userRegistry = userRegistry;
+        this.messageWriteBuffer = messageWriteBuffer;
+        this.messageLogStore = messageLogStore;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
     /**
-     * 获取或创建用户。如果用户在本地数据库不存在，则调用API获取信息并创建新用户.
+     * 获取或创建用户。用户在本地不存在时立即创建只有ID的用户记录，
+     * 保证随后的消息能累加提问次数、新增的 MCP 授权能覆盖到该用户；
+     * 昵称、头像等资料登记到待获取队列，由定时任务合并成一次API调用补全.
      * @param externalUserId 用户的 external_userid
      */
     public void getOrCreateUser(String externalUserId) {
-        if (!userRepository.existsById(externalUserId)) {
-            logger.info("用户 [{}] 不存在于数据库中，尝试从企业微信API获取信息...", externalUserId);
-            fetchAndSaveUserFromApi(externalUserId);
+        if (!userRegistry.isKnown(externalUserId)) {
+            if (!createUser(externalUserId)) {
+                return;
+            }
+            pendingUserIds.add(externalUserId);
+            logger.info("用户 [{}] 不存在于数据库中，已创建用户并加入资料待获取队列...", externalUserId);
+            return;
+        }
+        Instant retryAt = fetchRetryAt.get(externalUserId);
+        if (retryAt != null && Instant.now().isAfter(retryAt) && fetchRetryAt.remove(externalUserId, retryAt)) {
+            pendingUserIds.add(externalUserId);
+            logger.info("用户 [{}] 的资料此前获取失败，重新加入待获取队列...", externalUserId);
         }
     }
 
     /**
-     * 调用企业微信API获取用户基本信息并保存到数据库.
+     * 创建只有ID的用户记录，并按已落库的消息初始化提问次数.
+     * 入库和初始提问次数在同一事务中完成，且期间写缓冲不会落库新的批次，
+     * 入库前的消息由这里计数，入库后的消息由写缓冲增量累加
+     * @return 用户记录已存在于数据库中时返回 true
+     */
+    private boolean createUser(String externalUserId) {
+        try {
+            boolean blocked = messageWriteBuffer.flushAndRun(() -> transactionTemplate.execute(status -> {
+                Optional<WeChatUser> existing = userRepository.findById(externalUserId);
+                if (existing.isPresent()) {
+                    // 注册表还不知道由其他节点创建的用户
+                    return existing.get().isBlocked();
+                }
+                WeChatUser user = new WeChatUser();
+                user.setExternalUserId(externalUserId);
+                user.setBlocked(false);
+                user.setLastUpdated(LocalDateTime.now());
+                userRepository.saveAndFlush(user);
+                userRepository.setQuestionCount(externalUserId, messageLogStore.countFromUser(externalUserId));
+                return false;
+            }));
+            if (blocked) {
+                userRegistry.updateBlocked(externalUserId, true);
+            }
+        } catch (DataIntegrityViolationException e) {
+            logger.info("用户 [{}] 已由其他节点同时创建。", externalUserId);
+        } catch (Exception e) {
+            logger.error("创建用户 [{}] 失败，将在下一条消息到来时重试", externalUserId, e);
+            return false;
+        }
+        userRegistry.markKnown(externalUserId);
+        return true;
+    }
+
+    /**
+     * 定时将待获取队列中的用户合并，通过 kf/customer/batchget 一次性获取资料并更新到数据库.
+     */
+    @Scheduled(fixedDelayString = "${wechat.user-fetch.batch-window-ms:500}", scheduler = SchedulingConfig.BLOCKING_SCHEDULER)
+    public void flushPendingUsers() {
+        while (!pendingUserIds.isEmpty()) {
+            List<String> batch = new ArrayList<>(batchSize);
+            Iterator<String> iterator = pendingUserIds.iterator();
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                batch.add(iterator.next());
+            }
+            Set<String> fetched = fetchAndSaveUsersFromApi(batch);
+            batch.forEach(pendingUserIds::remove);
+            // 获取失败的用户在一段时间内不再重试，之后由该用户的下一条消息重新登记
+            Instant retryAt = Instant.now().plus(Duration.ofMinutes(retryAfterMinutes));
+            batch.stream()
+                    .filter(userId -> !fetched.contains(userId))
+                    .forEach(userId -> fetchRetryAt.put(userId, retryAt));
+        }
+    }
+
+    /**
+     * 调用企业微信API批量获取用户基本信息并更新到数据库.
      * 该方法会根据提供的PDF文档调用获取客户基础信息接口.
-     * @param externalUserId 用户的 external_userid
+     * @param externalUserIds 用户的 external_userid 列表
+     * @return 成功获取到资料的用户ID
      */
-    private void fetchAndSaveUserFromApi(String externalUserId) {
+    private Set<String> fetchAndSaveUsersFromApi(List<String> externalUserIds) {
         String accessToken = accessTokenManager.getAccessToken();
         String url = "https://qyapi.weixin.qq.com/cgi-bin/kf/customer/batchget?access_token=" + accessToken;
 
         // 构建请求体
         Map<String, Object> requestBody = new HashMap<>();
-        requestBody.put("external_userid_list", Collections.singletonList(externalUserId));
+        requestBody.put("external_userid_list", externalUserIds);
         requestBody.put("need_enter_session_context", 0);
 
         try {
@@ -65,35 +176,43 @@ public class WeChatUserService {
             JsonNode root = objectMapper.readTree(responseStr);
 
             if (root.path("errcode").asInt() == 0 && root.has("customer_list")) {
-                JsonNode customerList = root.path("customer_list");
-                if (customerList.isArray() && !customerList.isEmpty()) {
-                    JsonNode customerNode = customerList.get(0);
-                    WeChatUser user = new WeChatUser();
-                    user.setExternalUserId(customerNode.path("external_userid").asText());
-                    user.setNickname(customerNode.path("nickname").asText());
-                    user.setAvatar(customerNode.path("avatar").asText());
-                    user.setInfo(customerNode.toString());
-                    user.setBlocked(false);
-                    user.setLastUpdated(LocalDateTime.now());
-                    
-                    userRepository.save(user);
-                    logger.info("成功获取并保存了用户 [{}] 的信息。", externalUserId);
+                Map<String, JsonNode> customers = new HashMap<>();
+                for (JsonNode customerNode : root.path("customer_list")) {
+                    customers.put(customerNode.path("external_userid").asText(), customerNode);
+                }
+                // 用户记录在首次出现时已经创建，这里只更新资料，保留拉黑状态和提问次数；
+                // 期间被删除的用户不再重新创建
+                List<WeChatUser> users = transactionTemplate.execute(status -> {
+                    List<WeChatUser> rows = userRepository.findAllById(customers.keySet());
+                    for (WeChatUser row : rows) {
+                        JsonNode customerNode = customers.get(row.getExternalUserId());
+                        row.setNickname(customerNode.path("nickname").asText());
+                        row.setAvatar(customerNode.path("avatar").asText());
+                        row.setInfo(customerNode.toString());
+                        row.setLastUpdated(LocalDateTime.now());
+                    }
+                    return userRepository.saveAll(rows);
+                });
+                logger.info("成功批量获取并更新了 {} 个用户的资料（请求 {} 个）。", users.size(), externalUserIds.size());
+                if (root.has("invalid_external_userid") && !root.path("invalid_external_userid").isEmpty()) {
+                    logger.warn("以下用户ID无效，未能获取信息: {}", root.path("invalid_external_userid"));
                 }
+                return customers.keySet();
             } else {
-                logger.error("从企微API获取用户 [{}] 信息失败: {}", externalUserId, responseStr);
+                logger.error("从企微API批量获取用户 {} 信息失败: {}", externalUserIds, responseStr);
             }
         } catch (Exception e) {
-            logger.error("调用企微API获取用户 [{}] 信息时发生异常", externalUserId, e);
+            logger.error("调用企微API批量获取用户 {} 信息时发生异常", externalUserIds, e);
         }
+        return Set.of();
     }
     
     /**
-     * 检查用户是否被拉黑.
+     * 检查用户是否被拉黑，直接读取内存中的用户注册表.
      * @param externalUserId 用户ID
      * @return 如果用户存在且被拉黑则返回 true, 否则返回 false.
      */
     public boolean isUserBlocked(String externalUserId) {
-        Optional<WeChatUser> userOpt = userRepository.findById(externalUserId);
-        return userOpt.map(WeChatUser::isBlocked).orElse(false);
+        return userRegistry.isBlocked(externalUserId);
     }
-}
\ No newline at end of file
+}
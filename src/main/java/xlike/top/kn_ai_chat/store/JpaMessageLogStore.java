@@ -0,0 +1,130 @@
+package xlike.top.kn_ai_chat.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import xlike.top.kn_ai_chat.domain.MessageLog;
+import xlike.top.kn_ai_chat.repository.MessageLogRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 基于数据库 message_log 表的对话日志存储（默认实现）
+ * @author xlike
+ */
+@Component
+@ConditionalOnProperty(name = "history.store.type", havingValue = "jpa", matchIfMissing = true)
+public class JpaMessageLogStore implements MessageLogStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(JpaMessageLogStore.class);
+
+    private final MessageLogRepository messageLogRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    private final int deleteChunkSize;
+
+    public JpaMessageLogStore(MessageLogRepository messageLogRepository, PlatformTransactionManager transactionManager,
+                              @Value("${purge.chunk-size:1000}") int deleteChunkSize) {
+        this.messageLogRepository = messageLogRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.deleteChunkSize = deleteChunkSize;
+    }
+
+    @Override
+    public SaveResult saveAll(List<MessageLog> logs, Consumer<List<MessageLog>> onStored) {
+        if (logs.isEmpty()) {
+            return new SaveResult(List.of(), List.of());
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                messageLogRepository.saveAll(logs);
+                onStored.accept(logs);
+            });
+            return new SaveResult(logs, List.of());
+        } catch (Exception e) {
+            // 批量写入失败（通常是重复的 msg_id），改为逐条写入，跳过冲突的那几条
+            logger.warn("批量写入 {} 条MessageLog失败，改为逐条写入。原因: {}", logs.size(), e.getMessage());
+            List<MessageLog> stored = new ArrayList<>();
+            List<MessageLog> failed = new ArrayList<>();
+            for (MessageLog log : logs) {
+                // 序列主键在 persist 时就已分配，回滚后需要清空，否则会被当作已存在的记录
+                log.setId(null);
+                switch (saveSingle(log, onStored)) {
+                    case STORED -> stored.add(log);
+                    case FAILED -> failed.add(log);
+                    case DUPLICATE -> { }
+                }
+            }
+            return new SaveResult(stored, failed);
+        }
+    }
+
+    private enum SingleSave { STORED, DUPLICATE, FAILED }
+
+    private SingleSave saveSingle(MessageLog log, Consumer<List<MessageLog>> onStored) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                messageLogRepository.saveAndFlush(log);
+                onStored.accept(List.of(log));
+            });
+            return SingleSave.STORED;
+        } catch (DataIntegrityViolationException e) {
+            logger.warn("保存MessageLog时出现唯一键冲突，MsgId: {}. 该消息可能已被处理。", log.getMsgId());
+            log.setId(null);
+            return SingleSave.DUPLICATE;
+        } catch (Exception e) {
+            logger.error("保存MessageLog失败，MsgId: {}", log.getMsgId(), e);
+            log.setId(null);
+            return SingleSave.FAILED;
+        }
+    }
+
+    @Override
+    public List<MessageLog> findLatest(String conversationId, int limit) {
+        return messageLogRepository.findByConversationIdOrderByTimestampDesc(conversationId, PageRequest.of(0, limit));
+    }
+
+    @Override
+    public List<MessageLog> findLatestFromUser(String conversationId, int limit) {
+        return messageLogRepository.findByConversationIdAndFromUserOrderByTimestampDesc(conversationId, conversationId, PageRequest.of(0, limit));
+    }
+
+    @Override
+    public long count(String conversationId) {
+        return messageLogRepository.countByConversationId(conversationId);
+    }
+
+    @Override
+    public long countFromUser(String conversationId) {
+        return messageLogRepository.countByConversationIdAndFromUser(conversationId, conversationId);
+    }
+
+    @Override
+    public boolean existsByMsgId(String msgId) {
+        return messageLogRepository.existsByMsgId(msgId);
+    }
+
+    @Override
+    public long deleteConversation(String conversationId) {
+        long total = 0;
+        int deleted;
+        do {
+            deleted = messageLogRepository.deleteChunkByConversationId(conversationId, deleteChunkSize);
+            total += deleted;
+        } while (deleted >= deleteChunkSize);
+        return total;
+    }
+
+    @Override
+    public void deleteAll() {
+        messageLogRepository.deleteAllInBatch();
+    }
+}
@@ -0,0 +1,81 @@
+package xlike.top.kn_ai_chat.store;
+
+import xlike.top.kn_ai_chat.domain.MessageLog;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 对话日志（MessageLog）的存储引擎抽象
+ * <p>
+ * 默认使用数据库（{@link JpaMessageLogStore}），消息量大时可以通过
+ * {@code history.store.type=segmented} 切换为基于追加写分段文件的 {@link SegmentedMessageLogStore}。
+ * @author xlike
+ */
+public interface MessageLogStore {
+
+    /**
+     * 批量写入消息，消息的 conversationId 必须已设置
+     * @param logs 待写入的消息
+     * @param onStored 对实际写入的消息执行的回调（例如累加提问次数）。数据库存储下与插入在同一个事务中执行，
+     *                 回调抛出异常时这些消息的插入一并回滚并计入 failed
+     * @return 实际写入的消息和写入失败、可以重试的消息；因重复而跳过的消息两者都不包含
+     */
+    SaveResult saveAll(List<MessageLog> logs, Consumer<List<MessageLog>> onStored);
+
+    /**
+     * 批量写入消息，不需要回调
+     */
+    default SaveResult saveAll(List<MessageLog> logs) {
+        return saveAll(logs, stored -> {});
+    }
+
+    /**
+     * 批量写入的结果
+     * @param stored 实际写入的消息
+     * @param failed 写入失败、可以重试的消息
+     */
+    record SaveResult(List<MessageLog> stored, List<MessageLog> failed) {}
+
+    /**
+     * 查询某个会话最近的消息，按时间倒序
+     * @param conversationId 会话ID (externalUserId)
+     * @param limit 最多返回的条数
+     * @return 消息列表，最新的在前
+     */
+    List<MessageLog> findLatest(String conversationId, int limit);
+
+    /**
+     * 查询某个会话中由用户本人发送的最近消息，按时间倒序
+     * @param conversationId 会话ID (externalUserId)
+     * @param limit 最多返回的条数
+     * @return 消息列表，最新的在前
+     */
+    List<MessageLog> findLatestFromUser(String conversationId, int limit);
+
+    /**
+     * 统计某个会话的消息总数
+     */
+    long count(String conversationId);
+
+    /**
+     * 统计某个会话中由用户本人发送的消息总数
+     */
+    long countFromUser(String conversationId);
+
+    /**
+     * 判断某个微信消息ID是否已经保存过，用于幂等性判断
+     */
+    boolean existsByMsgId(String msgId);
+
+    /**
+     * 删除某个会话的全部消息
+     * @return 删除的消息条数
+     */
+    long deleteConversation(String conversationId);
+
+    /**
+     * 删除全部消息
+     */
+    void deleteAll();
+}
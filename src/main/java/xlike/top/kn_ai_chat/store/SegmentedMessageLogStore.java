@@ -0,0 +1,936 @@
+package xlike.top.kn_ai_chat.store;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import xlike.top.kn_ai_chat.config.SchedulingConfig;
+import xlike.top.kn_ai_chat.domain.MessageLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 基于追加写分段文件的对话日志存储
+ * <p>
+ * 所有消息按到达顺序追加写入当前活跃段文件（纯顺序写），段文件按时间或大小滚动；
+ * 已封存的段文件以只读内存映射方式读取，超过一定天数的段会被 gzip 压缩。
+ * 内存中为每个会话维护一份记录位置索引，读取某个用户最近 N 条消息只需要 N 次定位读。
+ * 清空会话时写入一条墓碑记录，过期数据按整段删除，不存在逐行删除。
+ * <p>
+ * 记录格式：[int 负载长度][int CRC32][负载]，负载中依次为记录类型、时间戳、会话ID及消息字段。
+ * 消息ID（MessageLog.id）由 段序号 << 32 | 段内偏移 组成，可直接定位到记录。
+ * <p>
+ * 段封存时在旁边写一个 .idx 索引文件，保存每条记录的会话ID、偏移和最后一条记录的时间，
+ * 启动时已封存的段直接加载索引，只有活跃段和索引缺失或损坏的段需要扫描。
+ * 压缩时按约 64KB 切成独立的 gzip 块，索引中记录每块的起始偏移，读取一条记录只需解压它所在的块。
+ * @author xlike
+ */
+@Component
+@ConditionalOnProperty(name = "history.store.type", havingValue = "segmented")
+public class SegmentedMessageLogStore implements MessageLogStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedMessageLogStore.class);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d{10})-(\\d+)\\.seg(\\.gz)?");
+    private static final int HEADER_SIZE = 8;
+    private static final byte RECORD_MESSAGE = 1;
+    private static final byte RECORD_TOMBSTONE = 2;
+    private static final int INDEX_MAGIC = 0x4B4E4958;
+    private static final int INDEX_VERSION = 1;
+    private static final int COMPRESS_BLOCK_SIZE = 64 * 1024;
+
+    @Value("${history.store.segment.dir:./data/message-log}")
+    private String directory;
+
+    @Value("${history.store.segment.roll-interval-hours:24}")
+    private long rollIntervalHours;
+
+    @Value("${history.store.segment.max-size-mb:64}")
+    private long maxSegmentSizeMb;
+
+    @Value("${history.store.segment.compress-after-days:7}")
+    private long compressAfterDays;
+
+    @Value("${history.store.segment.retention-days:180}")
+    private long retentionDays;
+
+    @Value("${history.store.segment.dedupe-window-hours:48}")
+    private long dedupeWindowHours;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, ConversationIndex> indexes = new HashMap<>();
+    // 最近写入的微信消息ID及写入时间，超出去重窗口后清理
+    private final Map<String, Long> recentMsgIds = new ConcurrentHashMap<>();
+
+    private Path root;
+    private Segment active;
+    private FileChannel activeChannel;
+    // 最近一次解压的压缩块，避免连续读取同一块中的记录时重复解压
+    private volatile Block lastDecompressed;
+
+    @PostConstruct
+    public void init() throws IOException {
+        root = Paths.get(directory);
+        Files.createDirectories(root);
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(root)) {
+            paths = files.sorted().toList();
+        }
+        for (Path path : paths) {
+            Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+            if (!matcher.matches()) {
+                continue;
+            }
+            Segment segment = new Segment(Integer.parseInt(matcher.group(1)), Long.parseLong(matcher.group(2)), path, matcher.group(3) != null);
+            Segment existing = segments.get(segment.sequence);
+            if (existing != null) {
+                // 压缩过程中退出会同时留下原段和压缩文件，以原段为准
+                Segment stale = segment.compressed ? segment : existing;
+                logger.warn("段文件 {} 的压缩未完成，删除压缩文件。", stale.path.getFileName());
+                Files.deleteIfExists(stale.path);
+                segment = segment.compressed ? existing : segment;
+            }
+            segments.put(segment.sequence, segment);
+        }
+        for (Segment segment : segments.values()) {
+            load(segment, segment == segments.lastEntry().getValue());
+        }
+        Segment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (last != null && !last.compressed) {
+            openActive(last);
+        } else {
+            rollNewSegment();
+        }
+        logger.info("分段消息存储已加载：{} 个段文件，{} 个会话。目录: {}", segments.size(), indexes.size(), root.toAbsolutePath());
+    }
+
+    @PreDestroy
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (activeChannel != null && activeChannel.isOpen()) {
+                activeChannel.force(true);
+                activeChannel.close();
+            }
+        } catch (IOException e) {
+            logger.error("关闭活跃段文件失败", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public SaveResult saveAll(List<MessageLog> logs, Consumer<List<MessageLog>> onStored) {
+        if (logs.isEmpty()) {
+            return new SaveResult(List.of(), List.of());
+        }
+        List<MessageLog> stored = new ArrayList<>();
+        List<MessageLog> failed = List.of();
+        lock.writeLock().lock();
+        try {
+            int i = 0;
+            try {
+                for (; i < logs.size(); i++) {
+                    MessageLog log = logs.get(i);
+                    if (log.getMsgId() != null && recentMsgIds.containsKey(log.getMsgId())) {
+                        logger.warn("消息 {} 已存在于分段存储中，跳过写入。", log.getMsgId());
+                        continue;
+                    }
+                    long writtenAt = log.getTimestamp() != null ? toEpochMilli(log.getTimestamp()) : System.currentTimeMillis();
+                    long position = append(encodeMessage(log), writtenAt);
+                    log.setId(position);
+                    index(log.getConversationId(), position, log.getConversationId().equals(log.getFromUser()));
+                    if (log.getMsgId() != null) {
+                        recentMsgIds.put(log.getMsgId(), System.currentTimeMillis());
+                    }
+                    stored.add(log);
+                }
+                activeChannel.force(false);
+            } catch (IOException e) {
+                // 已追加的记录保留，从出错的那条开始交给调用方重试
+                logger.error("写入分段消息存储失败，{} 条消息未写入", logs.size() - i, e);
+                failed = List.copyOf(logs.subList(i, logs.size()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (!stored.isEmpty()) {
+            // 文件和数据库之间没有事务，回调失败只记录日志，不影响已追加的记录
+            try {
+                onStored.accept(stored);
+            } catch (RuntimeException e) {
+                logger.error("分段存储写入 {} 条消息后执行回调失败", stored.size(), e);
+            }
+        }
+        return new SaveResult(stored, failed);
+    }
+
+    @Override
+    public List<MessageLog> findLatest(String conversationId, int limit) {
+        return readLatest(conversationId, limit, false);
+    }
+
+    @Override
+    public List<MessageLog> findLatestFromUser(String conversationId, int limit) {
+        return readLatest(conversationId, limit, true);
+    }
+
+    @Override
+    public long count(String conversationId) {
+        lock.readLock().lock();
+        try {
+            ConversationIndex index = indexes.get(conversationId);
+            return index == null ? 0 : index.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long countFromUser(String conversationId) {
+        lock.readLock().lock();
+        try {
+            ConversationIndex index = indexes.get(conversationId);
+            return index == null ? 0 : index.fromUserCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean existsByMsgId(String msgId) {
+        return recentMsgIds.containsKey(msgId);
+    }
+
+    @Override
+    public long deleteConversation(String conversationId) {
+        lock.writeLock().lock();
+        try {
+            append(encodeTombstone(conversationId), System.currentTimeMillis());
+            activeChannel.force(false);
+            ConversationIndex removed = indexes.remove(conversationId);
+            return removed == null ? 0 : removed.size;
+        } catch (IOException e) {
+            throw new UncheckedIOException("写入墓碑记录失败", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteAll() {
+        lock.writeLock().lock();
+        try {
+            activeChannel.close();
+            active = null;
+            for (Segment segment : segments.values()) {
+                Files.deleteIfExists(segment.path);
+                Files.deleteIfExists(indexPath(segment));
+            }
+            segments.clear();
+            indexes.clear();
+            recentMsgIds.clear();
+            lastDecompressed = null;
+            rollNewSegment();
+            logger.warn("分段消息存储已全部清空。");
+        } catch (IOException e) {
+            throw new UncheckedIOException("清空分段消息存储失败", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 定时维护：按时间滚动活跃段、压缩旧段、整段删除过期数据、清理去重窗口
+     */
+    @Scheduled(fixedDelayString = "${history.store.segment.maintenance-interval-ms:600000}", scheduler = SchedulingConfig.BLOCKING_SCHEDULER)
+    public void maintain() {
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            if (active.size > 0 && now - active.createdAt >= TimeUnit.HOURS.toMillis(rollIntervalHours)) {
+                rollNewSegment();
+            }
+            deleteExpiredSegments(now - TimeUnit.DAYS.toMillis(retentionDays));
+        } catch (IOException e) {
+            logger.error("分段消息存储维护（滚动/过期删除）失败", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // 压缩耗时较长，逐段持锁，避免长时间阻塞读写
+        long compressBefore = now - TimeUnit.DAYS.toMillis(compressAfterDays);
+        for (Segment segment : sealedSegments()) {
+            if (!segment.compressed && segment.lastRecordAt() < compressBefore) {
+                compress(segment);
+            }
+        }
+        long dedupeBefore = now - TimeUnit.HOURS.toMillis(dedupeWindowHours);
+        recentMsgIds.values().removeIf(writtenAt -> writtenAt < dedupeBefore);
+    }
+
+    private List<MessageLog> readLatest(String conversationId, int limit, boolean fromUserOnly) {
+        lock.readLock().lock();
+        try {
+            ConversationIndex index = indexes.get(conversationId);
+            if (index == null) {
+                return new ArrayList<>();
+            }
+            List<MessageLog> result = new ArrayList<>(Math.min(limit, index.size));
+            for (int i = index.size - 1; i >= 0 && result.size() < limit; i--) {
+                if (fromUserOnly && !index.fromUser.get(i)) {
+                    continue;
+                }
+                result.add(read(index.positions[i]));
+            }
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取分段消息存储失败", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private MessageLog read(long position) throws IOException {
+        int sequence = (int) (position >>> 32);
+        int offset = (int) position;
+        Segment segment = segments.get(sequence);
+        if (segment == null) {
+            throw new IOException("段文件不存在: " + sequence);
+        }
+        ByteBuffer payload;
+        if (segment == active) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            activeChannel.read(header, offset);
+            header.flip();
+            payload = ByteBuffer.allocate(header.getInt());
+            activeChannel.read(payload, offset + HEADER_SIZE);
+            payload.flip();
+        } else {
+            Block block = sealedBlock(segment, offset);
+            int local = offset - block.start;
+            int length = block.buffer.getInt(local);
+            payload = block.buffer.slice(local + HEADER_SIZE, length);
+        }
+        MessageLog log = decodeMessage(payload);
+        log.setId(position);
+        return log;
+    }
+
+    /**
+     * 取得包含指定偏移的已封存数据：未压缩段为整段的内存映射，压缩段只解压偏移所在的块
+     */
+    private Block sealedBlock(Segment segment, int offset) throws IOException {
+        if (!segment.compressed) {
+            return new Block(segment.sequence, 0, segment.mapped.duplicate());
+        }
+        int blockIndex = 0;
+        if (segment.blockStarts != null) {
+            blockIndex = Arrays.binarySearch(segment.blockStarts, offset);
+            if (blockIndex < 0) {
+                blockIndex = -blockIndex - 2;
+            }
+        }
+        Block cached = lastDecompressed;
+        if (cached != null && cached.sequence == segment.sequence && cached.index == blockIndex) {
+            return cached.duplicate();
+        }
+        Block block;
+        if (segment.blockStarts == null) {
+            // 旧版本整段压缩的文件没有分块信息，只能整段解压
+            block = new Block(segment.sequence, 0, 0, ByteBuffer.wrap(decompress(segment.path)));
+        } else {
+            long from = segment.blockPositions[blockIndex];
+            byte[] compressed = new byte[(int) (segment.blockPositions[blockIndex + 1] - from)];
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                ByteBuffer target = ByteBuffer.wrap(compressed);
+                while (target.hasRemaining()) {
+                    if (channel.read(target, from + target.position()) < 0) {
+                        throw new IOException("压缩段文件 " + segment.path.getFileName() + " 被截断");
+                    }
+                }
+            }
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                block = new Block(segment.sequence, blockIndex, segment.blockStarts[blockIndex], ByteBuffer.wrap(in.readAllBytes()));
+            }
+        }
+        lastDecompressed = block;
+        return block.duplicate();
+    }
+
+    private long append(byte[] payload, long recordAt) throws IOException {
+        if (active.size + HEADER_SIZE + payload.length > maxSegmentSizeMb * 1024 * 1024 && active.size > 0) {
+            rollNewSegment();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        long offset = active.size;
+        while (record.hasRemaining()) {
+            activeChannel.write(record, active.size + record.position());
+        }
+        active.size += record.limit();
+        active.lastRecordAt = Math.max(active.lastRecordAt, recordAt);
+        return ((long) active.sequence << 32) | offset;
+    }
+
+    private void index(String conversationId, long position, boolean fromUser) {
+        indexes.computeIfAbsent(conversationId, k -> new ConversationIndex()).add(position, fromUser);
+    }
+
+    /**
+     * 封存当前活跃段（改为只读内存映射），并创建新的活跃段
+     */
+    private void rollNewSegment() throws IOException {
+        if (active != null) {
+            activeChannel.force(true);
+            activeChannel.close();
+            seal(active);
+        }
+        int sequence = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        long createdAt = System.currentTimeMillis();
+        Path path = root.resolve(String.format("%010d-%d.seg", sequence, createdAt));
+        Segment segment = new Segment(sequence, createdAt, path, false);
+        segments.put(sequence, segment);
+        openActive(segment);
+        logger.info("分段消息存储滚动到新段: {}", path.getFileName());
+    }
+
+    private void openActive(Segment segment) throws IOException {
+        activeChannel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment.mapped = null;
+        active = segment;
+    }
+
+    private void seal(Segment segment) throws IOException {
+        map(segment);
+        writeIndex(segment, scan(segment.mapped.duplicate()), null);
+    }
+
+    private void map(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            segment.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private List<Segment> sealedSegments() {
+        lock.readLock().lock();
+        try {
+            return segments.values().stream().filter(segment -> segment != active).toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把已封存的段按记录边界切成约 64KB 的块，每块写成一个独立的 gzip 成员，并把块的位置写入索引
+     */
+    private void compress(Segment segment) {
+        Path target = segment.path.resolveSibling(segment.path.getFileName() + ".gz");
+        boolean swapped = false;
+        try {
+            ByteBuffer source = segment.mapped.duplicate();
+            SegmentIndex index = scan(source);
+            List<Integer> starts = new ArrayList<>();
+            List<Long> positions = new ArrayList<>();
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                int blockStart = 0;
+                for (IndexEntry entry : index.entries()) {
+                    if (entry.offset() - blockStart >= COMPRESS_BLOCK_SIZE) {
+                        starts.add(blockStart);
+                        positions.add(out.position());
+                        writeBlock(out, source, blockStart, entry.offset());
+                        blockStart = entry.offset();
+                    }
+                }
+                if (blockStart < index.size() || starts.isEmpty()) {
+                    starts.add(blockStart);
+                    positions.add(out.position());
+                    writeBlock(out, source, blockStart, index.size());
+                }
+                positions.add(out.position());
+                out.force(true);
+            }
+            int[] blockStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+            long[] blockPositions = positions.stream().mapToLong(Long::longValue).toArray();
+            lock.writeLock().lock();
+            try {
+                // 压缩期间段可能已被 deleteAll 或过期删除移除，此时丢弃压缩结果，不能再写出孤立的索引文件
+                if (segments.get(segment.sequence) != segment) {
+                    logger.info("分段消息文件 {} 在压缩期间已被删除，丢弃压缩结果。", segment.path.getFileName());
+                    Files.deleteIfExists(target);
+                    return;
+                }
+                // 先删除原段，失败时段保持未压缩状态；删除成功后才切换到压缩文件
+                Files.delete(segment.path);
+                segment.path = target;
+                segment.blockStarts = blockStarts;
+                segment.blockPositions = blockPositions;
+                segment.compressed = true;
+                segment.mapped = null;
+                swapped = true;
+                writeIndex(segment, index, new Blocks(blockStarts, blockPositions));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            logger.info("已压缩分段消息文件: {}（{} 块）", target.getFileName(), blockStarts.length);
+        } catch (IOException e) {
+            if (swapped) {
+                // 压缩文件已经是唯一的数据，只是索引没有写成功，删除旧索引，重启时扫描重建
+                logger.error("写入压缩段 {} 的索引失败，重启时将重建", target.getFileName(), e);
+                try {
+                    Files.deleteIfExists(indexPath(segment));
+                } catch (IOException ignored) {
+                    // 旧索引与段文件不一致时加载会校验失败并重建
+                }
+                return;
+            }
+            logger.error("压缩分段消息文件 {} 失败", segment.path.getFileName(), e);
+            try {
+                Files.deleteIfExists(target);
+            } catch (IOException ignored) {
+                // 压缩失败时尽量清理半成品文件
+            }
+        }
+    }
+
+    private static void writeBlock(FileChannel out, ByteBuffer source, int from, int to) throws IOException {
+        byte[] raw = new byte[to - from];
+        source.get(from, raw);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+        try (OutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(raw);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(compressed.toByteArray());
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private void deleteExpiredSegments(long expireBefore) throws IOException {
+        Iterator<Segment> iterator = segments.values().iterator();
+        int lastDeleted = -1;
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment == active || segment.lastRecordAt() >= expireBefore) {
+                break;
+            }
+            Files.deleteIfExists(segment.path);
+            Files.deleteIfExists(indexPath(segment));
+            iterator.remove();
+            lastDeleted = segment.sequence;
+            logger.info("已按保留期删除分段消息文件: {}", segment.path.getFileName());
+        }
+        if (lastDeleted < 0) {
+            return;
+        }
+        // 段按时间有序，被删除段中的记录一定位于每个会话索引的开头，截掉即可
+        long boundary = ((long) lastDeleted + 1) << 32;
+        indexes.values().removeIf(index -> index.dropBefore(boundary) == 0);
+    }
+
+    /**
+     * 启动时加载一个段：已封存的段优先读取 .idx 索引文件，活跃段或索引不可用时扫描段文件重建，
+     * 最后一个段若存在写了一半的记录则截断
+     */
+    private void load(Segment segment, boolean last) throws IOException {
+        Path indexPath = indexPath(segment);
+        boolean activeCandidate = last && !segment.compressed;
+        SegmentIndex index = null;
+        Blocks blocks = null;
+        if (activeCandidate) {
+            // 活跃段还会继续追加，索引以扫描结果为准
+            Files.deleteIfExists(indexPath);
+        } else {
+            IndexFile indexFile = readIndex(segment, indexPath);
+            if (indexFile != null) {
+                index = indexFile.index();
+                blocks = indexFile.blocks();
+            }
+        }
+        if (index == null) {
+            ByteBuffer buffer = segment.compressed
+                    ? ByteBuffer.wrap(decompress(segment.path))
+                    : ByteBuffer.wrap(Files.readAllBytes(segment.path));
+            index = scan(buffer);
+            if (index.size() < buffer.limit()) {
+                if (activeCandidate) {
+                    logger.warn("段文件 {} 末尾存在不完整的记录，已截断 {} 字节。", segment.path.getFileName(), buffer.limit() - index.size());
+                    try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+                        channel.truncate(index.size());
+                    }
+                } else {
+                    logger.error("段文件 {} 在偏移 {} 处损坏，之后的记录将被忽略。", segment.path.getFileName(), index.size());
+                }
+            }
+            if (!activeCandidate) {
+                writeIndex(segment, index, null);
+            }
+        }
+        apply(segment, index);
+        if (blocks != null) {
+            segment.blockStarts = blocks.starts();
+            segment.blockPositions = blocks.positions();
+        }
+        if (!activeCandidate && !segment.compressed) {
+            map(segment);
+        }
+    }
+
+    /**
+     * 按顺序重放段中的记录，重建会话索引和去重窗口
+     */
+    private void apply(Segment segment, SegmentIndex index) {
+        for (IndexEntry entry : index.entries()) {
+            if (entry.type() == RECORD_TOMBSTONE) {
+                indexes.remove(entry.conversationId());
+                continue;
+            }
+            long position = ((long) segment.sequence << 32) | entry.offset();
+            index(entry.conversationId(), position, entry.fromUser());
+            if (entry.msgId() != null) {
+                recentMsgIds.put(entry.msgId(), entry.recordAt());
+            }
+        }
+        segment.size = index.size();
+        segment.lastRecordAt = index.lastRecordAt();
+    }
+
+    /**
+     * 从头扫描段内容，遇到不完整或校验失败的记录即停止
+     */
+    private static SegmentIndex scan(ByteBuffer buffer) {
+        List<IndexEntry> entries = new ArrayList<>();
+        long lastRecordAt = Long.MIN_VALUE;
+        int offset = 0;
+        while (offset + HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(offset);
+            int checksum = buffer.getInt(offset + 4);
+            if (length <= 0 || offset + HEADER_SIZE + length > buffer.limit()) {
+                break;
+            }
+            ByteBuffer payload = buffer.slice(offset + HEADER_SIZE, length);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            IndexEntry entry;
+            if (payload.get(0) == RECORD_TOMBSTONE) {
+                ByteBuffer in = payload.duplicate().position(1);
+                long recordAt = toEpochMilli(LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC));
+                entry = new IndexEntry(RECORD_TOMBSTONE, offset, readString(in), false, null, recordAt);
+            } else {
+                MessageLog log = decodeMessage(payload);
+                entry = new IndexEntry(RECORD_MESSAGE, offset, log.getConversationId(),
+                        log.getConversationId().equals(log.getFromUser()), log.getMsgId(), toEpochMilli(log.getTimestamp()));
+            }
+            entries.add(entry);
+            lastRecordAt = Math.max(lastRecordAt, entry.recordAt());
+            offset += HEADER_SIZE + length;
+        }
+        return new SegmentIndex(entries, offset, lastRecordAt);
+    }
+
+    private Path indexPath(Segment segment) {
+        return root.resolve(String.format("%010d-%d.idx", segment.sequence, segment.createdAt));
+    }
+
+    /**
+     * 写入段的索引文件：先写临时文件再原子替换，末尾带 CRC32 校验
+     * @param blocks 压缩段的分块位置，未压缩时为 null
+     */
+    private void writeIndex(Segment segment, SegmentIndex index, Blocks blocks) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + index.entries().size() * 48);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeInt(index.size());
+        out.writeLong(index.lastRecordAt());
+        out.writeInt(index.entries().size());
+        for (IndexEntry entry : index.entries()) {
+            out.writeByte(entry.type());
+            out.writeInt(entry.offset());
+            out.writeBoolean(entry.fromUser());
+            out.writeLong(entry.recordAt());
+            writeString(out, entry.conversationId());
+            writeString(out, entry.msgId());
+        }
+        if (blocks == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(blocks.starts().length);
+            for (int i = 0; i < blocks.starts().length; i++) {
+                out.writeInt(blocks.starts()[i]);
+                out.writeLong(blocks.positions()[i]);
+            }
+            out.writeLong(blocks.positions()[blocks.starts().length]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        Path target = indexPath(segment);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取段的索引文件
+     * @return 索引；文件不存在、校验失败或与段文件不一致时返回 null，由调用方扫描重建
+     */
+    private IndexFile readIndex(Segment segment, Path indexPath) {
+        if (!Files.exists(indexPath)) {
+            return null;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            if (in.limit() < 4) {
+                throw new IOException("索引文件过短");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(in.slice(0, in.limit() - 4));
+            if ((int) crc.getValue() != in.getInt(in.limit() - 4) || in.getInt() != INDEX_MAGIC || in.getInt() != INDEX_VERSION) {
+                throw new IOException("索引文件校验失败");
+            }
+            int size = in.getInt();
+            long lastRecordAt = in.getLong();
+            int count = in.getInt();
+            List<IndexEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte type = in.get();
+                int offset = in.getInt();
+                boolean fromUser = in.get() != 0;
+                long recordAt = in.getLong();
+                entries.add(new IndexEntry(type, offset, readString(in), fromUser, readString(in), recordAt));
+            }
+            Blocks blocks = null;
+            int blockCount = in.getInt();
+            if (blockCount > 0) {
+                int[] starts = new int[blockCount];
+                long[] positions = new long[blockCount + 1];
+                for (int i = 0; i < blockCount; i++) {
+                    starts[i] = in.getInt();
+                    positions[i] = in.getLong();
+                }
+                positions[blockCount] = in.getLong();
+                blocks = new Blocks(starts, positions);
+            }
+            long fileSize = Files.size(segment.path);
+            boolean consistent = segment.compressed
+                    ? blocks == null || blocks.positions()[blockCount] == fileSize
+                    : size == fileSize;
+            if (!consistent) {
+                throw new IOException("索引与段文件大小不一致");
+            }
+            return new IndexFile(new SegmentIndex(entries, size, lastRecordAt), blocks);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("段 {} 的索引文件不可用，扫描段文件重建: {}", segment.path.getFileName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static long toEpochMilli(LocalDateTime timestamp) {
+        return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static byte[] decompress(Path path) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(path))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] encodeMessage(MessageLog log) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + (log.getContent() == null ? 0 : log.getContent().length() * 3));
+        DataOutputStream out = new DataOutputStream(bytes);
+        LocalDateTime timestamp = log.getTimestamp() != null ? log.getTimestamp() : LocalDateTime.now();
+        out.writeByte(RECORD_MESSAGE);
+        out.writeLong(timestamp.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(timestamp.getNano());
+        writeString(out, log.getConversationId());
+        writeString(out, log.getMsgId());
+        writeString(out, log.getFromUser());
+        writeString(out, log.getToUser());
+        writeString(out, log.getMsgType());
+        writeString(out, log.getContent());
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeTombstone(String conversationId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        LocalDateTime now = LocalDateTime.now();
+        out.writeByte(RECORD_TOMBSTONE);
+        out.writeLong(now.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(now.getNano());
+        writeString(out, conversationId);
+        return bytes.toByteArray();
+    }
+
+    private static MessageLog decodeMessage(ByteBuffer payload) {
+        ByteBuffer in = payload.duplicate();
+        in.get();
+        MessageLog log = new MessageLog();
+        log.setTimestamp(LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC));
+        log.setConversationId(readString(in));
+        log.setMsgId(readString(in));
+        log.setFromUser(readString(in));
+        log.setToUser(readString(in));
+        log.setMsgType(readString(in));
+        log.setContent(readString(in));
+        return log;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Segment {
+        private final int sequence;
+        private final long createdAt;
+        private volatile Path path;
+        private volatile boolean compressed;
+        private volatile ByteBuffer mapped;
+        // 压缩段每块在解压后内容中的起始偏移，以及在压缩文件中的位置（多一项为文件末尾）
+        private volatile int[] blockStarts;
+        private volatile long[] blockPositions;
+        private long size;
+        private volatile long lastRecordAt = Long.MIN_VALUE;
+
+        private Segment(int sequence, long createdAt, Path path, boolean compressed) {
+            this.sequence = sequence;
+            this.createdAt = createdAt;
+            this.path = path;
+            this.compressed = compressed;
+        }
+
+        /**
+         * 段中最后一条记录的时间，用于判断压缩和过期；空段按创建时间计算
+         */
+        private long lastRecordAt() {
+            return lastRecordAt == Long.MIN_VALUE ? createdAt : lastRecordAt;
+        }
+    }
+
+    /**
+     * 已封存段中的一段连续内容，start 为其在段内的起始偏移
+     */
+    private record Block(int sequence, int index, int start, ByteBuffer buffer) {
+
+        private Block(int sequence, int start, ByteBuffer buffer) {
+            this(sequence, -1, start, buffer);
+        }
+
+        private Block duplicate() {
+            return new Block(sequence, index, start, buffer.duplicate());
+        }
+    }
+
+    /**
+     * 索引文件中的一条记录
+     */
+    private record IndexEntry(byte type, int offset, String conversationId, boolean fromUser, String msgId, long recordAt) {
+    }
+
+    private record SegmentIndex(List<IndexEntry> entries, int size, long lastRecordAt) {
+    }
+
+    private record Blocks(int[] starts, long[] positions) {
+    }
+
+    private record IndexFile(SegmentIndex index, Blocks blocks) {
+    }
+
+    /**
+     * 单个会话的记录位置索引，按写入顺序排列
+     */
+    private static final class ConversationIndex {
+        private long[] positions = new long[16];
+        private BitSet fromUser = new BitSet();
+        private int size;
+
+        private void add(long position, boolean sentByUser) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            fromUser.set(size, sentByUser);
+            positions[size++] = position;
+        }
+
+        private int fromUserCount() {
+            return fromUser.cardinality();
+        }
+
+        /**
+         * 丢弃位置小于 boundary 的记录，返回剩余条数
+         */
+        private int dropBefore(long boundary) {
+            int drop = 0;
+            while (drop < size && positions[drop] < boundary) {
+                drop++;
+            }
+            if (drop > 0) {
+                positions = Arrays.copyOfRange(positions, drop, Math.max(drop + 16, positions.length));
+                fromUser = fromUser.get(drop, Math.max(drop, size));
+                size -= drop;
+            }
+            return size;
+        }
+    }
+}
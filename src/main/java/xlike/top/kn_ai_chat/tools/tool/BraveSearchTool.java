@@ -5,6 +5,7 @@ import dev.langchain4j.agent.tool.Tool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
+import xlike.top.kn_ai_chat.service.SearchResultCache;
 import xlike.top.kn_ai_chat.tools.dto.BraveApiDTO;
 import xlike.top.kn_ai_chat.utils.BraveSearchUtil;
 
@@ -16,9 +17,11 @@ public class BraveSearchTool {
 
     private static final Logger logger = LoggerFactory.getLogger(BraveSearchTool.class);
     private final BraveSearchUtil braveSearchUtil;
+    private final SearchResultCache searchResultCache;
 
-    public BraveSearchTool(BraveSearchUtil braveSearchUtil) {
+    public BraveSearchTool(BraveSearchUtil braveSearchUtil, SearchResultCache searchResultCache) {
         this.braveSearchUtil = braveSearchUtil;
+        this.searchResultCache = searchResultCache;
     }
 
     @Tool(
@@ -28,8 +31,9 @@ public class BraveSearchTool {
     public String search(@P("任何需要 搜索 的问题或关键词") String query) {
         logger.info("执行 Web 搜索, 查询: '{}'", query);
         try {
-            BraveApiDTO.WebSearchApiResponse response = braveSearchUtil.performWebSearch(query);
-            return formatSearchResponse(response);
+            // 相同查询在缓存有效期内直接复用结果，不再消耗 API 配额
+            return searchResultCache.get("brave", query,
+                    () -> formatSearchResponse(braveSearchUtil.performWebSearch(query)));
         } catch (Exception e) {
             logger.error("Web 搜索工具在执行查询 '{}' 时发生错误", query, e);
             return "抱歉，在为您执行在线搜索时遇到了网络或服务问题，请稍后重试。";
@@ -2,14 +2,16 @@ package xlike.top.kn_ai_chat.tools.tool;
 
 import dev.langchain4j.agent.tool.P;
 import dev.langchain4j.agent.tool.Tool;
+import jakarta.annotation.PreDestroy;
 import jakarta.mail.*;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import xlike.top.kn_ai_chat.service.ImapMailboxService;
 
-import java.io.IOException;
 import java.util.*;
 
 /**
@@ -24,26 +26,31 @@ public class EmailTool {
     private final String username;
     private final String password;
 
-    // 读取邮件用
-    private final String imapHost;
-    private final String imapPort;
-
     private final Session smtpSession;
+    private final long smtpIdleSeconds;
+
+    // 读取邮件共用的 IMAP 连接和本地邮件索引
+    private final ImapMailboxService mailboxService;
+
+    // 发信复用的 SMTP 连接，只在持有 transportLock 时访问
+    private final Object transportLock = new Object();
+    private Transport transport;
+    private long transportLastUsed;
 
     public EmailTool(
             @Value("${tools.email.host}") String smtpHost,
             @Value("${tools.email.port}") String smtpPort,
             @Value("${tools.email.username}") String username,
             @Value("${tools.email.password}") String password,
-            @Value("${tools.email.imap.host}") String imapHost,
-            @Value("${tools.email.imap.port}") String imapPort
+            @Value("${tools.email.smtp-idle-seconds:60}") long smtpIdleSeconds,
+            ImapMailboxService mailboxService
     ) {
         this.smtpHost = smtpHost;
         this.smtpPort = smtpPort;
         this.username = username;
         this.password = password;
-        this.imapHost = imapHost;
-        this.imapPort = imapPort;
+        this.smtpIdleSeconds = smtpIdleSeconds;
+        this.mailboxService = mailboxService;
 
         // SMTP用于发信
         Properties props = new Properties();
@@ -119,7 +126,7 @@ public class EmailTool {
             } else {
                 message.setText(content);
             }
-            Transport.send(message);
+            sendReusingConnection(message);
 
             String response = "邮件已成功发送给 " + String.join(", ", to);
             if (cc != null && !cc.isEmpty()) {
@@ -132,20 +139,55 @@ public class EmailTool {
         }
     }
 
+    /**
+     * 复用已建立的 SMTP 连接发送，省去每封邮件的连接、TLS 握手和认证；连接失效时重新建立
+     */
+    private void sendReusingConnection(MimeMessage message) throws MessagingException {
+        message.saveChanges();
+        synchronized (transportLock) {
+            // SMTP 的 isConnected 会发送 NOOP 确认连接仍然可用
+            if (transport == null || !transport.isConnected()) {
+                closeTransport();
+                transport = smtpSession.getTransport("smtp");
+                transport.connect(smtpHost, Integer.parseInt(smtpPort), username, password);
+            }
+            transport.sendMessage(message, message.getAllRecipients());
+            transportLastUsed = System.currentTimeMillis();
+        }
+    }
 
-    // 共用：获取IMAP连接
-    private Store connectImapStore() throws MessagingException {
-        Properties props = new Properties();
-        props.put("mail.store.protocol", "imap");
-        props.put("mail.imap.host", imapHost);
-        props.put("mail.imap.port", imapPort);
-        props.put("mail.imap.ssl.enable", "true");
-        Session session = Session.getInstance(props);
-        Store store = session.getStore("imap");
-        store.connect(imapHost, Integer.parseInt(imapPort), username, password);
-        return store;
+    /**
+     * 关闭空闲过久的 SMTP 连接，避免长期占用服务器连接
+     */
+    @Scheduled(fixedDelayString = "${tools.email.smtp-idle-check-ms:30000}")
+    public void closeIdleTransport() {
+        synchronized (transportLock) {
+            if (transport != null && System.currentTimeMillis() - transportLastUsed > smtpIdleSeconds * 1000) {
+                closeTransport();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        synchronized (transportLock) {
+            closeTransport();
+        }
+    }
+
+    private void closeTransport() {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            log.debug("关闭 SMTP 连接时出错", e);
+        }
+        transport = null;
     }
 
+
     /**
      * 读取最近10封邮件（默认INBOX）
      */
@@ -159,35 +201,12 @@ public class EmailTool {
      */
     @Tool(name = "read_emails", value = "读取邮箱中最新的若干封邮件，参数为数量。")
     public String readEmails(@P("要读取的邮件数量") int count) {
-        try (Store store = connectImapStore()) {
-            Folder inbox = store.getFolder("INBOX");
-            inbox.open(Folder.READ_ONLY);
-            int total = inbox.getMessageCount();
-            if (total == 0) {
+        try {
+            List<ImapMailboxService.CachedMail> mails = mailboxService.recentMessages(count);
+            if (mails.isEmpty()) {
                 return "邮箱中没有邮件。";
             }
-            int start = Math.max(1, total - count + 1);
-            Message[] messages = inbox.getMessages(start, total);
-            List<String> results = new ArrayList<>();
-            for (int i = messages.length - 1; i >= 0; i--) {
-                Message msg = messages[i];
-                String subject = msg.getSubject();
-                Address from = (msg.getFrom() != null && msg.getFrom().length > 0) ? msg.getFrom()[0] : null;
-                Date sent = msg.getSentDate();
-
-                String content = getTextFromMessage(msg);
-                // 截取正文内容长度，避免太长，可根据需求调整
-                if (content.length() > 500) {
-                    content = content.substring(0, 500) + "...";
-                }
-                results.add(String.format("主题: %s\n发件人: %s\n时间: %s\n正文:\n%s\n----------------------",
-                        subject,
-                        from,
-                        sent,
-                        content));
-            }
-            return String.join("\n", results);
-
+            return format(mails);
         } catch (Exception e) {
             return "读取邮件失败: " + e.getMessage();
         }
@@ -200,78 +219,27 @@ public class EmailTool {
     public String readEmailsFromSender(
             @P("发件人邮箱地址") String senderEmail,
             @P("要读取的邮件数量") int count) {
-        try (Store store = connectImapStore()) {
-            Folder inbox = store.getFolder("INBOX");
-            inbox.open(Folder.READ_ONLY);
-
-            Message[] messages = inbox.getMessages();
-            List<String> results = new ArrayList<>();
-            // 从后往前遍历邮件，最近的邮件在后面，直到满足数量
-            for (int i = messages.length - 1; i >= 0 && results.size() < count; i--) {
-                Message msg = messages[i];
-                Address[] fromArr = msg.getFrom();
-                if (fromArr != null && fromArr.length > 0) {
-                    String fromStr = fromArr[0].toString();
-                    if (fromStr.contains(senderEmail)) {
-                        String subject = msg.getSubject();
-                        Date sent = msg.getSentDate();
-
-                        String content;
-                        try {
-                            content = getTextFromMessage(msg);
-                            // 文本过长时截断，避免返回信息过大
-                            if (content.length() > 500) {
-                                content = content.substring(0, 500) + "...";
-                            }
-                        } catch (Exception e) {
-                            content = "[无法读取邮件正文: " + e.getMessage() + "]";
-                        }
-
-                        String item = String.format(
-                                "主题: %s\n发件人: %s\n时间: %s\n正文:\n%s\n----------------------",
-                                subject, fromStr, sent, content);
-                        results.add(item);
-                    }
-                }
-            }
-            if (results.isEmpty()) {
+        try {
+            List<ImapMailboxService.CachedMail> mails = mailboxService.messagesFromSender(senderEmail, count);
+            if (mails.isEmpty()) {
                 return "没有找到来自该发件人的邮件。";
             }
-            return String.join("\n", results);
+            return format(mails);
         } catch (Exception e) {
             log.error("读取发件人邮件失败", e);
             return "读取发件人邮件失败: " + e.getMessage();
         }
     }
 
-
-
-    public String getTextFromMessage(Message message) throws MessagingException, IOException {
-        if (message.isMimeType("text/plain")) {
-            return message.getContent().toString();
-        } else if (message.isMimeType("text/html")) {
-            // 如果是HTML，可以选择直接返回HTML或者用Jsoup等库清理HTML标签
-            return message.getContent().toString();
-        } else if (message.isMimeType("multipart/*")) {
-            Multipart multipart = (Multipart) message.getContent();
-            return getTextFromMultipart(multipart);
-        }
-        return "";
-    }
-
-    private String getTextFromMultipart(Multipart multipart) throws MessagingException, IOException {
-        StringBuilder result = new StringBuilder();
-        for (int i = 0; i < multipart.getCount(); i++) {
-            BodyPart bodyPart = multipart.getBodyPart(i);
-            if (bodyPart.isMimeType("text/plain")) {
-                result.append(bodyPart.getContent().toString());
-            } else if (bodyPart.isMimeType("text/html")) {
-                // 如果需要只保留纯文本，可以用Jsoup库清理HTML标签，否则直接返回HTML内容
-                result.append(bodyPart.getContent().toString());
-            } else if (bodyPart.getContent() instanceof Multipart) {
-                result.append(getTextFromMultipart((Multipart) bodyPart.getContent()));
-            }
+    private String format(List<ImapMailboxService.CachedMail> mails) {
+        List<String> results = new ArrayList<>();
+        for (ImapMailboxService.CachedMail mail : mails) {
+            results.add(String.format("主题: %s\n发件人: %s\n时间: %s\n正文:\n%s\n----------------------",
+                    mail.subject(),
+                    mail.from(),
+                    mail.sentDate(),
+                    mail.body()));
         }
-        return result.toString();
+        return String.join("\n", results);
     }
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import dev.langchain4j.agent.tool.Tool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
+import xlike.top.kn_ai_chat.service.SearchResultCache;
 import xlike.top.kn_ai_chat.utils.GoogleSearchUtil;
 
 import java.util.List;
@@ -19,9 +20,11 @@ public class GoogleSearchTool {
 
     private static final Logger logger = LoggerFactory.getLogger(GoogleSearchTool.class);
     private final GoogleSearchUtil googleSearchUtil;
+    private final SearchResultCache searchResultCache;
 
-    public GoogleSearchTool(GoogleSearchUtil googleSearchUtil) {
+    public GoogleSearchTool(GoogleSearchUtil googleSearchUtil, SearchResultCache searchResultCache) {
         this.googleSearchUtil = googleSearchUtil;
+        this.searchResultCache = searchResultCache;
     }
 
     @Tool(
@@ -31,8 +34,9 @@ public class GoogleSearchTool {
     public String search(@P("任何需要在线搜索的问题或关键词") String query) {
         logger.info("执行 Google Web 搜索, 查询: '{}'", query);
         try {
-            List<Result> results = googleSearchUtil.performSearch(query);
-            return formatResponse(query, results);
+            // 相同查询在缓存有效期内直接复用结果，不再消耗 API 配额
+            return searchResultCache.get("google", query,
+                    () -> formatResponse(query, googleSearchUtil.performSearch(query)));
         } catch (Exception e) {
             logger.error("Google 搜索工具在执行查询 '{}' 时发生错误", query, e);
             // 将更具体的错误信息返回给 AI，以便调试
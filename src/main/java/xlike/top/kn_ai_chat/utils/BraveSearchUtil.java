@@ -2,19 +2,17 @@ package xlike.top.kn_ai_chat.utils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 import xlike.top.kn_ai_chat.tools.dto.BraveApiDTO;
 
-import java.net.InetSocketAddress;
-import java.net.Proxy;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Administrator
@@ -29,24 +27,21 @@ public class BraveSearchUtil {
     private static final String BRAVE_SEARCH_API_URL = "https://api.search.brave.com/res/v1/web/search";
 
     /**
-     * 构造函数 - 在这里完成代理的配置和 RestTemplate 的实例化。
-     * 它不再接收 RestTemplate Bean，而是自己创建。
+     * 构造函数 - 复用全局共享的 RestTemplate（底层 HttpClient 的连接池和超时配置都在 WeChatConfig 中统一管理）。
      *
+     * @param restTemplate Spring 注入的共享 RestTemplate
      * @param objectMapper Spring 自动注入 ObjectMapper
      * @param braveApiKey  Spring 从 application.yml 注入 API Key
      */
-    public BraveSearchUtil(ObjectMapper objectMapper, @Value("${tools.brave.api-key}") String braveApiKey) {
+    public BraveSearchUtil(RestTemplate restTemplate, ObjectMapper objectMapper, @Value("${tools.brave.api-key}") String braveApiKey) {
+        this.restTemplate = restTemplate;
         this.objectMapper = objectMapper;
         this.braveApiKey = braveApiKey;
-        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
-//        Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", 7897));
-//        requestFactory.setProxy(proxy);
-        this.restTemplate = new RestTemplate(requestFactory);
     }
 
     /**
      * 执行 Brave Web Search API 请求。
-     * 此方法现在会自动使用上面构造函数中配置好的、带代理的 RestTemplate。
+     * 请求 gzip 压缩的响应，并在读取时按 Content-Encoding 解压后直接从流中解析。
      *
      * @param query 搜索查询词
      * @return 解析后的 WebSearchApiResponse DTO
@@ -57,24 +52,27 @@ public class BraveSearchUtil {
             throw new IllegalStateException("Brave Search API Key 未在配置中提供。");
         }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("X-Subscription-Token", braveApiKey);
-        headers.set("Accept", MediaType.APPLICATION_JSON_VALUE);
-        headers.set("Accept-Encoding", "gzip");
-
-        HttpEntity<String> entity = new HttpEntity<>(headers);
-
-        String url = UriComponentsBuilder.fromHttpUrl(BRAVE_SEARCH_API_URL)
+        URI uri = UriComponentsBuilder.fromUriString(BRAVE_SEARCH_API_URL)
                 .queryParam("q", query)
-                .toUriString();
+                .encode()
+                .build()
+                .toUri();
 
         try {
-            // 这里的 restTemplate 实例就是我们带代理的那个实例
-            ResponseEntity<String> response = this.restTemplate.exchange(url, HttpMethod.GET, entity, String.class);
-            return objectMapper.readValue(response.getBody(), BraveApiDTO.WebSearchApiResponse.class);
+            return this.restTemplate.execute(uri, HttpMethod.GET, request -> {
+                HttpHeaders headers = request.getHeaders();
+                headers.set("X-Subscription-Token", braveApiKey);
+                headers.set(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE);
+                headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+            }, response -> {
+                boolean gzip = "gzip".equalsIgnoreCase(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+                try (InputStream body = gzip ? new GZIPInputStream(response.getBody()) : response.getBody()) {
+                    return objectMapper.readValue(body, BraveApiDTO.WebSearchApiResponse.class);
+                }
+            });
         } catch (Exception e) {
             // 将异常向上层抛出，由 Tool 层进行用户友好的处理
             throw new RuntimeException("调用 Brave Web Search API 失败: " + e.getMessage(), e);
         }
     }
-}
\ No newline at end of file
+}
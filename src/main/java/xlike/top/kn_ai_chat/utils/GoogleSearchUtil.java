@@ -1,17 +1,15 @@
 package xlike.top.kn_ai_chat.utils;
 
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.gson.GsonFactory;
-import com.google.api.services.customsearch.v1.CustomSearchAPI;
 import com.google.api.services.customsearch.v1.model.Result;
 import com.google.api.services.customsearch.v1.model.Search;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Proxy;
+import java.net.URI;
 import java.util.List;
 
 /**
@@ -20,39 +18,38 @@ import java.util.List;
 @Component
 public class GoogleSearchUtil {
 
-    private final CustomSearchAPI customSearchAPI;
+    private static final String CUSTOM_SEARCH_API_URL = "https://www.googleapis.com/customsearch/v1";
+
+    private final RestTemplate restTemplate;
     private final String cxId;
     private final String apiKey;
 
-//    public GoogleSearchUtil(@Value("${tools.google.api-key}") String apiKey,
-//                            @Value("${tools.google.cx-id}") String cxId) {
-//        this.cxId = cxId;
-//        this.apiKey = apiKey;
-//        Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", 7897));
-//        HttpTransport transport = new NetHttpTransport.Builder().setProxy(proxy).build();
-//        this.customSearchAPI = new CustomSearchAPI.Builder(transport, new GsonFactory(), null)
-//                .setApplicationName("kn-ai-chat")
-//                .build();
-//    }
-
-    public GoogleSearchUtil(@Value("${tools.google.api-key}") String apiKey,
+    /**
+     * 直接调用 Custom Search JSON API，复用全局共享的 RestTemplate（连接池、超时配置在 WeChatConfig 中统一管理），
+     * 不再为搜索单独创建 HttpTransport；响应仍解析为 Google 客户端库的模型类。
+     */
+    public GoogleSearchUtil(RestTemplate restTemplate,
+                            @Value("${tools.google.api-key}") String apiKey,
                             @Value("${tools.google.cx-id}") String cxId) {
+        this.restTemplate = restTemplate;
         this.cxId = cxId;
         this.apiKey = apiKey;
-        // 创建默认的 HttpTransport，不使用代理
-        HttpTransport transport = new NetHttpTransport();
-        this.customSearchAPI = new CustomSearchAPI.Builder(transport, new GsonFactory(), null)
-                .setApplicationName("kn-ai-chat")
-                .build();
     }
 
 
     public List<Result> performSearch(String query) throws IOException {
-        CustomSearchAPI.Cse.List request = customSearchAPI.cse().list();
-        request.setQ(query);
-        request.setCx(this.cxId);
-        request.setKey(this.apiKey);
-        Search results = request.execute();
+        URI uri = UriComponentsBuilder.fromUriString(CUSTOM_SEARCH_API_URL)
+                .queryParam("key", this.apiKey)
+                .queryParam("cx", this.cxId)
+                .queryParam("q", query)
+                .encode()
+                .build()
+                .toUri();
+        String json = restTemplate.getForObject(uri, String.class);
+        if (json == null) {
+            return List.of();
+        }
+        Search results = GsonFactory.getDefaultInstance().fromString(json, Search.class);
         return results.getItems();
     }
-}
\ No newline at end of file
+}
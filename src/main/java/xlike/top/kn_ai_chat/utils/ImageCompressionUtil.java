@@ -1,12 +1,32 @@
 package xlike.top.kn_ai_chat.utils;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import net.coobird.thumbnailator.Thumbnails;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+import xlike.top.kn_ai_chat.media.MediaTempArena;
 
-import java.io.File;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
 import java.util.Optional;
 
 /**
@@ -20,64 +40,319 @@ public class ImageCompressionUtil {
 
     private static final Logger logger = LoggerFactory.getLogger(ImageCompressionUtil.class);
 
+    /**
+     * 二分查找质量因子的精度
+     */
+    private static final double QUALITY_PRECISION = 0.05;
+
+    /**
+     * 结果达到目标大小的这个比例后即停止搜索
+     */
+    private static final double GOOD_ENOUGH_RATIO = 0.9;
+
+    /**
+     * 按面积比例缩小尺寸时预留的余量，避免缩小后仍略微超标而多编码一次
+     */
+    private static final double SCALE_SAFETY = 0.9;
+
+    private final MediaTempArena mediaTempArena;
+    private final MeterRegistry meterRegistry;
+    private final Timer compressTimer;
+    private final DistributionSummary encodesSummary;
+
+    @Value("${image.compress.min-quality:0.3}")
+    private double minQuality;
+
+    @Value("${image.compress.max-quality:0.92}")
+    private double maxQuality;
+
+    @Value("${image.compress.downscale-quality:0.75}")
+    private double downscaleQuality;
+
+    @Value("${image.compress.max-encodes:8}")
+    private int maxEncodes;
+
+    public ImageCompressionUtil(MediaTempArena mediaTempArena, MeterRegistry meterRegistry) {
+        this.mediaTempArena = mediaTempArena;
+        this.meterRegistry = meterRegistry;
+        this.compressTimer = Timer.builder("image.compress")
+                .description("图片压缩到目标大小的耗时")
+                .register(meterRegistry);
+        this.encodesSummary = DistributionSummary.builder("image.compress.encodes")
+                .description("每次压缩实际编码的次数")
+                .register(meterRegistry);
+    }
+
     /**
      * 如果需要，则压缩图片以满足目标文件大小。
+     * <p>
+     * 原图只解码一次，之后所有尝试都在内存中对同一份像素编码：
+     * <ol>
+     *     <li>根据目标大小和像素数估算一个起始质量；</li>
+     *     <li>超标时按实际大小修正质量，之后在 [min-quality, max-quality] 之间二分查找，结果接近目标大小即停止；</li>
+     *     <li>最低质量仍然超标时，按面积比例缩小尺寸后再编码。</li>
+     * </ol>
+     * 编码次数不超过 max-encodes，实际次数记录在日志和 image.compress.encodes 指标中。
      *
-     * @param sourceFile      原始图片文件
+     * @param source          原始图片
      * @param targetSizeBytes 目标文件大小（字节）
-     * @return 返回一个指向最终文件的 Optional。
-     * 如果原始文件已小于目标大小，则返回原始文件。
-     * 如果压缩成功，则返回一个新的临时文件。
+     * @return 返回一个指向最终图片的 Optional。
+     * 如果原始图片已小于目标大小，则返回传入的同一个对象。
+     * 如果压缩成功，则返回一个新的 MediaBuffer，由调用方负责关闭。
      * 如果压缩失败，则返回 Optional.empty()。
      */
-    public Optional<File> compressImageIfNecessary(File sourceFile, long targetSizeBytes) {
-        // 1. 如果原始文件已经达标，则直接返回
-        if (sourceFile.length() <= targetSizeBytes) {
-            logger.info("图片大小 {}KB 已小于目标 {}KB，无需压缩。", sourceFile.length() / 1024, targetSizeBytes / 1024);
-            return Optional.of(sourceFile);
+    public Optional<MediaBuffer> compressImageIfNecessary(MediaBuffer source, long targetSizeBytes) {
+        try {
+            long sourceSize = source.size();
+            // 1. 如果原始文件已经达标，则直接返回
+            if (sourceSize <= targetSizeBytes) {
+                logger.info("图片大小 {}KB 已小于目标 {}KB，无需压缩。", sourceSize / 1024, targetSizeBytes / 1024);
+                return Optional.of(source);
+            }
+
+            logger.info("图片大小 {}KB 超过目标 {}KB，开始压缩...", sourceSize / 1024, targetSizeBytes / 1024);
+            Timer.Sample sample = Timer.start(meterRegistry);
+            CompressionSearch search = new CompressionSearch(decodeRgb(source), targetSizeBytes);
+            byte[] compressed = search.run();
+            sample.stop(compressTimer);
+            encodesSummary.record(search.encodes);
+
+            if (compressed == null) {
+                logger.error("经过 {} 次编码，图片仍大于目标 {}KB，压缩失败。", search.encodes, targetSizeBytes / 1024);
+                return Optional.empty();
+            }
+
+            logger.info("图片压缩成功，最终大小: {}KB，质量因子 {}，尺寸 {}x{}，共编码 {} 次。", compressed.length / 1024,
+                    String.format("%.2f", search.bestQuality), search.bestWidth, search.bestHeight, search.encodes);
+            return Optional.of(mediaTempArena.wrap(compressed, "compressed.jpg"));
+
+        } catch (IOException | RuntimeException e) {
+            logger.error("图片压缩过程中发生异常", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 一次压缩过程的搜索状态
+     */
+    private class CompressionSearch {
+
+        private final BufferedImage image;
+        private final long targetSizeBytes;
+        private int encodes;
+        private byte[] best;
+        private double bestQuality;
+        private int bestWidth;
+        private int bestHeight;
+
+        CompressionSearch(BufferedImage image, long targetSizeBytes) {
+            this.image = image;
+            this.targetSizeBytes = targetSizeBytes;
         }
 
-        logger.info("图片大小 {}KB 超过目标 {}KB，开始压缩...", sourceFile.length() / 1024, targetSizeBytes / 1024);
+        byte[] run() throws IOException {
+            // 2. 二分查找满足目标大小的最高质量，第一次探测使用估算值
+            double low = minQuality;
+            double high = maxQuality;
+            double quality = estimateQuality(image.getWidth(), image.getHeight(), targetSizeBytes);
+            // 最近一次超标的大小，也就是已尝试过的最低质量对应的大小
+            long failedSize = 0;
+            while (encodes < maxEncodes && high - low > QUALITY_PRECISION) {
+                byte[] encoded = encodeJpeg(image, quality);
+                if (encoded.length <= targetSizeBytes) {
+                    accept(encoded, quality, image);
+                    low = quality;
+                    // 已经接近目标大小，继续提高质量的收益很小
+                    if (encoded.length >= targetSizeBytes * GOOD_ENOUGH_RATIO) {
+                        break;
+                    }
+                    quality = (low + high) / 2;
+                } else {
+                    high = quality;
+                    failedSize = encoded.length;
+                    if (quality <= minQuality) {
+                        break;
+                    }
+                    // 还没有可用结果时，按体积模型根据实际大小修正质量，而不是从区间中点慢慢逼近
+                    quality = best == null
+                            ? Math.max(minQuality, quality + log2((double) targetSizeBytes / encoded.length) / 8 - QUALITY_PRECISION)
+                            : (low + high) / 2;
+                }
+            }
+            if (best != null || encodes >= maxEncodes) {
+                return best;
+            }
 
-        try {
-            // 2. 创建一个用于存放压缩后图片的新临时文件
-            File compressedFile = File.createTempFile("compressed-", ".jpg");
-            compressedFile.deleteOnExit();
-            // 3. 执行压缩
-            //    - scale(1.0) 保持原始尺寸不变
-            //    - outputQuality(0.85) 设置一个初始的较高质量
-            //    - outputFormat("jpg") 转换为JPG格式通常能获得更好的压缩率
-            //    - toFile() 保存到目标文件
-            Thumbnails.of(sourceFile)
-                    .scale(1.0)
-                    .outputQuality(0.85)
-                    .outputFormat("jpg")
-                    .toFile(compressedFile);
-
-            // 4. 循环检查，如果还不够小，则进一步降低质量
-            //    这是一个简单的迭代压缩策略
-            double quality = 0.80;
-            while (compressedFile.length() > targetSizeBytes && quality > 0.1) {
-                logger.info("当前大小 {}KB，继续压缩，质量因子: {}", compressedFile.length() / 1024, quality);
-                Thumbnails.of(sourceFile)
-                        .scale(1.0)
-                        .outputQuality(quality)
-                        .outputFormat("jpg")
-                        .toFile(compressedFile);
-                quality -= 0.1;
+            // 质量区间过窄（min-quality 与 max-quality 过于接近）时上面一次都没有编码，先按最低质量编码一次得到缩小的依据
+            if (failedSize == 0) {
+                byte[] encoded = encodeJpeg(image, minQuality);
+                if (encoded.length <= targetSizeBytes) {
+                    accept(encoded, minQuality, image);
+                    return best;
+                }
+                failedSize = encoded.length;
             }
 
-            if (compressedFile.length() > targetSizeBytes) {
-                logger.error("经过多次压缩，图片大小 {}KB 仍大于目标 {}KB，压缩失败。", compressedFile.length() / 1024, targetSizeBytes / 1024);
-                return Optional.empty();
+            // 3. 最低质量仍然超标，按面积比例缩小尺寸
+            BufferedImage scaled = image;
+            long lastSize = failedSize;
+            while (encodes < maxEncodes) {
+                double factor = Math.sqrt((double) targetSizeBytes / lastSize) * SCALE_SAFETY;
+                int width = Math.max(1, (int) (scaled.getWidth() * factor));
+                int height = Math.max(1, (int) (scaled.getHeight() * factor));
+                scaled = Thumbnails.of(scaled).size(width, height).asBufferedImage();
+                byte[] encoded = encodeJpeg(scaled, downscaleQuality);
+                if (encoded.length <= targetSizeBytes) {
+                    accept(encoded, downscaleQuality, scaled);
+                    return best;
+                }
+                lastSize = encoded.length;
+            }
+            return null;
+        }
+
+        private void accept(byte[] encoded, double quality, BufferedImage from) {
+            best = encoded;
+            bestQuality = quality;
+            bestWidth = from.getWidth();
+            bestHeight = from.getHeight();
+        }
+
+        private byte[] encodeJpeg(BufferedImage rgb, double quality) throws IOException {
+            encodes++;
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (ImageOutputStream imageOutput = new MemoryCacheImageOutputStream(out)) {
+                writer.setOutput(imageOutput);
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality((float) quality);
+                writer.write(null, new IIOImage(rgb, null, null), param);
+            } finally {
+                writer.dispose();
             }
+            logger.debug("第 {} 次编码：质量因子 {}，尺寸 {}x{}，大小 {}KB", encodes, String.format("%.2f", quality),
+                    rgb.getWidth(), rgb.getHeight(), out.size() / 1024);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * 根据每像素可用的字节数估算起始质量。
+     * 经验上 JPEG 在质量 0.75 时约为每像素 1 比特，质量每提高 0.25 体积约翻 2 倍。
+     */
+    private double estimateQuality(int width, int height, long targetSizeBytes) {
+        double bitsPerPixel = targetSizeBytes * 8.0 / ((double) width * height);
+        double estimated = 0.75 + log2(bitsPerPixel) / 8;
+        return Math.max(minQuality, Math.min(maxQuality, estimated));
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    /**
+     * 解码为不带透明通道的 RGB 图片（JPEG 不支持透明通道，透明区域填充白色），并按 EXIF 方向旋转
+     */
+    private BufferedImage decodeRgb(MediaBuffer source) throws IOException {
+        BufferedImage decoded;
+        try (InputStream in = source.openStream()) {
+            decoded = Thumbnails.of(in).scale(1.0).asBufferedImage();
+        }
+        if (decoded.getType() == BufferedImage.TYPE_INT_RGB || decoded.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            return decoded;
+        }
+        BufferedImage rgb = new BufferedImage(decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+            graphics.drawImage(decoded, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return rgb;
+    }
 
-            logger.info("图片压缩成功，最终大小: {}KB", compressedFile.length() / 1024);
-            return Optional.of(compressedFile);
+    /**
+     * 将图片缩小到长边不超过 maxEdge，供视觉模型识别。视觉模型会把大图缩到自身的有效分辨率，
+     * 提前在本地缩小可以大幅减少请求体积和上传时间。PNG 保持 PNG（保留透明通道），其它格式输出 JPG；
+     * 会按 EXIF 方向自动旋转。
+     *
+     * @param source  原始图片
+     * @param maxEdge 长边的最大像素数
+     * @return 尺寸已经符合要求或格式无法识别时返回传入的同一个对象；
+     * 缩小成功时返回新的 MediaBuffer，由调用方负责关闭；失败时返回 Optional.empty()。
+     */
+    public Optional<MediaBuffer> downscaleIfLarger(MediaBuffer source, int maxEdge) {
+        try {
+            ImageInfo info = readInfo(source);
+            if (info == null || Math.max(info.width(), info.height()) <= maxEdge) {
+                return Optional.of(source);
+            }
 
-        } catch (IOException e) {
-            logger.error("图片压缩过程中发生IO异常", e);
+            boolean png = "png".equalsIgnoreCase(info.formatName());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (InputStream in = source.openStream()) {
+                Thumbnails.of(in)
+                        .size(maxEdge, maxEdge)
+                        .outputQuality(0.85)
+                        .outputFormat(png ? "png" : "jpg")
+                        .toOutputStream(out);
+            }
+            logger.info("图片 {}x{} ({}KB) 已缩小到长边 {}px，大小 {}KB。", info.width(), info.height(),
+                    source.size() / 1024, maxEdge, out.size() / 1024);
+            return Optional.of(mediaTempArena.wrap(out.toByteArray(), png ? "scaled.png" : "scaled.jpg"));
+        } catch (IOException | RuntimeException e) {
+            logger.error("缩小图片 {} 失败", source.filename(), e);
             return Optional.empty();
         }
     }
+
+    /**
+     * 根据文件头识别图片的 MIME 类型，无法识别时按 JPEG 处理
+     */
+    public static String detectMimeType(MediaBuffer image) throws IOException {
+        byte[] header = new byte[12];
+        int n;
+        try (InputStream in = image.openStream()) {
+            n = in.readNBytes(header, 0, header.length);
+        }
+        if (n >= 8 && (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G') {
+            return "image/png";
+        }
+        if (n >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F') {
+            return "image/gif";
+        }
+        if (n >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+            return "image/webp";
+        }
+        if (n >= 2 && header[0] == 'B' && header[1] == 'M') {
+            return "image/bmp";
+        }
+        return "image/jpeg";
+    }
+
+    private record ImageInfo(String formatName, int width, int height) {}
+
+    /**
+     * 只读取图片头部的格式和尺寸，不解码像素
+     */
+    private ImageInfo readInfo(MediaBuffer source) throws IOException {
+        try (InputStream in = source.openStream();
+             ImageInputStream imageInput = new MemoryCacheImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                return new ImageInfo(reader.getFormatName(), reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package xlike.top.kn_ai_chat.utils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.OptionalLong;
+
+/**
+ * 图片感知哈希工具类
+ * <p>
+ * 计算 64 位差异哈希（dHash）：把图片缩成 9x8 的灰度图，逐行比较相邻像素的明暗。
+ * 同一张图片经过重新压缩、缩放或转发后哈希基本不变，可用汉明距离判断两张图片是否相似。
+ * 解码时按目标尺寸做降采样读取，只解出几十像素见方的小图，避免完整解码大图。
+ * @author xlike
+ */
+public class ImageHashUtil {
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+
+    /**
+     * 降采样后图片每条边至少保留的像素数，保证缩成 9x8 时每格都有多个像素参与平均
+     */
+    private static final int MIN_DECODED_EDGE = 32;
+
+    /**
+     * 解码图片并计算 dHash
+     *
+     * @param in 图片输入流，不会被关闭
+     * @return 64 位哈希；图片格式无法识别（例如 ImageIO 不支持的 WebP）时返回空
+     */
+    public static OptionalLong dHash(InputStream in) throws IOException {
+        BufferedImage image = readSubsampled(in);
+        return image == null ? OptionalLong.empty() : OptionalLong.of(dHash(image));
+    }
+
+    /**
+     * 计算已解码图片的 dHash，只遍历一次像素，通常在几十微秒内完成
+     */
+    public static long dHash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+
+        // 按区域平均把亮度缩到 9x8
+        long[] sum = new long[HASH_WIDTH * HASH_HEIGHT];
+        int[] count = new int[HASH_WIDTH * HASH_HEIGHT];
+        for (int y = 0; y < height; y++) {
+            int cellRow = y * HASH_HEIGHT / height * HASH_WIDTH;
+            int rowOffset = y * width;
+            for (int x = 0; x < width; x++) {
+                int cell = cellRow + x * HASH_WIDTH / width;
+                sum[cell] += luminance(rgb[rowOffset + x]);
+                count[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                int left = y * HASH_WIDTH + x;
+                long leftValue = sum[left] * count[left + 1];
+                long rightValue = sum[left + 1] * count[left];
+                hash <<= 1;
+                if (leftValue > rightValue) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return 两个哈希之间不同的位数
+     */
+    public static int hammingDistance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * 按哈希所需的尺寸降采样解码图片。耗时主要取决于图片格式和原始大小（JPEG 仍需完整熵解码）。
+     *
+     * @param in 图片输入流，不会被关闭
+     * @return 降采样后的图片；格式无法识别时返回 null
+     */
+    public static BufferedImage readSubsampled(InputStream in) throws IOException {
+        // 直接使用内存缓存的流，ImageIO 默认会为每个流在临时目录创建缓存文件
+        try (ImageInputStream imageInput = new MemoryCacheImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInput, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int factor = Math.max(1, Math.min(width, height) / MIN_DECODED_EDGE);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static int luminance(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        // ITU-R BT.601 亮度权重，整数运算
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+}
@@ -0,0 +1,14 @@
+-- V2__Message_Log_Conversation.sql
+-- 为 message_log 增加会话ID（即对话中的外部用户ID），替代 from_user OR to_user 的查询方式
+
+ALTER TABLE message_log ADD COLUMN conversation_id VARCHAR(255);
+
+-- 回填历史数据：客服账号一侧的另一方即为会话ID
+UPDATE message_log
+SET conversation_id = CASE
+    WHEN to_user IN (SELECT open_kfid FROM wechat_kf_account) OR to_user LIKE 'wk%' THEN from_user
+    ELSE to_user
+END;
+
+-- 历史记录按会话倒序读取、统计和删除都可以走该复合索引
+CREATE INDEX idx_message_log_conversation_timestamp ON message_log (conversation_id, timestamp DESC);
@@ -0,0 +1,15 @@
+-- V4__User_Question_Count.sql
+-- 为用户表增加提问次数计数器，由消息写入时增量维护，避免用户列表逐个 COUNT(*)
+
+ALTER TABLE we_chat_user ADD COLUMN question_count BIGINT DEFAULT 0 NOT NULL;
+
+-- 用现有数据回填计数
+UPDATE we_chat_user u
+SET question_count = (
+    SELECT COUNT(*) FROM message_log m
+    WHERE m.conversation_id = u.external_user_id AND m.from_user = u.external_user_id
+);
+
+-- 用户列表按提问次数、更新时间排序
+CREATE INDEX idx_we_chat_user_question_count ON we_chat_user (question_count);
+CREATE INDEX idx_we_chat_user_last_updated ON we_chat_user (last_updated);
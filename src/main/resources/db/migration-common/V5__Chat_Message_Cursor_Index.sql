@@ -0,0 +1,5 @@
+-- V5__Chat_Message_Cursor_Index.sql
+-- 聊天记录按 (timestamp, id) 游标分页，每一页都是复合索引上的一次范围扫描
+
+DROP INDEX IF EXISTS idx_chat_message_external_user_id;
+CREATE INDEX idx_chat_message_user_timestamp_id ON chat_message (external_user_id, timestamp, id);
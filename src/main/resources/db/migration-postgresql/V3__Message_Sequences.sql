@@ -0,0 +1,9 @@
+-- V3__Message_Sequences.sql
+-- message_log 和 chat_message 改为使用序列生成主键，以便 Hibernate 批量插入（IDENTITY 方式无法批量）
+-- 序列步长需与实体中 @SequenceGenerator 的 allocationSize 保持一致
+
+CREATE SEQUENCE message_log_seq START WITH 1 INCREMENT BY 50;
+SELECT setval('message_log_seq', (SELECT COALESCE(MAX(id), 0) + 51 FROM message_log), false);
+
+CREATE SEQUENCE chat_message_seq START WITH 1 INCREMENT BY 50;
+SELECT setval('chat_message_seq', (SELECT COALESCE(MAX(id), 0) + 51 FROM chat_message), false);
@@ -0,0 +1,147 @@
+package xlike.top.kn_ai_chat.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.coobird.thumbnailator.Thumbnails;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import xlike.top.kn_ai_chat.media.MediaBuffer;
+import xlike.top.kn_ai_chat.media.MediaTempArena;
+import xlike.top.kn_ai_chat.utils.ImageCompressionUtil;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 图片压缩到目标大小的耗时：当前实现（只解码一次、二分查找质量）与原先逐级降低质量、每次重新解码的循环对比
+ * <p>
+ * 目标大小取原图的 1/3 和 1/8，分别对应“略微超标”和“需要大幅压缩”两种情况。
+ * 运行方式：mvn test-compile 后执行本类的 main 方法。
+ * @author xlike
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ImageCompressionBenchmark {
+
+    /**
+     * 原图尺寸：手机截图、手机照片
+     */
+    @Param({"1080x2400", "4000x3000"})
+    private String size;
+
+    /**
+     * 目标大小为原图大小的几分之一
+     */
+    @Param({"3", "8"})
+    private int shrink;
+
+    private MediaBuffer source;
+    private long targetSizeBytes;
+    private ImageCompressionUtil util;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] parts = size.split("x");
+        int width = Integer.parseInt(parts[0]);
+        int height = Integer.parseInt(parts[1]);
+        // 色块加噪点，接近照片的熵，原图以高质量编码以便有足够的压缩空间
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        Graphics2D g = image.createGraphics();
+        for (int i = 0; i < 400; i++) {
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g.fillRect(random.nextInt(width), random.nextInt(height), random.nextInt(width / 2 + 1), random.nextInt(height / 8 + 1));
+        }
+        g.dispose();
+        for (int i = 0; i < width * height / 10; i++) {
+            image.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt(0xFFFFFF));
+        }
+
+        MediaTempArena arena = new MediaTempArena();
+        source = arena.wrap(encodeJpeg(image, 0.95f), "source.jpg");
+        targetSizeBytes = source.size() / shrink;
+
+        util = new ImageCompressionUtil(arena, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(util, "minQuality", 0.3);
+        ReflectionTestUtils.setField(util, "maxQuality", 0.92);
+        ReflectionTestUtils.setField(util, "downscaleQuality", 0.75);
+        ReflectionTestUtils.setField(util, "maxEncodes", 8);
+    }
+
+    @Benchmark
+    public MediaBuffer decodeOnceSearch() {
+        return util.compressImageIfNecessary(source, targetSizeBytes).orElse(null);
+    }
+
+    /**
+     * 原先的实现：从 0.85 开始每次降低 0.1，每一次都重新解码原图
+     */
+    @Benchmark
+    public byte[] legacyLoop() throws IOException {
+        byte[] compressed = legacyCompress(0.85);
+        double quality = 0.80;
+        while (compressed.length > targetSizeBytes && quality > 0.1) {
+            compressed = legacyCompress(quality);
+            quality -= 0.1;
+        }
+        return compressed;
+    }
+
+    private byte[] legacyCompress(double quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = source.openStream()) {
+            Thumbnails.of(in)
+                    .scale(1.0)
+                    .outputQuality(quality)
+                    .outputFormat("jpg")
+                    .toOutputStream(out);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream imageOutput = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(imageOutput);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ImageCompressionBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,97 @@
+package xlike.top.kn_ai_chat.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import xlike.top.kn_ai_chat.utils.ImageHashUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 图片描述缓存的指纹计算耗时
+ * <p>
+ * dHash 是在降采样后的小图上计算的，目标是远低于 1 毫秒；
+ * 降采样解码和内容 SHA-256 的耗时取决于原图大小，一并列出作对照。
+ * 运行方式：mvn test-compile 后执行本类的 main 方法。
+ * @author xlike
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageHashBenchmark {
+
+    /**
+     * 原图尺寸：表情包、手机截图
+     */
+    @Param({"240x240", "1080x2400"})
+    private String size;
+
+    private byte[] encoded;
+    private BufferedImage subsampled;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] parts = size.split("x");
+        int width = Integer.parseInt(parts[0]);
+        int height = Integer.parseInt(parts[1]);
+        // 色块加噪点，接近截图的熵，避免纯色图片让解码显得过快
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        Graphics2D g = image.createGraphics();
+        for (int i = 0; i < 200; i++) {
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g.fillRect(random.nextInt(width), random.nextInt(height), random.nextInt(width / 2 + 1), random.nextInt(height / 8 + 1));
+        }
+        g.dispose();
+        for (int i = 0; i < width * height / 20; i++) {
+            image.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt(0xFFFFFF));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        encoded = out.toByteArray();
+        subsampled = ImageHashUtil.readSubsampled(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public long dHash() {
+        return ImageHashUtil.dHash(subsampled);
+    }
+
+    @Benchmark
+    public BufferedImage decodeSubsampled() throws IOException {
+        return ImageHashUtil.readSubsampled(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public byte[] sha256() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(encoded);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ImageHashBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,101 @@
+package xlike.top.kn_ai_chat.benchmark;
+
+import org.flywaydb.core.Flyway;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * message_log 按会话读取历史：conversation_id 复合索引与原先 from_user OR to_user 查询的对比
+ * <p>
+ * 在内存 H2 上执行全部迁移后写入 rows 条消息，分布在 5000 个会话中，
+ * 分别测量读取最新 20 条和统计会话消息数的耗时。
+ * 运行方式：mvn test-compile 后执行本类的 main 方法。
+ * @author xlike
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageLogQueryBenchmark {
+
+    private static final int CONVERSATIONS = 5000;
+    private static final String USER = "user42";
+    private static final String KF = "wkkf";
+
+    @Param({"200000", "1000000"})
+    private int rows;
+
+    private JdbcTemplate jdbc;
+
+    @Setup
+    public void setUp() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:db/migration-common", "classpath:db/migration")
+                .load()
+                .migrate();
+
+        jdbc = new JdbcTemplate(dataSource);
+        // 偶数行由用户发给客服，奇数行由客服回复用户
+        jdbc.update("INSERT INTO message_log (msg_id, from_user, to_user, msg_type, content, timestamp, conversation_id) "
+                + "SELECT 'm' || X, "
+                + "CASE WHEN MOD(X, 2) = 0 THEN 'user' || MOD(X / 2, ?) ELSE ? END, "
+                + "CASE WHEN MOD(X, 2) = 0 THEN ? ELSE 'user' || MOD(X / 2, ?) END, "
+                + "'text', 'message ' || X, DATEADD('SECOND', X, TIMESTAMP '2025-01-01 00:00:00'), 'user' || MOD(X / 2, ?) "
+                + "FROM SYSTEM_RANGE(1, ?)", CONVERSATIONS, KF, KF, CONVERSATIONS, CONVERSATIONS, rows);
+        jdbc.execute("ANALYZE");
+    }
+
+    @TearDown
+    public void tearDown() {
+        jdbc.execute("SHUTDOWN");
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> latestByConversation() {
+        return jdbc.queryForList("SELECT * FROM message_log WHERE conversation_id = ? ORDER BY timestamp DESC LIMIT 20", USER);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> latestByFromOrTo() {
+        return jdbc.queryForList("SELECT * FROM message_log WHERE from_user = ? OR to_user = ? ORDER BY timestamp DESC LIMIT 20", USER, USER);
+    }
+
+    @Benchmark
+    public Long countByConversation() {
+        return jdbc.queryForObject("SELECT COUNT(*) FROM message_log WHERE conversation_id = ?", Long.class, USER);
+    }
+
+    @Benchmark
+    public Long countByFromOrTo() {
+        return jdbc.queryForObject("SELECT COUNT(*) FROM message_log WHERE from_user = ? OR to_user = ?", Long.class, USER, USER);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MessageLogQueryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
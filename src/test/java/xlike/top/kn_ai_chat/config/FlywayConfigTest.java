@@ -0,0 +1,85 @@
+package xlike.top.kn_ai_chat.config;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.MigrationInfo;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 在内存 H2 上执行全部迁移；PostgreSQL 方言的脚本无法在 H2 上执行，只校验版本是否完整
+ * @author xlike
+ */
+class FlywayConfigTest {
+
+    private static final String[] H2_LOCATIONS = {"classpath:db/migration-common", "classpath:db/migration"};
+    private static final String[] POSTGRESQL_LOCATIONS = {"classpath:db/migration-common", "classpath:db/migration-postgresql"};
+
+    @Test
+    void h2MigrationsApplyAndCreateIndexes() {
+        DataSource dataSource = h2();
+        Flyway flyway = flyway(dataSource, H2_LOCATIONS);
+
+        assertThat(flyway.migrate().migrationsExecuted).isEqualTo(5);
+
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        assertThat(jdbc.queryForList("SELECT LOWER(INDEX_NAME) FROM INFORMATION_SCHEMA.INDEXES", String.class))
+                .contains("idx_message_log_conversation_timestamp",
+                        "idx_we_chat_user_question_count",
+                        "idx_we_chat_user_last_updated",
+                        "idx_chat_message_user_timestamp_id")
+                .doesNotContain("idx_chat_message_external_user_id");
+        assertThat(jdbc.queryForList("SELECT LOWER(SEQUENCE_NAME) FROM INFORMATION_SCHEMA.SEQUENCES", String.class))
+                .contains("message_log_seq", "chat_message_seq");
+        assertThat(flyway.migrate().migrationsExecuted).isZero();
+    }
+
+    @Test
+    void sequencesRestartAfterExistingRows() {
+        DataSource dataSource = h2();
+        Flyway flyway = flyway(dataSource, H2_LOCATIONS);
+        Flyway.configure().configuration(flyway.getConfiguration()).target("2").load().migrate();
+
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.update("INSERT INTO chat_message (id, external_user_id, sender_type, message_type, content, timestamp) "
+                + "VALUES (120, 'alice', 'USER', 'TEXT', 'hi', CURRENT_TIMESTAMP)");
+        jdbc.update("INSERT INTO message_log (id, msg_id, conversation_id) VALUES (7, 'm-7', 'alice')");
+        flyway.migrate();
+
+        assertThat(jdbc.queryForObject("SELECT NEXT VALUE FOR chat_message_seq", Long.class)).isEqualTo(171L);
+        assertThat(jdbc.queryForObject("SELECT NEXT VALUE FOR message_log_seq", Long.class)).isEqualTo(58L);
+    }
+
+    @Test
+    void everyDialectResolvesTheSameVersions() {
+        assertThat(versions(H2_LOCATIONS)).containsExactly("1", "2", "3", "4", "5");
+        assertThat(versions(POSTGRESQL_LOCATIONS)).containsExactly(versions(H2_LOCATIONS));
+    }
+
+    private static String[] versions(String[] locations) {
+        return Arrays.stream(flyway(h2(), locations).info().pending())
+                .map(MigrationInfo::getVersion)
+                .map(Object::toString)
+                .toArray(String[]::new);
+    }
+
+    private static Flyway flyway(DataSource dataSource, String[] locations) {
+        FlywayConfig config = new FlywayConfig();
+        ReflectionTestUtils.setField(config, "dataSource", dataSource);
+        ReflectionTestUtils.setField(config, "flywayLocations", locations);
+        return config.flyway();
+    }
+
+    private static DataSource h2() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        return dataSource;
+    }
+}
@@ -0,0 +1,192 @@
+package xlike.top.kn_ai_chat.config;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import jakarta.persistence.EntityManagerFactory;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+import xlike.top.kn_ai_chat.domain.ChatMessage;
+import xlike.top.kn_ai_chat.repository.ChatMessageRepository;
+import xlike.top.kn_ai_chat.service.ChatHistoryService;
+import xlike.top.kn_ai_chat.service.MessageWriteBuffer;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 在内嵌 PostgreSQL 上执行 PostgreSQL 方言的迁移，并验证读写分离：
+ * 同一个实例上的两个数据库分别充当主库和只读副本，副本上的数据与主库互不同步，据此判断查询落在哪个库上
+ * @author xlike
+ */
+@SpringJUnitConfig(PostgresIntegrationTest.RoutingConfig.class)
+class PostgresIntegrationTest {
+
+    private static final String[] LOCATIONS = {"classpath:db/migration-common", "classpath:db/migration-postgresql"};
+    private static final String REPLICA = "kn_replica";
+
+    private static EmbeddedPostgres postgres;
+
+    @Autowired
+    private ChatMessageRepository chatMessageRepository;
+
+    @Autowired
+    private ChatHistoryService chatHistoryService;
+
+    @Autowired
+    @Qualifier("primaryDataSource")
+    private DataSource primaryDataSource;
+
+    @Autowired
+    @Qualifier("replicaDataSource")
+    private DataSource replicaDataSource;
+
+    @BeforeAll
+    static void startPostgres() throws IOException {
+        postgres = EmbeddedPostgres.builder().start();
+        new JdbcTemplate(postgres.getPostgresDatabase()).execute("CREATE DATABASE " + REPLICA);
+
+        // 主库先迁移到 V2 并写入历史数据，检查 V3 把序列重置到已有主键之后
+        Flyway primary = flyway(postgres.getPostgresDatabase());
+        Flyway.configure().configuration(primary.getConfiguration()).target("2").load().migrate();
+        JdbcTemplate jdbc = new JdbcTemplate(postgres.getPostgresDatabase());
+        jdbc.update("INSERT INTO chat_message (id, external_user_id, sender_type, message_type, content, timestamp) "
+                + "VALUES (120, 'alice', 'USER', 'TEXT', 'hi', CURRENT_TIMESTAMP)");
+        jdbc.update("INSERT INTO message_log (id, msg_id, conversation_id) VALUES (7, 'm-7', 'alice')");
+        primary.migrate();
+
+        flyway(postgres.getDatabase("postgres", REPLICA)).migrate();
+    }
+
+    @AfterAll
+    static void stopPostgres() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @DynamicPropertySource
+    static void datasourceProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> postgres.getJdbcUrl("postgres", "postgres"));
+        registry.add("spring.datasource.username", () -> "postgres");
+        registry.add("spring.datasource.password", () -> "");
+        registry.add("spring.datasource.replica.url", () -> postgres.getJdbcUrl("postgres", REPLICA));
+    }
+
+    @Test
+    void postgresqlMigrationsApplyAndRestartSequences() {
+        JdbcTemplate jdbc = new JdbcTemplate(primaryDataSource);
+        assertThat(jdbc.queryForObject("SELECT COUNT(*) FROM flyway_schema_history WHERE success AND version IS NOT NULL", Integer.class))
+                .isEqualTo(5);
+        assertThat(jdbc.queryForList("SELECT indexname FROM pg_indexes WHERE schemaname = 'public'", String.class))
+                .contains("idx_message_log_conversation_timestamp",
+                        "idx_we_chat_user_question_count",
+                        "idx_chat_message_user_timestamp_id")
+                .doesNotContain("idx_chat_message_external_user_id");
+        assertThat(jdbc.queryForObject("SELECT nextval('chat_message_seq')", Long.class)).isEqualTo(171L);
+        assertThat(jdbc.queryForObject("SELECT nextval('message_log_seq')", Long.class)).isEqualTo(58L);
+    }
+
+    @Test
+    void readOnlyTransactionsUseReplicaAndWritesUsePrimary() {
+        insert(replicaDataSource, 1001L, "bob", "from replica");
+        assertThat(chatMessageRepository.findByExternalUserIdOrderByTimestampDescIdDesc("bob", PageRequest.of(0, 10)))
+                .extracting(ChatMessage::getContent)
+                .containsExactly("from replica");
+
+        ChatMessage message = new ChatMessage();
+        message.setId(1002L);
+        message.setExternalUserId("bob");
+        message.setSenderType(ChatMessage.SenderType.ADMIN);
+        message.setMessageType(ChatMessage.MessageType.TEXT);
+        message.setContent("written");
+        message.setTimestamp(LocalDateTime.now());
+        chatMessageRepository.save(message);
+
+        assertThat(count(primaryDataSource, 1002L)).isEqualTo(1);
+        assertThat(count(replicaDataSource, 1002L)).isZero();
+    }
+
+    @Test
+    void chatHistoryPagesReadFromPrimary() {
+        insert(primaryDataSource, 2001L, "carol", "just flushed");
+        assertThat(chatMessageRepository.findByExternalUserIdOrderByTimestampDescIdDesc("carol", PageRequest.of(0, 10))).isEmpty();
+
+        assertThat(chatHistoryService.loadPage("carol", null, null, null).getMessages())
+                .extracting(ChatMessage::getContent)
+                .containsExactly("just flushed");
+    }
+
+    private static Flyway flyway(DataSource dataSource) {
+        FlywayConfig config = new FlywayConfig();
+        ReflectionTestUtils.setField(config, "dataSource", dataSource);
+        ReflectionTestUtils.setField(config, "flywayLocations", LOCATIONS);
+        return config.flyway();
+    }
+
+    private static void insert(DataSource dataSource, long id, String userId, String content) {
+        new JdbcTemplate(dataSource).update("INSERT INTO chat_message (id, external_user_id, sender_type, message_type, content, timestamp) "
+                + "VALUES (?, ?, 'USER', 'TEXT', ?, CURRENT_TIMESTAMP)", id, userId, content);
+    }
+
+    private static int count(DataSource dataSource, long id) {
+        return new JdbcTemplate(dataSource).queryForObject("SELECT COUNT(*) FROM chat_message WHERE id = ?", Integer.class, id);
+    }
+
+    /**
+     * 只装配读写分离数据源、JPA 和聊天记录相关的 Bean
+     */
+    @Configuration
+    @Import(DataSourceConfig.class)
+    @EnableConfigurationProperties(DataSourceProperties.class)
+    @EnableTransactionManagement
+    @EnableJpaRepositories(basePackageClasses = ChatMessageRepository.class,
+            includeFilters = @ComponentScan.Filter(type = FilterType.ASSIGNABLE_TYPE, classes = ChatMessageRepository.class))
+    static class RoutingConfig {
+
+        @Bean
+        LocalContainerEntityManagerFactoryBean entityManagerFactory(DataSource dataSource) {
+            LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+            factory.setDataSource(dataSource);
+            factory.setPackagesToScan(ChatMessage.class.getPackageName());
+            factory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+            return factory;
+        }
+
+        @Bean
+        PlatformTransactionManager transactionManager(EntityManagerFactory entityManagerFactory) {
+            return new JpaTransactionManager(entityManagerFactory);
+        }
+
+        @Bean
+        ChatHistoryService chatHistoryService(ChatMessageRepository chatMessageRepository,
+                                              PlatformTransactionManager transactionManager) {
+            return new ChatHistoryService(chatMessageRepository, mock(MessageWriteBuffer.class), transactionManager);
+        }
+    }
+}
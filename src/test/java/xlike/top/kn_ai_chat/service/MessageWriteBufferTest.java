@@ -0,0 +1,130 @@
+package xlike.top.kn_ai_chat.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import xlike.top.kn_ai_chat.domain.ChatMessage;
+import xlike.top.kn_ai_chat.domain.MessageLog;
+import xlike.top.kn_ai_chat.repository.ChatMessageRepository;
+import xlike.top.kn_ai_chat.repository.WeChatUserRepository;
+import xlike.top.kn_ai_chat.store.MessageLogStore;
+import xlike.top.kn_ai_chat.store.MessageLogStore.SaveResult;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author xlike
+ */
+class MessageWriteBufferTest {
+
+    private final MessageLogStore store = mock(MessageLogStore.class);
+    private final ChatMessageRepository chatMessageRepository = mock(ChatMessageRepository.class);
+    private final WeChatUserRepository userRepository = mock(WeChatUserRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private MessageWriteBuffer buffer;
+
+    @BeforeEach
+    void setUp() {
+        buffer = new MessageWriteBuffer(store, chatMessageRepository, mock(ChatMessageIdAllocator.class), userRepository,
+                mock(PlatformTransactionManager.class), meterRegistry, 50, 100, 60_000, 3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        buffer.shutdown();
+    }
+
+    @Test
+    void chatMessagesAreSavedWhenMessageLogStoreFails() {
+        when(store.saveAll(anyList(), any())).thenThrow(new UncheckedIOException(new IOException("disk full")));
+        buffer.enqueue(log("m-1", "alice"));
+        ChatMessage message = chatMessage();
+        buffer.enqueue(message);
+
+        buffer.flush();
+
+        verify(chatMessageRepository).saveAll(List.of(message));
+        assertThat(buffer.isPending("m-1")).isTrue();
+    }
+
+    @Test
+    void failedMessageLogsAreRetriedThenDropped() {
+        when(store.saveAll(anyList(), any())).thenThrow(new UncheckedIOException(new IOException("disk full")));
+        buffer.enqueue(log("m-1", "alice"));
+
+        buffer.flush();
+        buffer.flush();
+        assertThat(meterRegistry.find("message.write_behind.dropped").counter()).isNull();
+        buffer.flush();
+        buffer.flush();
+
+        verify(store, times(3)).saveAll(anyList(), any());
+        assertThat(meterRegistry.get("message.write_behind.dropped").tag("type", "message_log").counter().count()).isEqualTo(1);
+        assertThat(buffer.isPending("m-1")).isFalse();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void questionCountsOnlyIncludeStoredMessages() {
+        MessageLog stored = log("m-1", "alice");
+        MessageLog duplicate = log("m-2", "alice");
+        when(store.saveAll(anyList(), any())).thenAnswer(invocation -> {
+            invocation.<Consumer<List<MessageLog>>>getArgument(1).accept(List.of(stored));
+            return new SaveResult(List.of(stored), List.of());
+        });
+        buffer.enqueue(stored);
+        buffer.enqueue(duplicate);
+
+        buffer.flush();
+
+        verify(userRepository).addQuestionCount("alice", 1L);
+        assertThat(buffer.isPending("m-2")).isFalse();
+        buffer.flush();
+        verify(store, times(1)).saveAll(anyList(), any());
+        verify(userRepository, times(1)).addQuestionCount(anyString(), anyLong());
+    }
+
+    @Test
+    void pendingMessageLogsIncludeQueuedAndRetryingMessages() {
+        when(store.saveAll(anyList(), any())).thenThrow(new UncheckedIOException(new IOException("disk full")));
+        MessageLog failed = log("m-1", "alice");
+        buffer.enqueue(failed);
+        buffer.flush();
+        MessageLog queued = log("m-2", "alice");
+        buffer.enqueue(queued);
+        buffer.enqueue(log("m-3", "bob"));
+
+        assertThat(buffer.pendingMessageLogs("alice")).containsExactly(failed, queued);
+    }
+
+    private static MessageLog log(String msgId, String user) {
+        MessageLog log = new MessageLog();
+        log.setMsgId(msgId);
+        log.setConversationId(user);
+        log.setFromUser(user);
+        log.setToUser("kf");
+        return log;
+    }
+
+    private static ChatMessage chatMessage() {
+        ChatMessage message = new ChatMessage();
+        message.setId(1L);
+        message.setExternalUserId("alice");
+        return message;
+    }
+}
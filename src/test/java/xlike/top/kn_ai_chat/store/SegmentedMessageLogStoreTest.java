@@ -0,0 +1,146 @@
+package xlike.top.kn_ai_chat.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import xlike.top.kn_ai_chat.domain.MessageLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ * @author xlike
+ */
+class SegmentedMessageLogStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<SegmentedMessageLogStore> opened = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        opened.forEach(SegmentedMessageLogStore::close);
+    }
+
+    @Test
+    void sealedSegmentsAreLoadedFromIndexAfterRestart() throws IOException {
+        SegmentedMessageLogStore store = open(36500);
+        store.saveAll(messages("alice", 20, LocalDateTime.now()));
+        store.saveAll(messages("bob", 5, LocalDateTime.now()));
+        store.deleteConversation("bob");
+        store.maintain();
+        List<MessageLog> before = store.findLatest("alice", 100);
+        store.close();
+
+        assertThat(files(".idx")).hasSize(1);
+        SegmentedMessageLogStore reopened = open(36500);
+        assertThat(reopened.findLatest("alice", 100)).extracting(MessageLog::getId, MessageLog::getContent)
+                .containsExactlyElementsOf(before.stream().map(log -> tuple(log.getId(), log.getContent())).toList());
+        assertThat(reopened.count("alice")).isEqualTo(20);
+        assertThat(reopened.countFromUser("alice")).isEqualTo(10);
+        assertThat(reopened.count("bob")).isZero();
+        assertThat(reopened.existsByMsgId("alice-3")).isTrue();
+    }
+
+    @Test
+    void corruptIndexIsRebuiltFromSegment() throws IOException {
+        SegmentedMessageLogStore store = open(36500);
+        store.saveAll(messages("alice", 10, LocalDateTime.now()));
+        store.maintain();
+        store.close();
+
+        Path index = files(".idx").get(0);
+        byte[] bytes = Files.readAllBytes(index);
+        bytes[bytes.length / 2] ^= 0x5A;
+        Files.write(index, bytes);
+
+        SegmentedMessageLogStore reopened = open(36500);
+        assertThat(reopened.count("alice")).isEqualTo(10);
+        assertThat(reopened.findLatest("alice", 1)).extracting(MessageLog::getContent).containsExactly("alice message 9");
+    }
+
+    @Test
+    void compressedSegmentIsReadBlockByBlock() throws IOException {
+        SegmentedMessageLogStore store = open(36500);
+        LocalDateTime old = LocalDateTime.now().minusDays(30);
+        store.saveAll(messages("alice", 5000, old));
+        store.maintain();
+
+        assertThat(files(".seg.gz")).hasSize(1);
+        assertThat(files(".seg")).hasSize(1);
+        List<MessageLog> latest = store.findLatest("alice", 5000);
+        assertThat(latest).hasSize(5000);
+        assertThat(latest.get(0).getContent()).isEqualTo("alice message 4999");
+        assertThat(latest.get(4999).getContent()).isEqualTo("alice message 0");
+        store.close();
+
+        SegmentedMessageLogStore reopened = open(36500);
+        assertThat(reopened.findLatestFromUser("alice", 3)).extracting(MessageLog::getContent)
+                .containsExactly("alice message 4998", "alice message 4996", "alice message 4994");
+        assertThat(reopened.findLatest("alice", 5000)).extracting(MessageLog::getId)
+                .containsExactlyElementsOf(latest.stream().map(MessageLog::getId).toList());
+    }
+
+    @Test
+    void retentionUsesLastRecordTimeNotFileModificationTime() throws IOException {
+        SegmentedMessageLogStore store = open(36500);
+        store.saveAll(messages("alice", 10, LocalDateTime.now().minusDays(200)));
+        store.maintain();
+        store.close();
+
+        // 压缩会重写文件，修改时间是压缩时刻而不是最后一条记录的时间
+        Path compressed = files(".seg.gz").get(0);
+        Files.setLastModifiedTime(compressed, FileTime.fromMillis(System.currentTimeMillis()));
+
+        SegmentedMessageLogStore reopened = open(180);
+        reopened.maintain();
+        assertThat(Files.exists(compressed)).isFalse();
+        assertThat(reopened.count("alice")).isZero();
+    }
+
+    private SegmentedMessageLogStore open(long retentionDays) throws IOException {
+        SegmentedMessageLogStore store = new SegmentedMessageLogStore();
+        ReflectionTestUtils.setField(store, "directory", dir.toString());
+        ReflectionTestUtils.setField(store, "rollIntervalHours", 0L);
+        ReflectionTestUtils.setField(store, "maxSegmentSizeMb", 64L);
+        ReflectionTestUtils.setField(store, "compressAfterDays", 7L);
+        ReflectionTestUtils.setField(store, "retentionDays", retentionDays);
+        ReflectionTestUtils.setField(store, "dedupeWindowHours", 48L);
+        store.init();
+        opened.add(store);
+        return store;
+    }
+
+    private static List<MessageLog> messages(String user, int count, LocalDateTime timestamp) {
+        List<MessageLog> logs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            MessageLog log = new MessageLog();
+            log.setConversationId(user);
+            log.setMsgId(user + "-" + i);
+            log.setFromUser(i % 2 == 0 ? user : "kf");
+            log.setToUser(i % 2 == 0 ? "kf" : user);
+            log.setMsgType("text");
+            log.setContent(user + " message " + i);
+            log.setTimestamp(timestamp.plusSeconds(i));
+            logs.add(log);
+        }
+        return logs;
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(suffix)).toList();
+        }
+    }
+}